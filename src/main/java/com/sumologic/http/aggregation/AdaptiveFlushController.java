@@ -0,0 +1,211 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.aggregation;
+
+/**
+ * Tunes batch size and flush interval between configured bounds from what the flusher and
+ * sender observe, AIMD style.  A prompt 200 grows the batch size additively and shortens the
+ * flush interval; a slow 200 halves the batch size, since the payload takes too long to send;
+ * a batch rejected as too large halves it as well; a throttled or failed request doubles the
+ * flush interval, so fewer requests go out until the collector recovers.  The batch size
+ * only grows while the enqueue rate fills batches before the interval is up, otherwise it is
+ * not what limits the request size.
+ */
+public class AdaptiveFlushController {
+    private static final int STATUS_OK = 200;
+    private static final int STATUS_PAYLOAD_TOO_LARGE = 413;
+    // Weight of the newest sample in the enqueue rate
+    private static final double RATE_SMOOTHING = 0.2;
+
+    /**
+     * Told about every change of the batch size, on the thread that recorded the response.
+     */
+    public interface Listener {
+        void messagesPerRequestChanged(int messagesPerRequest);
+    }
+
+    private final int minMessagesPerRequest;
+    private final int maxMessagesPerRequest;
+    private final long minFlushIntervalMs;
+    private final long maxFlushIntervalMs;
+
+    private long targetLatencyMs = 1000;
+    private int messagesIncrease = 10;
+    private long flushIntervalDecreaseMs;
+
+    private volatile int messagesPerRequest;
+    private volatile long flushIntervalMs;
+    private volatile double enqueueRate = 0;
+    private volatile Listener listener = null;
+
+    // Enqueue rate bookkeeping, guarded by this
+    private long lastObservedAt = -1;
+    private int lastObservedSize = 0;
+    private long drainedSinceObserved = 0;
+
+    public AdaptiveFlushController(int minMessagesPerRequest,
+                                   int maxMessagesPerRequest,
+                                   long minFlushIntervalMs,
+                                   long maxFlushIntervalMs) {
+        if (minMessagesPerRequest <= 0) {
+            throw new IllegalArgumentException("Messages per request must be at least 1");
+        }
+        if (maxMessagesPerRequest < minMessagesPerRequest) {
+            throw new IllegalArgumentException("Max messages per request cannot be below the min");
+        }
+        if (minFlushIntervalMs <= 0) {
+            throw new IllegalArgumentException("Flush interval must be at least 1");
+        }
+        if (maxFlushIntervalMs < minFlushIntervalMs) {
+            throw new IllegalArgumentException("Max flush interval cannot be below the min");
+        }
+        this.minMessagesPerRequest = minMessagesPerRequest;
+        this.maxMessagesPerRequest = maxMessagesPerRequest;
+        this.minFlushIntervalMs = minFlushIntervalMs;
+        this.maxFlushIntervalMs = maxFlushIntervalMs;
+        this.flushIntervalDecreaseMs = Math.max(1, (maxFlushIntervalMs - minFlushIntervalMs) / 10);
+        this.messagesPerRequest = minMessagesPerRequest;
+        this.flushIntervalMs = maxFlushIntervalMs;
+    }
+
+    /**
+     * Responses slower than this count as a sign that batches are too big.  Defaults to 1000.
+     */
+    public void setTargetLatencyMs(long targetLatencyMs) {
+        this.targetLatencyMs = targetLatencyMs;
+    }
+
+    /**
+     * Messages added to the batch size after each prompt response.  Defaults to 10.
+     */
+    public void setMessagesIncrease(int messagesIncrease) {
+        if (messagesIncrease <= 0) {
+            throw new IllegalArgumentException("Messages increase must be at least 1");
+        }
+        this.messagesIncrease = messagesIncrease;
+    }
+
+    /**
+     * Milliseconds taken off the flush interval after each prompt response.  Defaults to a
+     * tenth of the range between the min and max interval.
+     */
+    public void setFlushIntervalDecreaseMs(long flushIntervalDecreaseMs) {
+        if (flushIntervalDecreaseMs <= 0) {
+            throw new IllegalArgumentException("Flush interval decrease must be at least 1");
+        }
+        this.flushIntervalDecreaseMs = flushIntervalDecreaseMs;
+    }
+
+    /**
+     * Set the listener told about batch size changes.  An event-driven
+     * <tt>SumoBufferFlusher</tt> sets its own while it runs.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    public int getMessagesPerRequest() {
+        return messagesPerRequest;
+    }
+
+    public long getMaxFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    /**
+     * Return the smoothed rate, in messages per second, at which messages are being queued.
+     */
+    public double getEnqueueRate() {
+        return enqueueRate;
+    }
+
+    /**
+     * Observe the number of messages queued, to keep track of the enqueue rate.
+     */
+    public void recordQueueSize(int size) {
+        recordQueueSize(size, System.currentTimeMillis());
+    }
+
+    synchronized void recordQueueSize(int size, long now) {
+        if (lastObservedAt >= 0 && now > lastObservedAt) {
+            long enqueued = Math.max(0, size - lastObservedSize + drainedSinceObserved);
+            double rate = enqueued * 1000.0 / (now - lastObservedAt);
+            enqueueRate = enqueueRate == 0 ? rate : enqueueRate + RATE_SMOOTHING * (rate - enqueueRate);
+        }
+        if (now > lastObservedAt) {
+            lastObservedAt = now;
+            lastObservedSize = size;
+            drainedSinceObserved = 0;
+        }
+    }
+
+    /**
+     * Record that <tt>count</tt> messages were taken from the queue to be sent.
+     */
+    public synchronized void recordDrained(int count) {
+        drainedSinceObserved += count;
+    }
+
+    /**
+     * Record a response from the collector and how long the request took.
+     */
+    public synchronized void recordResponse(int statusCode, long latencyMs) {
+        int before = messagesPerRequest;
+        if (statusCode == STATUS_PAYLOAD_TOO_LARGE) {
+            messagesPerRequest = Math.max(minMessagesPerRequest, messagesPerRequest / 2);
+        } else if (statusCode != STATUS_OK) {
+            backOff();
+        } else if (latencyMs > targetLatencyMs) {
+            messagesPerRequest = Math.max(minMessagesPerRequest, messagesPerRequest / 2);
+        } else {
+            if (enqueueRate * flushIntervalMs / 1000 >= messagesPerRequest) {
+                messagesPerRequest = Math.min(maxMessagesPerRequest, messagesPerRequest + messagesIncrease);
+            }
+            flushIntervalMs = Math.max(minFlushIntervalMs, flushIntervalMs - flushIntervalDecreaseMs);
+        }
+
+        Listener listener = this.listener;
+        if (listener != null && messagesPerRequest != before) {
+            listener.messagesPerRequestChanged(messagesPerRequest);
+        }
+    }
+
+    /**
+     * Record a request that got no response at all.
+     */
+    public synchronized void recordFailure() {
+        backOff();
+    }
+
+    private void backOff() {
+        flushIntervalMs = Math.min(maxFlushIntervalMs, flushIntervalMs * 2);
+    }
+}
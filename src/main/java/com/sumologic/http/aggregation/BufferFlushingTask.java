@@ -26,26 +26,67 @@
 
 package com.sumologic.http.aggregation;
 
+import com.sumologic.http.queue.Batch;
 import com.sumologic.http.queue.BufferWithEviction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
- * Task to perform a single flushing check
+ * Task to perform a single flushing check.  Batches are normally delivered one at a time on
+ * the flushing thread; pipelined, up to a fixed number are delivered concurrently while the
+ * next ones are drained and aggregated, through <tt>deliverAsync</tt>.
  */
 public abstract class BufferFlushingTask<In, Out> implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(BufferFlushingTask.class);
+    public static final int DEFAULT_THROTTLED_BATCH_FACTOR = 4;
     private long timeOfLastFlush = System.currentTimeMillis();
     private BufferWithEviction<In> messageQueue;
+    // Reused for every flush, so steady-state flushing does not allocate per batch
+    private final Batch<In> messages = new Batch<In>();
+    // Overrides the subclass's batch size and flush interval when set
+    private volatile AdaptiveFlushController flushController = null;
+    // Batches grow by this factor while isSendingThrottled, since fewer requests get through
+    private volatile int throttledBatchFactor = DEFAULT_THROTTLED_BATCH_FACTOR;
+
+    // Pipelined mode, unset unless setSenderPool or setMaxInFlightRequests is called
+    private volatile ExecutorService senderPool = null;
+    private volatile Semaphore inFlightRequests = null;
+    private volatile long maxInFlightBytes = Long.MAX_VALUE;
+    // Batches in the order they were drained, guarded by their own monitor along with inFlightBytes
+    private final ArrayDeque<InFlightBatch> inFlight = new ArrayDeque<InFlightBatch>();
+    private long inFlightBytes = 0;
+
+    private static class InFlightBatch {
+        final long drainPosition;
+        final long bytes;
+        // The permit goes back to the semaphore it came from, even if pipelining was turned
+        // off or reconfigured while the batch was in flight
+        final Semaphore permits;
+        boolean done = false;
+        boolean delivered = false;
+
+        InFlightBatch(long drainPosition, long bytes, Semaphore permits) {
+            this.drainPosition = drainPosition;
+            this.bytes = bytes;
+            this.permits = permits;
+        }
+    }
 
     private boolean needsFlushing() {
         long currentTime = System.currentTimeMillis();
-        long dateOfNextFlush = timeOfLastFlush + getMaxFlushIntervalMs();
+        long dateOfNextFlush = timeOfLastFlush + maxFlushIntervalMs();
 
-        return (messageQueue.size() >= getMessagesPerRequest()) ||
+        return (messageQueue.size() >= messagesPerRequest()) ||
+               (messageQueue.cost() >= getMaxBytesPerRequest()) ||
                (currentTime >= dateOfNextFlush);
     }
 
@@ -53,21 +94,141 @@ public abstract class BufferFlushingTask<In, Out> implements Runnable {
         boolean shouldContinue = true;
 
         while (shouldContinue) {
-            List<In> messages = new ArrayList<In>(messageQueue.size());
-            messageQueue.drainTo(messages, this.getMessagesPerRequest());
-
-            if (!messages.isEmpty()) {
-                logger.debug(String.format("%s - Flushing and sending out %d messages (%d messages left)",
-                        new java.util.Date(),
-                        messages.size(),
-                        messageQueue.size()));
-                Out body = aggregate(messages);
-                sendOut(body);
-                timeOfLastFlush = System.currentTimeMillis();
-            } else {
-                shouldContinue = false;
+            // Leave the rest in the buffer once sending stops, for instance when the circuit
+            // opens partway through
+            if (isSendingPaused()) {
+                break;
+            }
+            Semaphore permits = inFlightRequests;
+            boolean pipelined = permits != null;
+            if (pipelined && !awaitSendCapacity(permits)) {
+                break;
+            }
+
+            boolean inBackground = false;
+            try {
+                messages.clear();
+                messageQueue.drainTo(messages, messagesPerRequest(), this.getMaxBytesPerRequest());
+                long drainPosition = messageQueue.drainPosition();
+                AdaptiveFlushController controller = flushController;
+                if (controller != null) {
+                    controller.recordDrained(messages.size());
+                }
+
+                if (!messages.isEmpty()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(String.format("%s - Flushing and sending out %d messages (%d messages left)",
+                                new java.util.Date(),
+                                messages.size(),
+                                messageQueue.size()));
+                    }
+                    Out body = aggregate(messages);
+                    long bytes = messages.cost();
+                    messages.clear();
+                    if (pipelined) {
+                        deliverInBackground(body, new InFlightBatch(drainPosition, bytes, permits));
+                        inBackground = true;
+                    } else if (deliver(body)) {
+                        messageQueue.acknowledge(drainPosition);
+                    }
+                    timeOfLastFlush = System.currentTimeMillis();
+                } else {
+                    shouldContinue = false;
+                }
+            } finally {
+                // The background delivery returns the permit itself once it completes
+                if (pipelined && !inBackground) {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    // Takes a request permit and waits for the in-flight bytes to drop below the limit, so
+    // that while the sender pool is saturated messages stay in the buffer and count against it
+    private boolean awaitSendCapacity(Semaphore permits) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        synchronized (inFlight) {
+            while (inFlightBytes >= maxInFlightBytes) {
+                try {
+                    inFlight.wait();
+                } catch (InterruptedException e) {
+                    permits.release();
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void deliverInBackground(final Out body, final InFlightBatch batch) {
+        synchronized (inFlight) {
+            inFlight.addLast(batch);
+            inFlightBytes += batch.bytes;
+        }
+
+        CompletableFuture<Boolean> delivery;
+        try {
+            delivery = deliverAsync(body);
+        } catch (Exception e) {
+            logger.warn("Exception while attempting to send", e);
+            delivery = CompletableFuture.completedFuture(false);
+        }
+        delivery.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean delivered, Throwable error) {
+                if (error != null) {
+                    logger.warn("Exception while attempting to send", error);
+                }
+                complete(batch, error == null && delivered);
+            }
+        });
+    }
+
+    private void complete(InFlightBatch batch, boolean delivered) {
+        synchronized (inFlight) {
+            batch.done = true;
+            batch.delivered = delivered;
+            inFlightBytes -= batch.bytes;
+
+            // Only acknowledge once every earlier batch is done, as with sequential delivery a
+            // dropped batch is covered by the next delivered one
+            long drainPosition = -1;
+            while (!inFlight.isEmpty() && inFlight.peekFirst().done) {
+                InFlightBatch head = inFlight.pollFirst();
+                if (head.delivered) {
+                    drainPosition = head.drainPosition;
+                }
             }
+            if (drainPosition >= 0) {
+                messageQueue.acknowledge(drainPosition);
+            }
+            inFlight.notifyAll();
         }
+        batch.permits.release();
+    }
+
+
+    private int messagesPerRequest() {
+        AdaptiveFlushController controller = flushController;
+        int messagesPerRequest = controller != null ? controller.getMessagesPerRequest() : getMessagesPerRequest();
+        int factor = throttledBatchFactor;
+        if (factor > 1 && isSendingThrottled()) {
+            return (int) Math.min(Integer.MAX_VALUE, (long) messagesPerRequest * factor);
+        }
+        return messagesPerRequest;
+    }
+
+    private long maxFlushIntervalMs() {
+        AdaptiveFlushController controller = flushController;
+        return controller != null ? controller.getMaxFlushIntervalMs() : getMaxFlushIntervalMs();
     }
 
 
@@ -76,20 +237,163 @@ public abstract class BufferFlushingTask<In, Out> implements Runnable {
     abstract protected long getMaxFlushIntervalMs();
     abstract protected int getMessagesPerRequest();
 
+    // Batches are also cut once their messages add up to this many bytes, by the cost the
+    // buffer assigned them. Unlimited unless overridden.
+    protected long getMaxBytesPerRequest() {
+        return Long.MAX_VALUE;
+    }
+
     protected BufferFlushingTask(BufferWithEviction<In> messageQueue) {
         this.messageQueue = messageQueue;
     }
 
-    // Given the list of messages, aggregate them into a single Out object
+    // Given the list of messages, aggregate them into a single Out object. The list is reused
+    // for the next batch, so the result must not hold on to it.
     abstract protected Out aggregate(List<In> messages);
     // Send aggregated message out. Block until we've successfully sent it.
     abstract protected void sendOut(Out body);
 
+    // Send aggregated message out and report whether it was delivered, so the buffer can
+    // release it. Subclasses that can tell a dropped message from a delivered one override this.
+    protected boolean deliver(Out body) {
+        sendOut(body);
+        return true;
+    }
+
+    // Start sending aggregated message out and complete with whether it was delivered. Used
+    // when pipelined; by default deliver runs on the sender pool. Subclasses with a sender that
+    // does not block override this, and then need no sender pool.
+    protected CompletableFuture<Boolean> deliverAsync(final Out body) {
+        Supplier<Boolean> delivery = new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return deliver(body);
+            }
+        };
+        ExecutorService pool = senderPool;
+        if (pool != null) {
+            try {
+                return CompletableFuture.supplyAsync(delivery, pool);
+            } catch (RejectedExecutionException e) {
+                // The pool is shutting down, deliver here rather than lose the batch
+            }
+        }
+        return CompletableFuture.completedFuture(delivery.get());
+    }
+
     /* Public interface */
 
+    /**
+     * Deliver batches on <tt>senderPool</tt>, with up to <tt>maxInFlightRequests</tt> of them
+     * in flight at once.  The pool must have at least that many threads.
+     */
+    public void setSenderPool(ExecutorService senderPool, int maxInFlightRequests) {
+        if (senderPool != null && maxInFlightRequests <= 0) {
+            throw new IllegalArgumentException("Max in-flight requests must be at least 1");
+        }
+        this.inFlightRequests = senderPool == null ? null : new Semaphore(maxInFlightRequests);
+        this.senderPool = senderPool;
+    }
+
+    /**
+     * Deliver batches through <tt>deliverAsync</tt> with up to <tt>maxInFlightRequests</tt> of
+     * them in flight at once, for subclasses whose <tt>deliverAsync</tt> needs no sender pool.
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        if (maxInFlightRequests <= 0) {
+            throw new IllegalArgumentException("Max in-flight requests must be at least 1");
+        }
+        this.inFlightRequests = new Semaphore(maxInFlightRequests);
+    }
+
+    /**
+     * Wait until every batch in flight has been delivered or dropped.
+     */
+    public void awaitInFlight() throws InterruptedException {
+        synchronized (inFlight) {
+            while (!inFlight.isEmpty()) {
+                inFlight.wait();
+            }
+        }
+    }
+
+    /**
+     * Stop draining new batches while the batches in flight add up to at least
+     * <tt>maxInFlightBytes</tt>, by the cost the buffer assigned to their messages.
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Take the batch size and flush interval from <tt>flushController</tt> rather than from
+     * the subclass, and report the enqueue rate to it.  Null goes back to the subclass.
+     */
+    public void setFlushController(AdaptiveFlushController flushController) {
+        this.flushController = flushController;
+    }
+
+    /**
+     * While <tt>isSendingThrottled</tt>, flush at and cut batches at <tt>throttledBatchFactor</tt>
+     * times the batch size, so that messages go out in fewer, larger requests.  Byte limits
+     * still apply.  1 keeps the batch size as it is.
+     */
+    public void setThrottledBatchFactor(int throttledBatchFactor) {
+        if (throttledBatchFactor <= 0) {
+            throw new IllegalArgumentException("Throttled batch factor must be at least 1");
+        }
+        this.throttledBatchFactor = throttledBatchFactor;
+    }
+
+    /**
+     * Return the batch size currently flushed at, which the flush controller may change.
+     */
+    public int getCurrentMessagesPerRequest() {
+        return messagesPerRequest();
+    }
+
+    /**
+     * Return true to leave messages in the buffer rather than drain them, for instance while
+     * the endpoint refuses requests.  Checked before every scheduled flush.
+     */
+    public boolean isSendingPaused() {
+        return false;
+    }
+
+    /**
+     * Return true while the endpoint asks for fewer requests, for instance after throttling
+     * them, to send larger batches.
+     */
+    public boolean isSendingThrottled() {
+        return false;
+    }
+
+    /**
+     * Return how long until the max flush interval forces the next flush, or 0 if it is due.
+     */
+    public long getTimeUntilFlushMs() {
+        return Math.max(0, timeOfLastFlush + maxFlushIntervalMs() - System.currentTimeMillis());
+    }
+
+    public long getInFlightBytes() {
+        synchronized (inFlight) {
+            return inFlightBytes;
+        }
+    }
+
+    public int getInFlightRequests() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
     @Override
     public void run() {
-        if (needsFlushing()) {
+        AdaptiveFlushController controller = flushController;
+        if (controller != null) {
+            controller.recordQueueSize(messageQueue.size());
+        }
+        if (needsFlushing() && !isSendingPaused()) {
             try {
                 flushAndSend();
             }
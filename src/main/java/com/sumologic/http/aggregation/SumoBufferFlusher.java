@@ -27,17 +27,28 @@
 package com.sumologic.http.aggregation;
 
 import com.sumologic.http.queue.BufferWithEviction;
-import com.sumologic.http.sender.SumoBufferFlushingTask;
+import com.sumologic.http.sender.AbstractSumoFlushingTask;
+import com.sumologic.http.sender.SumoBatchEntityFlushingTask;
 import com.sumologic.http.sender.SumoHttpSender;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class SumoBufferFlusher {
-    private SumoBufferFlushingTask flushingTask;
+    private AbstractSumoFlushingTask<?> flushingTask;
+    private SumoHttpSender sender;
+    private AdaptiveFlushController flushController;
+    private BufferWithEviction<String> buffer;
+    private long maxBytesPerRequest = Long.MAX_VALUE;
+    private boolean eventDriven = false;
+    private EventDrivenFlushing eventDrivenFlushing;
     private ScheduledFuture future;
     private ScheduledExecutorService executor;
     private long flushingAccuracyMs;
     private boolean flushBeforeStop;
+    private int maxInFlightRequests = 1;
+    private long maxInFlightBytes = Long.MAX_VALUE;
 
 
     public SumoBufferFlusher(
@@ -49,10 +60,75 @@ public class SumoBufferFlusher {
             boolean flushAllBeforeStopping) {
         this.flushBeforeStop = flushAllBeforeStopping;
         this.flushingAccuracyMs = flushingAccuracyMs;
-        flushingTask = new SumoBufferFlushingTask(buffer);
+        this.buffer = buffer;
+        flushingTask = new SumoBatchEntityFlushingTask(buffer);
         flushingTask.setMessagesPerRequest(messagesPerRequest);
         flushingTask.setMaxFlushIntervalMs(maxFlushIntervalMs);
         flushingTask.setSender(sender);
+        this.sender = sender;
+    }
+
+    /**
+     * Deliver up to <tt>maxInFlightRequests</tt> batches concurrently while the next ones are
+     * drained.  1, the default, sends one batch at a time on the flushing thread.  The sender
+     * needs at least as many connections.  Takes effect on <tt>start</tt>; batches still in
+     * flight at <tt>stop</tt> are only waited for when flushing all before stopping, and
+     * are otherwise left to finish until the sender is closed.
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        if (maxInFlightRequests <= 0) {
+            throw new IllegalArgumentException("Max in-flight requests must be at least 1");
+        }
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    /**
+     * Limit the bytes held by batches in flight; until enough are delivered, messages stay in
+     * the buffer and count against its capacity.  Takes effect on <tt>start</tt>.
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Cut batches at <tt>maxBytesPerRequest</tt> bytes as well as at the message count, and
+     * flush as soon as that many bytes are queued.
+     */
+    public void setMaxBytesPerRequest(long maxBytesPerRequest) {
+        this.maxBytesPerRequest = maxBytesPerRequest;
+        flushingTask.setMaxBytesPerRequest(maxBytesPerRequest);
+    }
+
+    /**
+     * Grow batches by <tt>throttledBatchFactor</tt> while Sumo Logic is throttling requests.
+     * Defaults to <tt>BufferFlushingTask.DEFAULT_THROTTLED_BATCH_FACTOR</tt>.
+     */
+    public void setThrottledBatchFactor(int throttledBatchFactor) {
+        flushingTask.setThrottledBatchFactor(throttledBatchFactor);
+    }
+
+    /**
+     * Let <tt>flushController</tt> choose the batch size and flush interval, within its bounds,
+     * from the enqueue rate and the responses the sender gets.  Null goes back to the values
+     * given to the constructor.
+     */
+    public void setFlushController(AdaptiveFlushController flushController) {
+        this.flushController = flushController;
+        flushingTask.setFlushController(flushController);
+        sender.setFlushController(flushController);
+    }
+
+    public AdaptiveFlushController getFlushController() {
+        return flushController;
+    }
+
+    /**
+     * Instead of checking the buffer every <tt>flushingAccuracyMs</tt>, sleep until the buffer
+     * signals that a batch is ready or the max flush interval runs out.  An empty buffer is not
+     * checked at all until something is added.  Takes effect on <tt>start</tt>.
+     */
+    public void setEventDriven(boolean eventDriven) {
+        this.eventDriven = eventDriven;
     }
 
     public void start() {
@@ -70,9 +146,22 @@ public class SumoBufferFlusher {
             });
 
 
-        future =
-            executor.
-                scheduleAtFixedRate(flushingTask, 0, flushingAccuracyMs, TimeUnit.MILLISECONDS);
+        if (maxInFlightRequests > 1) {
+            // The sender sends asynchronously on its own threads, or on none with the async engine
+            flushingTask.setMaxInFlightRequests(maxInFlightRequests);
+            flushingTask.setMaxInFlightBytes(maxInFlightBytes);
+        }
+
+        if (eventDriven) {
+            eventDrivenFlushing = new EventDrivenFlushing();
+            future =
+                executor.
+                    schedule(eventDrivenFlushing, 0, TimeUnit.MILLISECONDS);
+        } else {
+            future =
+                executor.
+                    scheduleAtFixedRate(flushingTask, 0, flushingAccuracyMs, TimeUnit.MILLISECONDS);
+        }
 
     }
 
@@ -84,8 +173,21 @@ public class SumoBufferFlusher {
             future = null;
         }
 
+        if (eventDrivenFlushing != null) {
+            eventDrivenFlushing.stop();
+            eventDrivenFlushing = null;
+        }
+
         if (executor != null) {
             executor.shutdownNow();
+            if (eventDriven) {
+                // Let the flushing thread wind down before flushing from this one
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
 
         if (flushingTask != null && flushBeforeStop) {
@@ -93,7 +195,135 @@ public class SumoBufferFlusher {
             flushingTask.setMessagesPerRequest(1);
             flushingTask.flushAndSend();
         }
+
+        if (maxInFlightRequests > 1) {
+            if (flushBeforeStop) {
+                // Like the final flush above, wait for the batches still in flight
+                try {
+                    flushingTask.awaitInFlight();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            flushingTask.setSenderPool(null, 0);
+        }
     }
 
+    /**
+     * Flushes on the executor's thread, parking in between.  Adds that take the buffer to a full
+     * batch unpark it; otherwise it wakes up when the max flush interval is up.  While the
+     * buffer is empty the threshold is dropped to a single message, and the first message
+     * is given <tt>flushingAccuracyMs</tt> for others to join it.  The threshold follows the
+     * flush controller's batch size as it changes.
+     */
+    private class EventDrivenFlushing implements Runnable {
+        private final AtomicBoolean wakeRequested = new AtomicBoolean(false);
+        // Sending swallows interrupts, so stopping cannot rely on them alone
+        private volatile boolean stopped = false;
+        private volatile Thread flushingThread;
+        // Guarded by this, along with every change of the buffer's flush threshold
+        private boolean idle = false;
+
+        void stop() {
+            stopped = true;
+            Thread thread = flushingThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            this.flushingThread = Thread.currentThread();
+            updateFlushThreshold();
+            buffer.setFlushListener(new Runnable() {
+                @Override
+                public void run() {
+                    wake();
+                }
+            });
+            AdaptiveFlushController controller = flushController;
+            AdaptiveFlushController.Listener previousListener = null;
+            if (controller != null) {
+                previousListener = controller.getListener();
+                controller.setListener(new AdaptiveFlushController.Listener() {
+                    @Override
+                    public void messagesPerRequestChanged(int messagesPerRequest) {
+                        // A smaller batch may already be waiting, and no add would signal it
+                        if (updateFlushThreshold() && buffer.size() >= messagesPerRequest) {
+                            wake();
+                        }
+                    }
+                });
+            }
+
+            try {
+                while (!stopped && !Thread.currentThread().isInterrupted()) {
+                    flushingTask.run();
+                    if (!stopped) {
+                        awaitNextFlush();
+                    }
+                }
+            } finally {
+                buffer.setFlushListener(null);
+                if (controller != null) {
+                    controller.setListener(previousListener);
+                }
+            }
+        }
 
+        private void wake() {
+            if (wakeRequested.compareAndSet(false, true)) {
+                LockSupport.unpark(flushingThread);
+            }
+        }
+
+        /**
+         * Set the buffer's flush threshold to a single message while idle, and to the current
+         * batch size otherwise.
+         * @return false while idle
+         */
+        private synchronized boolean updateFlushThreshold() {
+            if (idle) {
+                buffer.setFlushThreshold(1, 1);
+            } else {
+                buffer.setFlushThreshold(flushingTask.getCurrentMessagesPerRequest(), maxBytesPerRequest);
+            }
+            return !idle;
+        }
+
+        private synchronized void setIdle(boolean idle) {
+            this.idle = idle;
+            updateFlushThreshold();
+        }
+
+        private void awaitNextFlush() {
+            if (buffer.size() == 0) {
+                setIdle(true);
+                try {
+                    // Anything added before the threshold was lowered did not signal
+                    if (buffer.size() == 0 && !wakeRequested.getAndSet(false)) {
+                        LockSupport.park(this);
+                    }
+                } finally {
+                    setIdle(false);
+                }
+
+                // Give a burst arriving after an idle spell as long to build up as polling would
+                wakeRequested.set(false);
+                if (!stopped) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushingAccuracyMs));
+                }
+            } else {
+                // Also covers a flush controller set after starting, which has no listener
+                updateFlushThreshold();
+                // While sending is paused an overdue flush would come round again straight away
+                long waitMs = flushingTask.isSendingPaused() ?
+                        flushingAccuracyMs : flushingTask.getTimeUntilFlushMs();
+                if (waitMs > 0 && !wakeRequested.getAndSet(false)) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMs));
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,259 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sumologic.http.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Admission stage in front of another buffer.  Elements are only passed on while they fit a
+ * messages-per-second and a bytes-per-second {@link TokenBucket}; over budget they are dropped
+ * or, with a sample rate of N, every Nth one is let through anyway.  When a
+ * {@link SummaryFactory} is set, a record saying how many elements were sampled out is added
+ * at most once per summary interval.
+ */
+public class AdmissionControlledBuffer<T> extends BufferWithEviction<T> {
+    public static final long DEFAULT_SUMMARY_INTERVAL_MS = 10000L;
+
+    public static final SummaryFactory<String> SAMPLED_OUT_SUMMARY = new SummaryFactory<String>() {
+        @Override
+        public String summary(long sampledOut) {
+            return sampledOut + " messages sampled out";
+        }
+    };
+
+    /**
+     * Builds the record reporting elements that were not admitted.
+     */
+    public interface SummaryFactory<T> {
+        T summary(long sampledOut);
+    }
+
+    private final BufferWithEviction<T> buffer;
+    private final CostAssigner<T> costAssigner;
+    private final TokenBucket messageBucket;
+    private final TokenBucket byteBucket;
+
+    private volatile int sampleRate = 0;
+    private volatile SummaryFactory<T> summaryFactory = null;
+    private volatile long summaryIntervalMs = DEFAULT_SUMMARY_INTERVAL_MS;
+
+    private final AtomicLong overBudget = new AtomicLong(0);
+    private final AtomicLong pendingSampledOut = new AtomicLong(0);
+    private final AtomicLong sampledOutCount = new AtomicLong(0);
+    private final AtomicLong lastSummaryNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param buffer the buffer admitted elements are added to
+     * @param costAssigner gives the size of an element in bytes
+     * @param messagesPerSecond message budget, or 0 for no limit
+     * @param bytesPerSecond byte budget, or 0 for no limit
+     */
+    public AdmissionControlledBuffer(BufferWithEviction<T> buffer, CostAssigner<T> costAssigner,
+                                     long messagesPerSecond, long bytesPerSecond) {
+        super(buffer == null ? 0 : buffer.getCapacity());
+
+        if (buffer == null) {
+            throw new IllegalArgumentException("Buffer cannot be null");
+        }
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+
+        this.buffer = buffer;
+        this.costAssigner = costAssigner;
+        // Allow a burst of one second's worth of budget
+        this.messageBucket = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messagesPerSecond) : null;
+        this.byteBucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+    }
+
+    public BufferWithEviction<T> getBuffer() {
+        return buffer;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set N so that one in every N elements over budget is admitted anyway.  0 or 1 drops
+     * everything over budget.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public SummaryFactory<T> getSummaryFactory() {
+        return summaryFactory;
+    }
+
+    public void setSummaryFactory(SummaryFactory<T> summaryFactory) {
+        this.summaryFactory = summaryFactory;
+    }
+
+    public long getSummaryIntervalMs() {
+        return summaryIntervalMs;
+    }
+
+    public void setSummaryIntervalMs(long summaryIntervalMs) {
+        this.summaryIntervalMs = summaryIntervalMs;
+    }
+
+    /**
+     * Return the number of elements refused by admission control.
+     */
+    public long getSampledOutCount() {
+        return sampledOutCount.get();
+    }
+
+    @Override
+    public void setFlushListener(Runnable listener) {
+        buffer.setFlushListener(listener);
+    }
+
+    @Override
+    public void setFlushThreshold(int size, long cost) {
+        buffer.setFlushThreshold(size, cost);
+    }
+
+    @Override
+    public long getCapacity() {
+        return buffer.getCapacity();
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        buffer.setCapacity(capacity);
+    }
+
+    @Override
+    protected T evict() {
+        return buffer.evict();
+    }
+
+    @Override
+    protected boolean evict(long cost) {
+        return buffer.evict(cost);
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public long cost() {
+        return buffer.cost();
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int atMost) {
+        // Also runs here so a summary goes out even when producers went quiet
+        maybeAddSummary(System.nanoTime());
+        return buffer.drainTo(collection, atMost);
+    }
+
+    @Override
+    public int drainTo(Batch<T> batch, int atMost, long maxCost) {
+        maybeAddSummary(System.nanoTime());
+        return buffer.drainTo(batch, atMost, maxCost);
+    }
+
+    @Override
+    public long drainPosition() {
+        return buffer.drainPosition();
+    }
+
+    @Override
+    public void acknowledge(long position) {
+        buffer.acknowledge(position);
+    }
+
+    @Override
+    public boolean add(T element) {
+        return add(element, true);
+    }
+
+    @Override
+    public boolean offer(T element) {
+        return add(element, false);
+    }
+
+    private boolean add(T element, boolean mayBlock) {
+        long now = System.nanoTime();
+        maybeAddSummary(now);
+
+        if (admit(costAssigner.cost(element), now)) {
+            return mayBlock ? buffer.add(element) : buffer.offer(element);
+        }
+
+        int rate = sampleRate;
+        if (rate > 1 && overBudget.getAndIncrement() % rate == 0) {
+            return mayBlock ? buffer.add(element) : buffer.offer(element);
+        }
+
+        sampledOutCount.incrementAndGet();
+        pendingSampledOut.incrementAndGet();
+        countDropped(1);
+        return false;
+    }
+
+    boolean admit(long bytes, long nowNanos) {
+        if (messageBucket != null && !messageBucket.tryAcquire(1, nowNanos)) {
+            return false;
+        }
+        if (byteBucket != null && !byteBucket.tryAcquire(bytes, nowNanos)) {
+            if (messageBucket != null) {
+                messageBucket.release(1);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    void maybeAddSummary(long nowNanos) {
+        SummaryFactory<T> factory = summaryFactory;
+        if (factory == null || pendingSampledOut.get() == 0) {
+            return;
+        }
+
+        long last = lastSummaryNanos.get();
+        if (nowNanos - last < TimeUnit.MILLISECONDS.toNanos(summaryIntervalMs) ||
+                !lastSummaryNanos.compareAndSet(last, nowNanos)) {
+            return;
+        }
+
+        long sampledOut = pendingSampledOut.getAndSet(0);
+        if (sampledOut > 0) {
+            // Bypasses the budget; it replaces the elements it reports on
+            buffer.add(factory.summary(sampledOut));
+        }
+    }
+}
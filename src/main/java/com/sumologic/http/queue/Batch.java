@@ -0,0 +1,103 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Reusable holder for a batch of drained elements and their total cost.  The backing array
+ * only grows, so a batch that is cleared and refilled on every flush stops allocating once it
+ * has reached the usual batch size.  The cost is accumulated as elements are added, for
+ * buffers that know it; elements added without one count as free.
+ */
+public class Batch<T> extends AbstractList<T> implements RandomAccess {
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    private Object[] elements;
+    private int size = 0;
+    private long cost = 0;
+
+    public Batch() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public Batch(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Initial capacity must be at least 1");
+        }
+        this.elements = new Object[initialCapacity];
+    }
+
+    /**
+     * Return the sum of the costs of the elements in the batch.
+     * @return the cost
+     */
+    public long cost() {
+        return cost;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return (T) elements[index];
+    }
+
+    @Override
+    public boolean add(T element) {
+        add(element, 0);
+        return true;
+    }
+
+    public void add(T element, long elementCost) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+        elements[size++] = element;
+        cost += elementCost;
+    }
+
+    /**
+     * Empty the batch, keeping the backing array for the next fill.
+     */
+    @Override
+    public void clear() {
+        // Drop the references so delivered elements can be collected
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+        cost = 0;
+    }
+}
@@ -27,14 +27,28 @@
 package com.sumologic.http.queue;
 
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A concurrent buffer with a maximum capacity that, upon reaching said capacity, evicts some
- * element in the queue to ensure the new element can fit.
+ * element in the queue to ensure the new element can fit.  Implementations may support other
+ * {@link OverflowPolicy overflow policies}; every implementation counts what happened to the
+ * elements that did not fit.
  */
 public abstract class BufferWithEviction<Q> {
 
-    private long capacity;
+    private volatile long capacity;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private final AtomicLong evictedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong blockedCount = new AtomicLong(0);
+    private final AtomicLong timedOutCount = new AtomicLong(0);
+    private final AtomicLong spilledCount = new AtomicLong(0);
+
+    private volatile Runnable flushListener = null;
+    private volatile int flushThresholdSize = Integer.MAX_VALUE;
+    private volatile long flushThresholdCost = Long.MAX_VALUE;
 
     public BufferWithEviction(long capacity) {
         this.capacity = capacity;
@@ -44,8 +58,120 @@ public abstract class BufferWithEviction<Q> {
         return capacity;
     }
 
+    /**
+     * Change the capacity of the buffer while it is in use.  When shrinking, the oldest
+     * elements are evicted until the contents fit.
+     * @param capacity the new capacity
+     */
     public void setCapacity(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
         this.capacity = capacity;
+        evict(0);
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null || !supportsOverflowPolicy(overflowPolicy)) {
+            throw new IllegalArgumentException("Overflow policy " + overflowPolicy + " not supported by " +
+                    getClass().getSimpleName());
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Return whether this buffer implements <tt>policy</tt>.  Only DROP_OLDEST by default.
+     */
+    protected boolean supportsOverflowPolicy(OverflowPolicy policy) {
+        return policy == OverflowPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * Return the number of queued elements evicted to make room for newer ones.
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Return the number of new elements rejected because they did not fit.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Return the number of adds that had to wait for room.
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * Return the number of adds that gave up waiting for room.
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /**
+     * Return the number of elements handed to an overflow buffer.
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * Set a listener run by the adding thread whenever an add leaves the buffer at or above the
+     * flush threshold, so that a consumer can sleep until there is enough to drain.  It runs on
+     * every such add and must be cheap.
+     * @param listener the listener, or null for none
+     */
+    public void setFlushListener(Runnable listener) {
+        this.flushListener = listener;
+    }
+
+    /**
+     * Set the number of elements, or the total cost, at which the flush listener is run.
+     */
+    public void setFlushThreshold(int size, long cost) {
+        this.flushThresholdSize = size;
+        this.flushThresholdCost = cost;
+    }
+
+    /**
+     * Run the flush listener if the buffer has reached the flush threshold.  Implementations
+     * call this after every successful add.
+     */
+    protected void signalIfFlushThresholdReached() {
+        Runnable listener = flushListener;
+        if (listener != null && (cost() >= flushThresholdCost || size() >= flushThresholdSize)) {
+            listener.run();
+        }
+    }
+
+    protected void countEvicted(long count) {
+        evictedCount.addAndGet(count);
+    }
+
+    protected void countDropped(long count) {
+        droppedCount.addAndGet(count);
+    }
+
+    protected void countBlocked(long count) {
+        blockedCount.addAndGet(count);
+    }
+
+    protected void countTimedOut(long count) {
+        timedOutCount.addAndGet(count);
+    }
+
+    protected void countSpilled(long count) {
+        spilledCount.addAndGet(count);
     }
 
 
@@ -55,4 +181,66 @@ public abstract class BufferWithEviction<Q> {
     public abstract int drainTo(Collection<Q> collection, int atMost);
     public abstract boolean add(Q element);
 
+    /**
+     * Add <tt>element</tt> without waiting for room, for callers that must not block, such as
+     * the thread that drains the buffer.  Where <tt>add</tt> would wait, the element is
+     * rejected instead; otherwise the same as <tt>add</tt>.
+     * @return true if the element was added
+     */
+    public boolean offer(Q element) {
+        return add(element);
+    }
+
+    /**
+     * Return the sum of the costs of the elements in the buffer, or 0 if the buffer does not
+     * keep track of it.
+     * @return the cost
+     */
+    public long cost() {
+        return 0;
+    }
+
+    /**
+     * Move up to <tt>atMost</tt> elements into a caller-owned batch that is reused between
+     * drains.
+     * @param batch the batch to add to
+     * @param atMost the maximum number of elements to drain
+     * @return the number of elements drained
+     */
+    public int drainTo(Batch<Q> batch, int atMost) {
+        return drainTo(batch, atMost, Long.MAX_VALUE);
+    }
+
+    /**
+     * Move up to <tt>atMost</tt> elements into a caller-owned batch, stopping before the batch
+     * cost would exceed <tt>maxCost</tt>; the first element is always taken so that an
+     * oversized one cannot stall the buffer.  Buffers that keep each element's cost override
+     * this to fill in the batch cost without allocating; the default drains as any other
+     * collection, at no cost and ignoring <tt>maxCost</tt>.
+     * @param batch the batch to add to
+     * @param atMost the maximum number of elements to drain
+     * @param maxCost the maximum total cost to drain
+     * @return the number of elements drained
+     */
+    public int drainTo(Batch<Q> batch, int atMost, long maxCost) {
+        return drainTo((Collection<Q>) batch, atMost);
+    }
+
+    /**
+     * Return a position covering every element handed out by <tt>drainTo</tt> so far.  Once
+     * those elements have been delivered, the position is passed back to <tt>acknowledge</tt>.
+     * @return the drain position
+     */
+    public long drainPosition() {
+        return 0;
+    }
+
+    /**
+     * Confirm delivery of everything drained up to <tt>position</tt>.  Only buffers that
+     * persist their contents need to act on this.
+     * @param position a value previously returned by <tt>drainPosition</tt>
+     */
+    public void acknowledge(long position) {
+    }
+
 }
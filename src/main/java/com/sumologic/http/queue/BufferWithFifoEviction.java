@@ -31,18 +31,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.sumologic.http.queue.CostBoundedConcurrentQueue.CostAssigner;
 
 /**
  * Buffer for one concurrent producer and one concurrent consumer which takes members of
- * the queue in batches.
+ * the queue in batches.  Supports every {@link OverflowPolicy}.
  */
 public class BufferWithFifoEviction<T> extends BufferWithEviction<T> {
     private static final Logger logger = LoggerFactory.getLogger(BufferWithFifoEviction.class);
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 1000L;
+
     private CostBoundedConcurrentQueue<T> queue;
     private CostAssigner<T> costAssigner;
 
+    private final ReentrantLock addLock = new ReentrantLock();
+    // Producers blocked by the BLOCK policy park here until drainTo frees room
+    private final Condition notFull = addLock.newCondition();
+    private volatile int waiters = 0;
+    private volatile long blockTimeoutMs = DEFAULT_BLOCK_TIMEOUT_MS;
+    private volatile BufferWithEviction<T> spillBuffer = null;
+    // Changed and read under the queue's monitor, so every cost change is accounted exactly once
+    private volatile MemoryBudget.Registration budgetShare = null;
+
     public BufferWithFifoEviction(long capacity, CostAssigner<T> costAssigner) {
         super(capacity);
 
@@ -57,30 +71,126 @@ public class BufferWithFifoEviction<T> extends BufferWithEviction<T> {
         this.costAssigner = costAssigner;
     }
 
+    public long getBlockTimeoutMs() {
+        return blockTimeoutMs;
+    }
+
+    /**
+     * Set how long <tt>add</tt> waits for room under the BLOCK policy before dropping the
+     * element.
+     */
+    public void setBlockTimeoutMs(long blockTimeoutMs) {
+        this.blockTimeoutMs = blockTimeoutMs;
+    }
+
+    public BufferWithEviction<T> getSpillBuffer() {
+        return spillBuffer;
+    }
+
+    /**
+     * Set the buffer that receives overflow under the SPILL policy.  Once anything has been
+     * spilled, new elements also go there until it is drained, so elements keep their order.
+     */
+    public void setSpillBuffer(BufferWithEviction<T> spillBuffer) {
+        this.spillBuffer = spillBuffer;
+    }
+
+    @Override
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == OverflowPolicy.SPILL && spillBuffer == null) {
+            throw new IllegalStateException("A spill buffer must be set before using the SPILL policy");
+        }
+        super.setOverflowPolicy(overflowPolicy);
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        addLock.lock();
+        try {
+            super.setCapacity(capacity);
+            queue.setCapacity(capacity);
+            // Blocked producers may fit now
+            notFull.signalAll();
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        MemoryBudget.Registration share = budgetShare;
+        return share == null ? null : share.getBudget();
+    }
+
+    /**
+     * Share <tt>budget</tt> with other buffers.  Elements are only queued once their cost has
+     * been reserved from the budget as well as fitting this buffer's own capacity.
+     * @param budget the shared budget, or null to stop using one
+     * @param guarantee the cost this buffer can always hold regardless of the others
+     */
+    public void setMemoryBudget(MemoryBudget budget, long guarantee) {
+        addLock.lock();
+        try {
+            MemoryBudget.Registration previous;
+            synchronized (queue) {
+                previous = budgetShare;
+                budgetShare = null;
+            }
+            if (previous != null) {
+                previous.unregister();
+            }
+
+            if (budget != null) {
+                // Registered before charging, the budget cannot evict from a buffer holding nothing
+                MemoryBudget.Registration share = budget.register(this, guarantee);
+                synchronized (queue) {
+                    share.charge(queue.cost());
+                    budgetShare = share;
+                }
+            }
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    @Override
+    protected boolean supportsOverflowPolicy(OverflowPolicy policy) {
+        return true;
+    }
+
     @Override
     protected T evict() {
-        return queue.poll();
+        T element;
+        synchronized (queue) {
+            long costBefore = queue.cost();
+            element = queue.poll();
+            releaseBudget(costBefore);
+        }
+        if (element != null) {
+            countEvicted(1);
+        }
+        return element;
     }
 
     /**
-     * Make room for inserting an element with cost <tt>cost</tt>
+     * Make room for inserting an element with cost <tt>cost</tt>.  Whole segments of the
+     * queue are dropped at once, so this stays cheap even when many small elements must go.
      * @param cost the desired cost to evict
      * @return true if eviction was successful, false otherwise.
      */
     protected boolean evict(long cost) {
 
-        int numEvicted = 0;
-
-
         if (cost > getCapacity()) return false;
 
         long targetCost = getCapacity() - cost;
-        do {
-            numEvicted++;
-            evict();
-        } while (queue.cost() > targetCost);
+        int numEvicted;
+        synchronized (queue) {
+            long costBefore = queue.cost();
+            numEvicted = queue.evict(targetCost);
+            releaseBudget(costBefore);
+        }
 
         if (numEvicted > 0) {
+            countEvicted(numEvicted);
             logger.warn("Evicted " + numEvicted + " messages from buffer");
         }
 
@@ -89,22 +199,181 @@ public class BufferWithFifoEviction<T> extends BufferWithEviction<T> {
 
     @Override
     public int size() {
-        return queue.size();
+        BufferWithEviction<T> spill = spillBuffer;
+        return queue.size() + (spill == null ? 0 : spill.size());
+    }
+
+    @Override
+    public long cost() {
+        BufferWithEviction<T> spill = spillBuffer;
+        return queue.cost() + (spill == null ? 0 : spill.cost());
     }
 
     @Override
     public int drainTo(Collection<T> collection, int atMost) {
-        return queue.drainTo(collection, atMost);
+        int elementsDrained;
+        synchronized (queue) {
+            long costBefore = queue.cost();
+            elementsDrained = queue.drainTo(collection, atMost);
+            releaseBudget(costBefore);
+        }
+
+        BufferWithEviction<T> spill = spillBuffer;
+        if (spill != null && elementsDrained < atMost) {
+            elementsDrained += spill.drainTo(collection, atMost - elementsDrained);
+        }
+
+        wakeBlockedProducers(elementsDrained);
+        return elementsDrained;
     }
 
     @Override
-    synchronized public boolean add(T element) {
-        boolean wasSuccessful = queue.offer(element);
-        if (! wasSuccessful) {
-            evict(costAssigner.cost(element));
-            return queue.offer(element);
+    public int drainTo(Batch<T> batch, int atMost, long maxCost) {
+        int elementsDrained;
+        synchronized (queue) {
+            long costBefore = queue.cost();
+            elementsDrained = queue.drainTo(batch, atMost, maxCost);
+            releaseBudget(costBefore);
         }
 
-        return true;
+        BufferWithEviction<T> spill = spillBuffer;
+        if (spill != null && elementsDrained < atMost && batch.cost() < maxCost) {
+            elementsDrained += spill.drainTo(batch, atMost - elementsDrained, maxCost);
+        }
+
+        wakeBlockedProducers(elementsDrained);
+        return elementsDrained;
+    }
+
+    private void wakeBlockedProducers(int elementsDrained) {
+        if (elementsDrained > 0 && waiters > 0) {
+            addLock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                addLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean add(T element) {
+        boolean added = addOrOverflow(element, true);
+        if (added) {
+            signalIfFlushThresholdReached();
+        }
+        return added;
+    }
+
+    /**
+     * Add <tt>element</tt> like <tt>add</tt>, except that under the BLOCK policy a full
+     * buffer rejects it straight away.  Rejections are not counted as dropped; the caller
+     * still holds the element.
+     */
+    @Override
+    public boolean offer(T element) {
+        boolean added = addOrOverflow(element, false);
+        if (added) {
+            signalIfFlushThresholdReached();
+        }
+        return added;
+    }
+
+    private boolean addOrOverflow(T element, boolean mayBlock) {
+        Envelope<T> envelope = new Envelope<T>(element, costAssigner.cost(element));
+        addLock.lock();
+        try {
+            OverflowPolicy policy = getOverflowPolicy();
+            if (policy == OverflowPolicy.SPILL && spillBuffer.size() > 0) {
+                return spill(element);
+            }
+
+            boolean wasSuccessful = offer(envelope);
+            if (! wasSuccessful) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        break;
+                    case BLOCK:
+                        return mayBlock && awaitRoom(envelope);
+                    case SPILL:
+                        return spill(element);
+                    default:
+                        evict(envelope.getCost());
+                        wasSuccessful = offer(envelope);
+                }
+            }
+
+            if (! wasSuccessful) {
+                countDropped(1);
+            }
+            return wasSuccessful;
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    private boolean offer(Envelope<T> envelope) {
+        MemoryBudget.Registration share = budgetShare;
+        if (share == null) {
+            return queue.offer(envelope);
+        }
+
+        // Reserved outside the queue's monitor, the budget may evict from other buffers
+        if (!share.reserve(envelope.getCost())) {
+            return false;
+        }
+        if (queue.offer(envelope)) {
+            return true;
+        }
+        share.release(envelope.getCost());
+        return false;
+    }
+
+    // Called holding the queue's monitor
+    private void releaseBudget(long costBefore) {
+        MemoryBudget.Registration share = budgetShare;
+        if (share != null) {
+            share.release(costBefore - queue.cost());
+        }
+    }
+
+    private boolean spill(T element) {
+        if (spillBuffer.add(element)) {
+            countSpilled(1);
+            return true;
+        }
+        countDropped(1);
+        return false;
+    }
+
+    // Called with addLock held; awaiting releases it so other producers and drainTo proceed
+    private boolean awaitRoom(Envelope<T> envelope) {
+        if (envelope.getCost() > getCapacity()) {
+            countDropped(1);
+            return false;
+        }
+
+        countBlocked(1);
+        long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+        while (true) {
+            // Registered before re-checking, so a drain in between cannot miss us
+            waiters++;
+            try {
+                if (offer(envelope)) {
+                    return true;
+                }
+                if (nanos <= 0) {
+                    countTimedOut(1);
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                countDropped(1);
+                return false;
+            } finally {
+                waiters--;
+            }
+        }
     }
 }
@@ -24,16 +24,19 @@
  * under the License.
  */
 
+
 package com.sumologic.http.queue;
 
 import java.util.Collection;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A queue with a maximum capacity, where capacity is defined as the sum of the lengths of the
  * strings it contains.  It implements a strict subset of the functionality of interface
  * <tt>java.util.Queue</tt>
+ *
+ * Elements are kept in a chain of fixed-size segments, each wrapped in an {@link Envelope} that
+ * carries the cost computed when it was offered; each segment also keeps the total cost of its
+ * elements, so <tt>evict</tt> can drop a whole segment at once.
  */
 public class CostBoundedConcurrentQueue<T> {
 
@@ -41,26 +44,58 @@ public class CostBoundedConcurrentQueue<T> {
         public long cost(T e);
     }
 
-    private LinkedBlockingQueue<T> queue;
+    static final int SEGMENT_SIZE = 256;
+
+    private static class Segment {
+        final Envelope<?>[] envelopes = new Envelope<?>[SEGMENT_SIZE];
+        int head = 0;
+        int tail = 0;
+        long cost = 0;
+        Segment next = null;
+
+        int size() {
+            return tail - head;
+        }
+    }
+
     private CostAssigner<T> costAssigner;
 
-    private long capacity = 0;
-    private AtomicLong cost = new AtomicLong(0);
+    private volatile long capacity = 0;
+    // Written under the queue's monitor, read without it
+    private volatile long cost = 0;
+    private volatile int size = 0;
+
+    private Segment headSegment = new Segment();
+    private Segment tailSegment = headSegment;
+    // An emptied segment kept for reuse, so a queue that is drained regularly stops allocating
+    private Segment spare = null;
 
 
     public CostBoundedConcurrentQueue(long capacity, CostAssigner<T> costAssigner) {
-        this.queue = new LinkedBlockingQueue<T>();
         this.costAssigner = costAssigner;
         this.capacity = capacity;
     }
 
 
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Change the capacity.  Elements already queued are kept even if they no longer fit; use
+     * <tt>evict</tt> to trim them.
+     * @param capacity the new capacity
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
     /**
      * Return the sum of the costs of all the elements contained in the queue.
      * @return the cost
      */
     public long cost() {
-        return cost.get();
+        return cost;
     }
 
     /**
@@ -68,7 +103,7 @@ public class CostBoundedConcurrentQueue<T> {
      * @return the count
      */
     public int size() {
-        return queue.size();
+        return size;
     }
 
 
@@ -78,13 +113,64 @@ public class CostBoundedConcurrentQueue<T> {
      * @param collection Destination collection
      * @return the number of elements transferred
      */
-    public int drainTo(Collection<T> collection, int atMost) {
+    public synchronized int drainTo(Collection<T> collection, int atMost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost && size > 0) {
+            collection.add(pollHead().getElement());
+            elementsDrained++;
+        }
 
-        assert collection.isEmpty();
+        return elementsDrained;
+    }
 
-        int elementsDrained = queue.drainTo(collection, atMost);
-        for (T e: collection) {
-            cost.addAndGet(- costAssigner.cost(e));
+    /**
+     * Removes up to <tt>atMost</tt> elements from this queue and adds them, with their cost, to
+     * the given batch.  Nothing is allocated.
+     *
+     * @param batch Destination batch
+     * @return the number of elements transferred
+     */
+    public int drainTo(Batch<T> batch, int atMost) {
+        return drainTo(batch, atMost, Long.MAX_VALUE);
+    }
+
+    /**
+     * Removes elements from this queue and adds them, with their cost, to the given batch
+     * until <tt>atMost</tt> have been moved or the next one would take the batch cost over
+     * <tt>maxCost</tt>.  An empty batch always takes the head, however large.
+     *
+     * @param batch Destination batch
+     * @return the number of elements transferred
+     */
+    public synchronized int drainTo(Batch<T> batch, int atMost, long maxCost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost && size > 0) {
+            Segment segment = headSegment;
+            Envelope<?> head = segment.envelopes[segment.head];
+            if (!batch.isEmpty() && batch.cost() + head.getCost() > maxCost) {
+                break;
+            }
+
+            Envelope<T> envelope = pollHead();
+            batch.add(envelope.getElement(), envelope.getCost());
+            elementsDrained++;
+        }
+
+        return elementsDrained;
+    }
+
+    /**
+     * Removes up to <tt>atMost</tt> elements from this queue and adds them, still wrapped with
+     * their cost and enqueue time, to the given collection.
+     *
+     * @param collection Destination collection
+     * @return the number of elements transferred
+     */
+    public synchronized int drainEnvelopesTo(Collection<Envelope<T>> collection, int atMost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost && size > 0) {
+            collection.add(pollHead());
+            elementsDrained++;
         }
 
         return elementsDrained;
@@ -100,32 +186,132 @@ public class CostBoundedConcurrentQueue<T> {
      *         false is no space is currently available.
      */
     public boolean offer(T e) {
-        long eCost = costAssigner.cost(e);
+        return offer(new Envelope<T>(e, costAssigner.cost(e)));
+    }
+
+    /**
+     * Inserts an element whose cost has already been assigned, under the same conditions as
+     * <tt>offer(T)</tt>.
+     *
+     * @param envelope Element to insert, with its cost
+     * @return true if element was successfully inserted;
+     *         false is no space is currently available.
+     */
+    public boolean offer(Envelope<T> envelope) {
+        long eCost = envelope.getCost();
 
-        // Atomically check capacity and optimistically increase usage
         synchronized (this) {
-            if (eCost + cost.get() > capacity) {
+            if (eCost + cost > capacity) {
                 return false;
-            } else {
-                cost.addAndGet(eCost);
             }
+
+            Segment segment = tailSegment;
+            if (segment.tail == SEGMENT_SIZE) {
+                segment = newSegment();
+                tailSegment.next = segment;
+                tailSegment = segment;
+            }
+            segment.envelopes[segment.tail] = envelope;
+            segment.tail++;
+            segment.cost += eCost;
+            cost += eCost;
+            size++;
         }
 
-        // Underlying queue is unbounded, so this is guaranteed to succeed.
-        return queue.add(e);
+        return true;
     }
 
     /**
      * Retrieves and removes the head of this queue, or returns null if this queue is empty.
      * @return The head of this queue
      */
-    public T poll() {
-        T e = queue.poll();
-        if (e != null)
-            cost.addAndGet(-costAssigner.cost(e));
+    public synchronized T poll() {
+        if (size == 0) {
+            return null;
+        }
+        return pollHead().getElement();
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue wrapped with its cost, or returns
+     * null if this queue is empty.
+     * @return The head of this queue
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Envelope<T> peekEnvelope() {
+        if (size == 0) {
+            return null;
+        }
+        return (Envelope<T>) headSegment.envelopes[headSegment.head];
+    }
+
+    /**
+     * Removes elements from the head of this queue until the total cost is at most
+     * <tt>targetCost</tt>.  Whole segments are dropped in constant time as long as the queue
+     * would still be above the target without them; only the segment where the target is
+     * reached is trimmed element by element.
+     *
+     * @param targetCost the cost to shrink to
+     * @return the number of elements removed
+     */
+    public synchronized int evict(long targetCost) {
+        int evicted = 0;
+
+        while (headSegment != tailSegment && cost - headSegment.cost > targetCost) {
+            Segment dropped = headSegment;
+            headSegment = dropped.next;
+            evicted += dropped.size();
+            cost -= dropped.cost;
+            size -= dropped.size();
+            // The dropped segment still references its elements, so it is not reused
+        }
+
+        while (cost > targetCost && size > 0) {
+            pollHead();
+            evicted++;
+        }
+
+        return evicted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Envelope<T> pollHead() {
+        Segment segment = headSegment;
+        int index = segment.head;
+        Envelope<T> e = (Envelope<T>) segment.envelopes[index];
+        long eCost = e.getCost();
+        segment.envelopes[index] = null;
+        segment.head++;
+        segment.cost -= eCost;
+        cost -= eCost;
+        size--;
+
+        if (segment.head == segment.tail && segment != tailSegment) {
+            headSegment = segment.next;
+            recycle(segment);
+        } else if (size == 0) {
+            // Rewind the lone remaining segment instead of moving on to a new one
+            segment.head = 0;
+            segment.tail = 0;
+        }
 
         return e;
     }
 
+    private Segment newSegment() {
+        Segment segment = spare;
+        if (segment != null) {
+            spare = null;
+            return segment;
+        }
+        return new Segment();
+    }
 
+    private void recycle(Segment segment) {
+        segment.head = 0;
+        segment.tail = 0;
+        segment.cost = 0;
+        segment.next = null;
+        spare = segment;
+    }
 }
@@ -0,0 +1,319 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Repeat suppression stage in front of another buffer.  The first copy of an element is passed
+ * on as usual; exact repeats arriving within the window after it are only counted, and once
+ * the window has passed a single record carrying the count is added instead.
+ * <p>
+ * Recently seen elements are kept in a fixed-size, direct-mapped table: a slot holds one
+ * element, and a different element hashing to the same slot takes it over, adding the repeat
+ * record for the old one first.  Nothing is allocated on the <tt>add</tt> path apart from
+ * the repeat records themselves.
+ * <p>
+ * The table is guarded by a set of striped locks, so producers adding different elements
+ * rarely wait on each other, and elements and repeat records are added to the underlying
+ * buffer outside of them.  Repeat records flushed by <tt>drainTo</tt> are offered without
+ * waiting for room, since the draining thread is the one that makes room; those that do not
+ * fit are tried again on the next drain.
+ */
+public class DeduplicatingBuffer<T> extends BufferWithEviction<T> {
+    public static final int DEFAULT_TABLE_SIZE = 1024;
+    public static final long DEFAULT_WINDOW_MS = 1000L;
+    private static final int MAX_LOCK_STRIPES = 64;
+
+    public static final RepeatFormatter<String> STRING_REPEATS = new RepeatFormatter<String>() {
+        @Override
+        public String format(String message, long repeats) {
+            return "Message repeated " + repeats + " more times: " + message;
+        }
+    };
+
+    /**
+     * Builds the record standing in for the repeats of an element.
+     */
+    public interface RepeatFormatter<T> {
+        T format(T element, long repeats);
+    }
+
+    private final BufferWithEviction<T> buffer;
+    private final RepeatFormatter<T> formatter;
+    private final long windowNanos;
+
+    private final Object[] elements;
+    private final int[] hashes;
+    private final long[] firstSeenNanos;
+    private final long[] repeats;
+    private final int mask;
+    // Slot i is guarded by locks[i & lockMask]
+    private final Object[] locks;
+    private final int lockMask;
+
+    private final AtomicLong suppressedCount = new AtomicLong(0);
+    // Repeat records the draining thread could not add without waiting, guarded by itself
+    private final ArrayDeque<T> pendingRepeats = new ArrayDeque<T>();
+
+    public DeduplicatingBuffer(BufferWithEviction<T> buffer, RepeatFormatter<T> formatter) {
+        this(buffer, formatter, DEFAULT_WINDOW_MS, DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     * @param buffer the buffer elements are added to
+     * @param formatter builds the repeat records
+     * @param windowMs how long repeats of an element are collapsed into one record
+     * @param tableSize number of distinct elements tracked at once, rounded up to a power of two
+     */
+    public DeduplicatingBuffer(BufferWithEviction<T> buffer, RepeatFormatter<T> formatter,
+                               long windowMs, int tableSize) {
+        super(buffer == null ? 0 : buffer.getCapacity());
+
+        if (buffer == null) {
+            throw new IllegalArgumentException("Buffer cannot be null");
+        }
+        if (formatter == null) {
+            throw new IllegalArgumentException("RepeatFormatter cannot be null");
+        }
+        if (tableSize <= 0 || tableSize > (1 << 30)) {
+            throw new IllegalArgumentException("Table size must be between 1 and 2^30");
+        }
+
+        this.buffer = buffer;
+        this.formatter = formatter;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+
+        int size = Integer.highestOneBit(tableSize);
+        if (size < tableSize) {
+            size <<= 1;
+        }
+        this.elements = new Object[size];
+        this.hashes = new int[size];
+        this.firstSeenNanos = new long[size];
+        this.repeats = new long[size];
+        this.mask = size - 1;
+
+        this.locks = new Object[Math.min(size, MAX_LOCK_STRIPES)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.lockMask = locks.length - 1;
+    }
+
+    public BufferWithEviction<T> getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Return the number of repeats that were counted instead of added.
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    @Override
+    public void setFlushListener(Runnable listener) {
+        buffer.setFlushListener(listener);
+    }
+
+    @Override
+    public void setFlushThreshold(int size, long cost) {
+        buffer.setFlushThreshold(size, cost);
+    }
+
+    @Override
+    public long getCapacity() {
+        return buffer.getCapacity();
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        buffer.setCapacity(capacity);
+    }
+
+    @Override
+    protected T evict() {
+        return buffer.evict();
+    }
+
+    @Override
+    protected boolean evict(long cost) {
+        return buffer.evict(cost);
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public long cost() {
+        return buffer.cost();
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int atMost) {
+        // Drain first, so that the repeat records have room to go into
+        int elementsDrained = buffer.drainTo(collection, atMost);
+        flushRepeats(System.nanoTime(), false);
+        return elementsDrained;
+    }
+
+    @Override
+    public int drainTo(Batch<T> batch, int atMost, long maxCost) {
+        int elementsDrained = buffer.drainTo(batch, atMost, maxCost);
+        flushRepeats(System.nanoTime(), false);
+        return elementsDrained;
+    }
+
+    @Override
+    public long drainPosition() {
+        return buffer.drainPosition();
+    }
+
+    @Override
+    public void acknowledge(long position) {
+        buffer.acknowledge(position);
+    }
+
+    @Override
+    public boolean add(T element) {
+        return add(element, System.nanoTime());
+    }
+
+    @SuppressWarnings("unchecked")
+    boolean add(T element, long nowNanos) {
+        int hash = spread(element.hashCode());
+        int slot = hash & mask;
+
+        T replaced = null;
+        long replacedRepeats = 0;
+        synchronized (locks[slot & lockMask]) {
+            Object seen = elements[slot];
+            if (seen != null && hashes[slot] == hash && seen.equals(element) &&
+                    nowNanos - firstSeenNanos[slot] < windowNanos) {
+                repeats[slot]++;
+                suppressedCount.incrementAndGet();
+                return true;
+            }
+
+            if (seen != null && repeats[slot] > 0) {
+                replaced = (T) seen;
+                replacedRepeats = repeats[slot];
+            }
+            elements[slot] = element;
+            hashes[slot] = hash;
+            firstSeenNanos[slot] = nowNanos;
+            repeats[slot] = 0;
+        }
+
+        // Outside the lock, a full buffer may make us wait
+        if (replaced != null) {
+            buffer.add(formatter.format(replaced, replacedRepeats));
+        }
+        return buffer.add(element);
+    }
+
+    /**
+     * Add the repeat records for every tracked element.  Use before shutting down so that no
+     * counts are lost.
+     */
+    public void flushRepeats() {
+        flushRepeats(System.nanoTime(), true);
+    }
+
+    /**
+     * Add the repeat records whose window has passed, or all of them.  Records are added with
+     * <tt>add</tt> when flushing all of them, and offered otherwise; the latter runs on the
+     * draining thread, which must not wait for room only it can make.
+     */
+    @SuppressWarnings("unchecked")
+    void flushRepeats(long nowNanos, boolean all) {
+        if (!addPendingRepeats(all)) {
+            // Still no room for the older records; leave the rest in the table for now
+            return;
+        }
+
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            for (int slot = stripe; slot < elements.length; slot += locks.length) {
+                T element;
+                long count;
+                synchronized (locks[stripe]) {
+                    if (elements[slot] == null || (!all && nowNanos - firstSeenNanos[slot] < windowNanos)) {
+                        continue;
+                    }
+                    element = (T) elements[slot];
+                    count = repeats[slot];
+                    elements[slot] = null;
+                    repeats[slot] = 0;
+                }
+
+                if (count > 0) {
+                    T record = formatter.format(element, count);
+                    if (all) {
+                        buffer.add(record);
+                    } else {
+                        synchronized (pendingRepeats) {
+                            if (!pendingRepeats.isEmpty() || !buffer.offer(record)) {
+                                pendingRepeats.addLast(record);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Return true if no records are left waiting
+    private boolean addPendingRepeats(boolean mayBlock) {
+        while (true) {
+            T record;
+            synchronized (pendingRepeats) {
+                record = pendingRepeats.peekFirst();
+                if (record == null) {
+                    return true;
+                }
+                if (!mayBlock && !buffer.offer(record)) {
+                    return false;
+                }
+                pendingRepeats.pollFirst();
+            }
+            // Not under the monitor, the draining thread would wait for it
+            if (mayBlock) {
+                buffer.add(record);
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.sumologic.http.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer that records every message in a {@link WriteAheadLog} before queueing it in memory,
+ * for at-least-once delivery across crashes.  The log is only truncated once the flusher
+ * acknowledges that a drained batch was delivered; unacknowledged messages left over from a
+ * previous run are queued again on construction, ahead of anything added later.
+ *
+ * Records are forced to disk by group commit, so a machine crash can lose up to
+ * <tt>syncIntervalMs</tt> of messages; a killed process loses none.  Messages evicted from the
+ * in-memory queue because it is full are dropped as usual, but stay in the log until a later
+ * acknowledgement passes them.  The log is capped at <tt>maxLogBytes</tt>; beyond that its oldest
+ * records are given up even if they were not delivered yet.
+ */
+public class DurableBufferWithFifoEviction extends BufferWithEviction<String> {
+    private static final Logger logger = LoggerFactory.getLogger(DurableBufferWithFifoEviction.class);
+
+    private static class Record {
+        final String message;
+        final long position;
+
+        Record(String message, long position) {
+            this.message = message;
+            this.position = position;
+        }
+    }
+
+    private final CostBoundedConcurrentQueue<Record> queue;
+    private final CostAssigner<String> costAssigner;
+    private final WriteAheadLog log;
+    private final List<Record> drained = new ArrayList<Record>();
+    private volatile long drainPosition = 0;
+
+    public DurableBufferWithFifoEviction(long capacity, CostAssigner<String> costAssigner,
+                                         File logDirectory, long syncIntervalMs) throws IOException {
+        this(capacity, costAssigner, logDirectory, syncIntervalMs, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public DurableBufferWithFifoEviction(long capacity, CostAssigner<String> costAssigner,
+                                         File logDirectory, long syncIntervalMs,
+                                         long segmentSize) throws IOException {
+        this(capacity, costAssigner, logDirectory, syncIntervalMs, segmentSize, WriteAheadLog.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param capacity maximum cost of the messages queued in memory
+     * @param costAssigner cost function for messages
+     * @param logDirectory directory of the write-ahead log
+     * @param syncIntervalMs interval of the group commit forcing the log to disk
+     * @param segmentSize size in bytes of each log segment file
+     * @param maxLogBytes maximum total size in bytes of the log segment files
+     */
+    public DurableBufferWithFifoEviction(long capacity, final CostAssigner<String> costAssigner,
+                                         File logDirectory, long syncIntervalMs,
+                                         long segmentSize, long maxLogBytes) throws IOException {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.costAssigner = costAssigner;
+        this.queue = new CostBoundedConcurrentQueue<Record>(capacity, new CostAssigner<Record>() {
+            @Override
+            public long cost(Record e) {
+                return costAssigner.cost(e.message);
+            }
+        });
+        this.log = new WriteAheadLog(logDirectory, syncIntervalMs, segmentSize, maxLogBytes);
+
+        final int[] replayed = {0};
+        log.replay(new WriteAheadLog.RecordHandler() {
+            @Override
+            public void handle(byte[] record, long position) {
+                String message = new String(record, StandardCharsets.UTF_8);
+                enqueue(new Envelope<Record>(new Record(message, position), costAssigner.cost(message)));
+                replayed[0]++;
+            }
+        });
+        if (replayed[0] > 0) {
+            logger.info("Replayed " + replayed[0] + " unacknowledged messages from " + logDirectory);
+        }
+    }
+
+    @Override
+    public synchronized void setCapacity(long capacity) {
+        super.setCapacity(capacity);
+        queue.setCapacity(capacity);
+    }
+
+    @Override
+    protected String evict() {
+        Record record = queue.poll();
+        return record == null ? null : record.message;
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    protected boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
+
+        long targetCost = getCapacity() - cost;
+        int numEvicted = queue.evict(targetCost);
+
+        if (numEvicted > 0) {
+            countEvicted(numEvicted);
+            logger.warn("Evicted " + numEvicted + " messages from buffer");
+        }
+
+        return true;
+    }
+
+    @Override
+    public long cost() {
+        return queue.cost();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int drainTo(Collection<String> collection, int atMost) {
+        drained.clear();
+        int elementsDrained = queue.drainTo(drained, atMost);
+        for (Record record : drained) {
+            collection.add(record.message);
+            // Messages that could not be logged have no position
+            if (record.position > drainPosition) {
+                drainPosition = record.position;
+            }
+        }
+        drained.clear();
+        return elementsDrained;
+    }
+
+    /**
+     * Drain into <tt>batch</tt> with the costs computed when the messages were added, stopping
+     * before the batch cost would exceed <tt>maxCost</tt>.
+     */
+    @Override
+    public int drainTo(Batch<String> batch, int atMost, long maxCost) {
+        int elementsDrained = 0;
+        // Holding the queue's monitor keeps evicting producers out between peek and poll
+        synchronized (queue) {
+            while (elementsDrained < atMost) {
+                Envelope<Record> head = queue.peekEnvelope();
+                if (head == null) break;
+                if (!batch.isEmpty() && batch.cost() + head.getCost() > maxCost) break;
+                queue.poll();
+                Record record = head.getElement();
+                batch.add(record.message, head.getCost());
+                if (record.position > drainPosition) {
+                    drainPosition = record.position;
+                }
+                elementsDrained++;
+            }
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public long drainPosition() {
+        return drainPosition;
+    }
+
+    @Override
+    public void acknowledge(long position) {
+        log.acknowledge(position);
+    }
+
+    @Override
+    synchronized public boolean add(String element) {
+        long cost = costAssigner.cost(element);
+        if (cost > getCapacity()) {
+            countDropped(1);
+            return false;
+        }
+
+        long position;
+        try {
+            position = log.append(element.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Could not append message to write-ahead log, queueing it without durability", e);
+            position = 0;
+        }
+        boolean added = enqueue(new Envelope<Record>(new Record(element, position), cost));
+        if (added) {
+            signalIfFlushThresholdReached();
+        }
+        return added;
+    }
+
+    /**
+     * Force pending log records to disk and close the log.
+     */
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private synchronized boolean enqueue(Envelope<Record> envelope) {
+        boolean wasSuccessful = queue.offer(envelope);
+        if (! wasSuccessful) {
+            evict(envelope.getCost());
+            return queue.offer(envelope);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+/**
+ * An element admitted to a buffer, together with the cost assigned to it and the time it was
+ * enqueued.  Both are captured once at admission, so the queue, eviction and drain paths never
+ * have to run the <tt>CostAssigner</tt> again.
+ */
+public final class Envelope<T> {
+    private final T element;
+    private final long cost;
+    private final long enqueueNanos;
+
+    public Envelope(T element, long cost) {
+        this.element = element;
+        this.cost = cost;
+        this.enqueueNanos = System.nanoTime();
+    }
+
+    public T getElement() {
+        return element;
+    }
+
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * Return the <tt>System.nanoTime()</tt> at which the element was admitted.
+     * @return the enqueue time
+     */
+    public long getEnqueueNanos() {
+        return enqueueNanos;
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shrinks a buffer while the heap is under pressure and grows it back once the pressure
+ * subsides, so that queued messages never push the host application into an
+ * <tt>OutOfMemoryError</tt>.
+ * <p>
+ * After every garbage collection the monitor looks at how full the tenured heap pools still
+ * are (their collection usage, the live set rather than garbage waiting to be collected).
+ * Young pools are left out: they are full right after every young collection whatever the
+ * live set, and G1's survivor space has no maximum at all.  At or
+ * above the high watermark the capacity is halved, evicting the oldest messages, down to a
+ * minimum; at or below the low watermark it is doubled, up to the capacity the buffer had
+ * when the monitor was created.
+ */
+public class HeapPressureMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(HeapPressureMonitor.class);
+    public static final double DEFAULT_HIGH_WATERMARK = 0.85;
+    public static final double DEFAULT_LOW_WATERMARK = 0.6;
+
+    // Notification type emitted by HotSpot collectors after each collection
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private final BufferWithEviction<?> buffer;
+    private final long maxCapacity;
+    private final long minCapacity;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+    private final NotificationListener listener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (GC_NOTIFICATION.equals(notification.getType())) {
+                update(heapUsage());
+            }
+        }
+    };
+
+    public HeapPressureMonitor(BufferWithEviction<?> buffer, long minCapacity) {
+        this(buffer, minCapacity, DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+    }
+
+    /**
+     * @param buffer the buffer to resize; its current capacity is the most it is grown back to
+     * @param minCapacity the least the buffer is shrunk to
+     * @param highWatermark fraction of the heap in use after a collection that triggers shrinking
+     * @param lowWatermark fraction of the heap in use after a collection that allows growing
+     */
+    public HeapPressureMonitor(BufferWithEviction<?> buffer, long minCapacity,
+                               double highWatermark, double lowWatermark) {
+        this(buffer, minCapacity, highWatermark, lowWatermark, ManagementFactory.getMemoryPoolMXBeans());
+    }
+
+    HeapPressureMonitor(BufferWithEviction<?> buffer, long minCapacity, double highWatermark,
+                        double lowWatermark, List<MemoryPoolMXBean> memoryPools) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Buffer cannot be null");
+        }
+        if (minCapacity <= 0 || minCapacity > buffer.getCapacity()) {
+            throw new IllegalArgumentException("Minimum capacity must be between 1 and the buffer capacity");
+        }
+        if (lowWatermark >= highWatermark || lowWatermark < 0 || highWatermark > 1) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= 1");
+        }
+
+        this.buffer = buffer;
+        this.maxCapacity = buffer.getCapacity();
+        this.minCapacity = minCapacity;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+
+        for (MemoryPoolMXBean pool : memoryPools) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() &&
+                !isYoung(pool)) {
+                pools.add(pool);
+            }
+        }
+    }
+
+    private static boolean isYoung(MemoryPoolMXBean pool) {
+        String name = pool.getName().toLowerCase();
+        return name.contains("eden") || name.contains("survivor") || name.contains("nursery");
+    }
+
+    public synchronized void start() {
+        if (!emitters.isEmpty()) return;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(listener, null, null);
+                emitters.add(emitter);
+            }
+        }
+
+        if (emitters.isEmpty()) {
+            logger.warn("No garbage collection notifications available, buffer will not be resized");
+        }
+    }
+
+    /**
+     * Stop listening and give the buffer back its full capacity.
+     */
+    public synchronized void stop() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // Already gone
+            }
+        }
+        emitters.clear();
+        buffer.setCapacity(maxCapacity);
+    }
+
+    /**
+     * Return the fullest tenured heap pool's usage after its last collection, as a fraction of
+     * its maximum size.  Pools without a defined maximum are not counted.
+     */
+    public double heapUsage() {
+        double usage = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage collectionUsage = pool.getCollectionUsage();
+            if (collectionUsage == null) continue;
+
+            // Against the committed size a pool would always look full
+            long max = collectionUsage.getMax();
+            if (max > 0) {
+                usage = Math.max(usage, (double) collectionUsage.getUsed() / max);
+            }
+        }
+        return usage;
+    }
+
+    synchronized void update(double usage) {
+        long capacity = buffer.getCapacity();
+        if (usage >= highWatermark && capacity > minCapacity) {
+            long newCapacity = Math.max(minCapacity, capacity / 2);
+            logger.warn("Heap " + Math.round(usage * 100) + "% full, shrinking buffer capacity to " + newCapacity);
+            buffer.setCapacity(newCapacity);
+        } else if (usage <= lowWatermark && capacity < maxCapacity) {
+            long newCapacity = Math.min(maxCapacity, capacity * 2);
+            logger.info("Heap pressure subsided, growing buffer capacity to " + newCapacity);
+            buffer.setCapacity(newCapacity);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory budget shared by several buffers in one JVM, capping the cost they hold between them
+ * no matter how many there are.  Each buffer registers with a guarantee, the cost it can
+ * always hold; guarantees must fit within the budget.  Beyond its guarantee a buffer borrows
+ * from whatever the others are not using.  When the budget is exhausted, room is made by
+ * evicting the oldest elements of whichever buffer is furthest above its guarantee, which may
+ * be the one adding.
+ */
+public class MemoryBudget {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    private final long total;
+    private final AtomicLong used = new AtomicLong(0);
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+    private long guaranteed = 0;
+
+    public MemoryBudget(long total) {
+        if (total <= 0) {
+            throw new IllegalArgumentException("Budget must be at least 1");
+        }
+        this.total = total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Return the cost currently held by all registered buffers.
+     */
+    public long used() {
+        return used.get();
+    }
+
+    public int registeredBuffers() {
+        return registrations.size();
+    }
+
+    synchronized Registration register(BufferWithEviction<?> buffer, long guarantee) {
+        if (guarantee < 0 || guaranteed + guarantee > total) {
+            throw new IllegalArgumentException("Guarantees cannot exceed the budget of " + total);
+        }
+        guaranteed += guarantee;
+        Registration registration = new Registration(buffer, guarantee);
+        registrations.add(registration);
+        return registration;
+    }
+
+    synchronized void unregister(Registration registration) {
+        if (registrations.remove(registration)) {
+            guaranteed -= registration.guarantee;
+            registration.release(registration.used.get());
+        }
+    }
+
+    /**
+     * A buffer's share of the budget.  The buffer reserves cost before queueing an element and
+     * releases it whenever elements leave, including when they are evicted on the budget's behalf.
+     */
+    final class Registration {
+        final BufferWithEviction<?> buffer;
+        final long guarantee;
+        final AtomicLong used = new AtomicLong(0);
+
+        private Registration(BufferWithEviction<?> buffer, long guarantee) {
+            this.buffer = buffer;
+            this.guarantee = guarantee;
+        }
+
+        MemoryBudget getBudget() {
+            return MemoryBudget.this;
+        }
+
+        void unregister() {
+            MemoryBudget.this.unregister(this);
+        }
+
+        boolean reserve(long cost) {
+            while (true) {
+                long current = used();
+                if (current + cost > total) break;
+                if (MemoryBudget.this.used.compareAndSet(current, current + cost)) {
+                    used.addAndGet(cost);
+                    return true;
+                }
+            }
+            return reserveEvicting(this, cost);
+        }
+
+        void release(long cost) {
+            if (cost != 0) {
+                used.addAndGet(-cost);
+                MemoryBudget.this.used.addAndGet(-cost);
+            }
+        }
+
+        /**
+         * Account for cost that is already queued, such as the contents of a buffer at the
+         * time it registers.
+         */
+        void charge(long cost) {
+            used.addAndGet(cost);
+            MemoryBudget.this.used.addAndGet(cost);
+        }
+    }
+
+    private synchronized boolean reserveEvicting(Registration reserving, long cost) {
+        if (cost > total) return false;
+
+        int numEvicted = 0;
+        try {
+            while (true) {
+                long current = used();
+                if (current + cost <= total) {
+                    if (used.compareAndSet(current, current + cost)) {
+                        reserving.used.addAndGet(cost);
+                        return true;
+                    }
+                    continue;
+                }
+
+                Registration victim = furthestAboveGuarantee(reserving, cost);
+                if (victim == null || victim.buffer.evict() == null) {
+                    return false;
+                }
+                numEvicted++;
+            }
+        } finally {
+            if (numEvicted > 0) {
+                logger.warn("Memory budget reached, evicted " + numEvicted + " messages");
+            }
+        }
+    }
+
+    private Registration furthestAboveGuarantee(Registration reserving, long cost) {
+        Registration victim = null;
+        long mostAbove = 0;
+        for (Registration registration : registrations) {
+            long held = registration.used.get();
+            if (held == 0) continue;
+
+            long above = held - registration.guarantee;
+            if (registration == reserving) {
+                above += cost;
+            }
+            if (above > mostAbove) {
+                mostAbove = above;
+                victim = registration;
+            }
+        }
+        return victim;
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Buffer that encodes messages to UTF-8 as they are added and keeps only the bytes, in direct
+ * memory outside the Java heap.  The cost of a message is its encoded length, so the capacity
+ * is the number of payload bytes held, and pending messages are invisible to the garbage
+ * collector until they are drained.
+ *
+ * Memory is organized in fixed-size segments.  Segments that have been fully drained are kept
+ * in a small pool and reused, so a steady-state buffer allocates no direct memory.  Each
+ * message is stored as a 4-byte length followed by its bytes and never spans two segments;
+ * a message too large for one segment gets a dedicated segment of its own.
+ */
+public class OffHeapBufferWithFifoEviction extends BufferWithEviction<String> {
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapBufferWithFifoEviction.class);
+    private static final int RECORD_HEADER_BYTES = 4;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private static class Segment {
+        // Written through its own position; read through readView's position
+        final ByteBuffer buffer;
+        final ByteBuffer readView;
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.readView = buffer.duplicate();
+        }
+
+        boolean hasUnread() {
+            return readView.position() < buffer.position();
+        }
+
+        void reset() {
+            buffer.clear();
+            readView.clear();
+        }
+    }
+
+    private final int segmentSize;
+    private int maxPooledSegments;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final ArrayDeque<Segment> pool = new ArrayDeque<Segment>();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] scratch = new byte[256];
+
+    private int size = 0;
+    private long cost = 0;
+
+    public OffHeapBufferWithFifoEviction(long capacity) {
+        this(capacity, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param capacity maximum number of encoded message bytes to hold
+     * @param segmentSize size in bytes of each direct memory segment
+     */
+    public OffHeapBufferWithFifoEviction(long capacity, int segmentSize) {
+        super(capacity);
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (segmentSize <= RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("Segment size must be more than " + RECORD_HEADER_BYTES + " bytes");
+        }
+
+        this.segmentSize = segmentSize;
+        this.maxPooledSegments = (int) Math.min(Integer.MAX_VALUE, capacity / segmentSize + 1);
+    }
+
+    /**
+     * Return the number of encoded bytes held by the buffer.
+     * @return the cost
+     */
+    @Override
+    public synchronized long cost() {
+        return cost;
+    }
+
+    /**
+     * Return the number of drained segments kept for reuse.
+     * @return the pool size
+     */
+    public synchronized int pooledSegments() {
+        return pool.size();
+    }
+
+    @Override
+    protected synchronized String evict() {
+        Segment head = headWithUnread();
+        if (head == null) return null;
+        return read(head);
+    }
+
+    @Override
+    public synchronized void setCapacity(long capacity) {
+        super.setCapacity(capacity);
+        maxPooledSegments = (int) Math.min(Integer.MAX_VALUE, capacity / segmentSize + 1);
+        while (pool.size() > maxPooledSegments) {
+            pool.pollLast();
+        }
+    }
+
+    /**
+     * Make room for inserting a message of <tt>cost</tt> bytes.  Evicted records are skipped
+     * over without being decoded.
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    protected synchronized boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
+
+        int numEvicted = 0;
+        long targetCost = getCapacity() - cost;
+        while (this.cost > targetCost) {
+            Segment head = headWithUnread();
+            if (head == null) break;
+            ByteBuffer view = head.readView;
+            int length = view.getInt(view.position());
+            view.position(view.position() + RECORD_HEADER_BYTES + length);
+            this.cost -= length;
+            size--;
+            numEvicted++;
+        }
+
+        if (numEvicted > 0) {
+            countEvicted(numEvicted);
+            logger.warn("Evicted " + numEvicted + " messages from buffer");
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<String> collection, int atMost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost) {
+            Segment head = headWithUnread();
+            if (head == null) break;
+            collection.add(read(head));
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    /**
+     * Drain into <tt>batch</tt> with each message's encoded length as its cost, stopping
+     * before the batch cost would exceed <tt>maxCost</tt>.  The length is read from the record
+     * header, so a message that does not fit is left undecoded.
+     */
+    @Override
+    public synchronized int drainTo(Batch<String> batch, int atMost, long maxCost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost) {
+            Segment head = headWithUnread();
+            if (head == null) break;
+            ByteBuffer view = head.readView;
+            int length = view.getInt(view.position());
+            if (!batch.isEmpty() && batch.cost() + length > maxCost) break;
+            batch.add(read(head), length);
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public synchronized boolean add(String element) {
+        int length = Utf8.encodedLength(element);
+        if (length + cost > getCapacity()) {
+            if (!evict(length)) {
+                countDropped(1);
+                return false;
+            }
+        }
+
+        Segment tail = writableSegment(RECORD_HEADER_BYTES + length);
+        ByteBuffer buffer = tail.buffer;
+        buffer.putInt(length);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(element), buffer, true);
+        encoder.flush(buffer);
+
+        cost += length;
+        size++;
+        signalIfFlushThresholdReached();
+        return true;
+    }
+
+    /**
+     * Return the oldest segment with unread records, recycling fully read segments on the way.
+     */
+    private Segment headWithUnread() {
+        while (!segments.isEmpty()) {
+            Segment head = segments.peekFirst();
+            if (head.hasUnread()) {
+                return head;
+            }
+            if (segments.size() == 1) {
+                // Empty tail; rewind it instead of recycling so writes can continue in place
+                head.reset();
+                return null;
+            }
+            recycle(segments.pollFirst());
+        }
+        return null;
+    }
+
+    private Segment writableSegment(int recordBytes) {
+        Segment tail = segments.peekLast();
+        if (tail != null && tail.buffer.remaining() >= recordBytes) {
+            return tail;
+        }
+
+        Segment segment;
+        if (recordBytes > segmentSize) {
+            segment = new Segment(ByteBuffer.allocateDirect(recordBytes));
+        } else if (!pool.isEmpty()) {
+            segment = pool.pollFirst();
+        } else {
+            segment = new Segment(ByteBuffer.allocateDirect(segmentSize));
+        }
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void recycle(Segment segment) {
+        // Oversized segments are left to the garbage collector
+        if (segment.buffer.capacity() == segmentSize && pool.size() < maxPooledSegments) {
+            segment.reset();
+            pool.addLast(segment);
+        }
+    }
+
+    private String read(Segment segment) {
+        ByteBuffer view = segment.readView;
+        int length = view.getInt();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        view.get(scratch, 0, length);
+        cost -= length;
+        size--;
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
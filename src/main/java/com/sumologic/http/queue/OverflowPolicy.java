@@ -0,0 +1,42 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+/**
+ * What a {@link BufferWithEviction} does with a new element when it is full.
+ */
+public enum OverflowPolicy {
+    /** Evict the oldest elements until the new one fits. */
+    DROP_OLDEST,
+    /** Reject the new element without touching the queued ones. */
+    DROP_NEWEST,
+    /** Make the producer wait, up to a timeout, until the consumer has freed enough room. */
+    BLOCK,
+    /** Hand the new element to a secondary overflow buffer, e.g. one that spills to disk. */
+    SPILL
+}
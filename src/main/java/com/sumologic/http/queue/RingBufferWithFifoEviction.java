@@ -0,0 +1,292 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.sumologic.http.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Lock-free buffer backed by a preallocated ring of slots.  Producers claim slots with a CAS on
+ * the tail and never take a monitor, so many threads can add concurrently.  When the ring runs
+ * out of cost or slots, the producer evicts the oldest element itself, which means the head is
+ * also claimed with a CAS rather than being owned by the single consumer.
+ *
+ * The cost of every element is recorded next to its slot at insertion, so eviction and
+ * <tt>drainTo</tt> never call the <tt>CostAssigner</tt> again.
+ */
+public class RingBufferWithFifoEviction<T> extends BufferWithEviction<T> {
+    private static final Logger logger = LoggerFactory.getLogger(RingBufferWithFifoEviction.class);
+
+    private final AtomicReferenceArray<T> elements;
+    private final long[] costs;
+    // Slot i is free for the producer at position p when sequences[i] == p, and holds an
+    // element for the consumer at position p when sequences[i] == p + 1.
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong cost = new AtomicLong(0);
+    private final CostAssigner<T> costAssigner;
+
+    /**
+     * @param capacity maximum total cost of the buffered elements
+     * @param slots maximum number of buffered elements, rounded up to a power of two
+     * @param costAssigner cost function for elements
+     */
+    public RingBufferWithFifoEviction(long capacity, int slots, CostAssigner<T> costAssigner) {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (slots <= 0 || slots > (1 << 30)) {
+            throw new IllegalArgumentException("Slots must be between 1 and 2^30");
+        }
+
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+
+        this.elements = new AtomicReferenceArray<T>(size);
+        this.costs = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.costAssigner = costAssigner;
+    }
+
+    /**
+     * Return the sum of the costs of all the elements contained in the buffer, including
+     * elements whose slot has been reserved but not yet published.
+     * @return the cost
+     */
+    @Override
+    public long cost() {
+        return cost.get();
+    }
+
+    /**
+     * Return the number of slots in the ring.
+     * @return the slot count
+     */
+    public int getSlots() {
+        return mask + 1;
+    }
+
+    @Override
+    protected T evict() {
+        return poll();
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt> by reserving it against the
+     * capacity, evicting the oldest elements as needed.
+     * @param cost the desired cost to evict
+     * @return true if the cost has been reserved, false if it can never fit.
+     */
+    protected boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
+
+        int numEvicted = 0;
+        while (true) {
+            long current = this.cost.get();
+            if (current + cost <= getCapacity()) {
+                if (this.cost.compareAndSet(current, current + cost)) {
+                    break;
+                }
+            } else if (evict() != null) {
+                numEvicted++;
+            } else {
+                // The cost belongs to producers that reserved it but have not published their
+                // element yet; they will be done shortly.
+                Thread.yield();
+            }
+        }
+
+        if (numEvicted > 0) {
+            countEvicted(numEvicted);
+            logger.warn("Evicted " + numEvicted + " messages from buffer");
+        }
+
+        return true;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) return 0;
+        return (int) Math.min(size, getSlots());
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int atMost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost) {
+            T e = poll();
+            if (e == null) break;
+            collection.add(e);
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    /**
+     * Drain into <tt>batch</tt> with the costs recorded at insertion, stopping before the
+     * batch cost would exceed <tt>maxCost</tt>.
+     */
+    @Override
+    public int drainTo(Batch<T> batch, int atMost, long maxCost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost && pollInto(batch, maxCost)) {
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public boolean add(T element) {
+        long eCost = costAssigner.cost(element);
+        if (!evict(eCost)) {
+            countDropped(1);
+            return false;
+        }
+
+        int numEvicted = 0;
+        while (!offer(element, eCost)) {
+            // Out of slots rather than cost
+            if (poll() != null) {
+                numEvicted++;
+            } else {
+                Thread.yield();
+            }
+        }
+
+        if (numEvicted > 0) {
+            countEvicted(numEvicted);
+            logger.warn("Evicted " + numEvicted + " messages from buffer");
+        }
+
+        signalIfFlushThresholdReached();
+        return true;
+    }
+
+    /**
+     * Publish an element whose cost has already been reserved.
+     * @return false if all slots are taken
+     */
+    private boolean offer(T element, long eCost) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    costs[index] = eCost;
+                    elements.lazySet(index, element);
+                    // Volatile write publishes the element and its cost to the consumer
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this buffer, or returns null if this buffer is empty.
+     * @return The head of this buffer
+     */
+    private T poll() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    return take(position, index);
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Move the head of this buffer into <tt>batch</tt>, unless the buffer is empty or the head
+     * would take a non-empty batch over <tt>maxCost</tt>.
+     * @return true if an element was moved
+     */
+    private boolean pollInto(Batch<T> batch, long maxCost) {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                // Only trusted if the CAS below succeeds, since the slot is not ours yet
+                long eCost = costs[index];
+                if (!batch.isEmpty() && batch.cost() + eCost > maxCost) {
+                    return false;
+                }
+                if (head.compareAndSet(position, position + 1)) {
+                    batch.add(take(position, index), eCost);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Empty a slot whose position has just been claimed from the head.
+     */
+    private T take(long position, int index) {
+        T e = elements.get(index);
+        long eCost = costs[index];
+        elements.lazySet(index, null);
+        // Hand the slot back to producers one lap ahead
+        sequences.set(index, position + mask + 1);
+        cost.addAndGet(-eCost);
+        return e;
+    }
+}
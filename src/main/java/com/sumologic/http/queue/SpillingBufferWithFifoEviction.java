@@ -0,0 +1,461 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+import static com.sumologic.http.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer that keeps a bounded in-memory head and, instead of evicting when it is full, appends
+ * overflow to memory-mapped segment files on local disk.  Once anything has been spilled, new
+ * messages keep going to disk until the spilled data is drained, so <tt>drainTo</tt> still
+ * returns messages in the order they were added.
+ *
+ * Disk usage is bounded separately from memory.  When a new segment would exceed the disk
+ * capacity, the oldest segment file is deleted along with the messages it holds.  Spill files
+ * are scratch space only; they are not replayed after a restart.
+ *
+ * Several buffers, in one process or many, may share a spill directory.  Each one claims a
+ * subdirectory of its own, <tt>sumo-spill-&lt;n&gt;</tt>, by holding a lock on a file inside it
+ * for as long as it is open, and only ever deletes segments in the subdirectory it holds.
+ * Segments found in a subdirectory that could be locked were left by a buffer that is gone.
+ */
+public class SpillingBufferWithFifoEviction extends BufferWithEviction<String> {
+    private static final Logger logger = LoggerFactory.getLogger(SpillingBufferWithFifoEviction.class);
+    private static final int RECORD_HEADER_BYTES = 4;
+    private static final String INSTANCE_PREFIX = "sumo-spill-";
+    private static final String LOCK_FILE = ".lock";
+    private static final String SEGMENT_PREFIX = "sumo-spill-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static class SpillSegment {
+        final File file;
+        final MappedByteBuffer buffer;
+        final ByteBuffer readView;
+        int written = 0;
+        int read = 0;
+
+        SpillSegment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.readView = buffer.duplicate();
+        }
+
+        boolean hasUnread() {
+            return read < written;
+        }
+    }
+
+    private final CostBoundedConcurrentQueue<String> memory;
+    private final CostAssigner<String> costAssigner;
+    private final File segmentDirectory;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final long diskCapacity;
+    private final int segmentSize;
+    private final ArrayDeque<SpillSegment> segments = new ArrayDeque<SpillSegment>();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] scratch = new byte[256];
+
+    private long nextSegmentId = 0;
+    private long diskBytes = 0;
+    private int spilledSize = 0;
+
+    public SpillingBufferWithFifoEviction(long capacity, CostAssigner<String> costAssigner,
+                                          File spillDirectory, long diskCapacity) {
+        this(capacity, costAssigner, spillDirectory, diskCapacity, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param capacity maximum cost of the in-memory head
+     * @param costAssigner cost function for the in-memory head
+     * @param spillDirectory directory for segment files, created if missing and shareable
+     * @param diskCapacity maximum total size in bytes of the segment files
+     * @param segmentSize size in bytes of each segment file
+     */
+    public SpillingBufferWithFifoEviction(long capacity, CostAssigner<String> costAssigner,
+                                          File spillDirectory, long diskCapacity, int segmentSize) {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (spillDirectory == null) {
+            throw new IllegalArgumentException("Spill directory cannot be null");
+        }
+        if (segmentSize <= RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("Segment size must be more than " + RECORD_HEADER_BYTES + " bytes");
+        }
+        if (diskCapacity < segmentSize) {
+            throw new IllegalArgumentException("Disk capacity must be at least one segment");
+        }
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create spill directory " + spillDirectory);
+        }
+
+        this.memory = new CostBoundedConcurrentQueue<String>(capacity, costAssigner);
+        this.costAssigner = costAssigner;
+        this.diskCapacity = diskCapacity;
+        this.segmentSize = segmentSize;
+
+        // Claim the first subdirectory no other open buffer holds
+        File directory;
+        RandomAccessFile file;
+        FileLock acquired;
+        for (int i = 0; ; i++) {
+            directory = new File(spillDirectory, INSTANCE_PREFIX + i);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalArgumentException("Cannot create spill directory " + directory);
+            }
+            file = null;
+            acquired = null;
+            try {
+                file = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+                acquired = file.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Held by another buffer in this process
+            } catch (IOException e) {
+                closeQuietly(file);
+                throw new IllegalArgumentException("Cannot lock spill directory " + directory, e);
+            }
+            if (acquired != null) break;
+            closeQuietly(file);
+        }
+        this.segmentDirectory = directory;
+        this.lockFile = file;
+        this.lock = acquired;
+
+        deleteStaleSegments();
+    }
+
+    /**
+     * Return the subdirectory of the spill directory that holds this buffer's segment files.
+     * @return the segment directory
+     */
+    public File getSegmentDirectory() {
+        return segmentDirectory;
+    }
+
+    /**
+     * Return the number of messages currently held on disk.
+     * @return the spilled count
+     */
+    public synchronized int spilledSize() {
+        return spilledSize;
+    }
+
+    /**
+     * Return the total size in bytes of the segment files currently on disk.
+     * @return the disk usage
+     */
+    public synchronized long diskBytes() {
+        return diskBytes;
+    }
+
+    @Override
+    public synchronized void setCapacity(long capacity) {
+        super.setCapacity(capacity);
+        memory.setCapacity(capacity);
+    }
+
+    @Override
+    protected synchronized String evict() {
+        String e = memory.poll();
+        if (e == null) {
+            SpillSegment head = headWithUnread();
+            if (head != null) {
+                e = read(head);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Make room in the in-memory head for an element with cost <tt>cost</tt>.  Overflow is
+     * normally spilled rather than evicted, so this is only used when spilling fails.
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    protected synchronized boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
+
+        long targetCost = getCapacity() - cost;
+        int numEvicted = memory.evict(targetCost);
+
+        if (numEvicted > 0) {
+            countEvicted(numEvicted);
+            logger.warn("Evicted " + numEvicted + " messages from buffer");
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+        return memory.size() + spilledSize;
+    }
+
+    /**
+     * Return the cost of the in-memory head; spilled messages are not counted.
+     * @return the cost
+     */
+    @Override
+    public long cost() {
+        return memory.cost();
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<String> collection, int atMost) {
+        int elementsDrained = memory.drainTo(collection, atMost);
+        while (elementsDrained < atMost) {
+            SpillSegment head = headWithUnread();
+            if (head == null) break;
+            collection.add(read(head));
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    /**
+     * Drain into <tt>batch</tt>, stopping before the batch cost would exceed <tt>maxCost</tt>.
+     * Spilled messages are costed with the same <tt>CostAssigner</tt> as the in-memory head
+     * once they have been decoded; one that does not fit is left on disk.
+     */
+    @Override
+    public synchronized int drainTo(Batch<String> batch, int atMost, long maxCost) {
+        int elementsDrained = memory.drainTo(batch, atMost, maxCost);
+        if (memory.size() > 0) {
+            // Stopped by the cost limit; spilled messages are newer and must wait
+            return elementsDrained;
+        }
+
+        while (elementsDrained < atMost) {
+            SpillSegment head = headWithUnread();
+            if (head == null) break;
+            ByteBuffer view = head.readView;
+            int position = view.position();
+            String e = decode(view);
+            long eCost = costAssigner.cost(e);
+            if (!batch.isEmpty() && batch.cost() + eCost > maxCost) {
+                view.position(position);
+                break;
+            }
+            head.read++;
+            spilledSize--;
+            batch.add(e, eCost);
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public synchronized boolean add(String element) {
+        boolean added = addToMemoryOrDisk(element);
+        if (added) {
+            signalIfFlushThresholdReached();
+        }
+        return added;
+    }
+
+    private boolean addToMemoryOrDisk(String element) {
+        // Anything added while data sits on disk must queue up behind it
+        Envelope<String> envelope = null;
+        if (spilledSize == 0) {
+            envelope = new Envelope<String>(element, costAssigner.cost(element));
+            if (memory.offer(envelope)) {
+                return true;
+            }
+        }
+
+        try {
+            return spill(element);
+        } catch (IOException e) {
+            logger.warn("Could not spill message to " + segmentDirectory + ", evicting from memory instead", e);
+            if (envelope != null && spilledSize == 0 && evict(envelope.getCost())) {
+                return memory.offer(envelope);
+            }
+            countDropped(1);
+            return false;
+        }
+    }
+
+    /**
+     * Delete all segment files and give up the segment directory.  Messages still on disk are
+     * lost.
+     */
+    public synchronized void close() {
+        while (!segments.isEmpty()) {
+            delete(segments.pollFirst());
+        }
+        spilledSize = 0;
+
+        // The lock file itself stays, so that no other buffer can end up locking a deleted one
+        try {
+            lock.release();
+        } catch (IOException e) {
+            logger.warn("Could not release lock on spill directory " + segmentDirectory, e);
+        }
+        closeQuietly(lockFile);
+    }
+
+    private boolean spill(String element) throws IOException {
+        int length = Utf8.encodedLength(element);
+        int recordBytes = RECORD_HEADER_BYTES + length;
+        if (recordBytes > diskCapacity) {
+            countDropped(1);
+            return false;
+        }
+
+        SpillSegment tail = segments.peekLast();
+        if (tail == null || tail.buffer.remaining() < recordBytes) {
+            tail = newSegment(Math.max(segmentSize, recordBytes));
+        }
+
+        ByteBuffer buffer = tail.buffer;
+        buffer.putInt(length);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(element), buffer, true);
+        encoder.flush(buffer);
+
+        tail.written++;
+        spilledSize++;
+        countSpilled(1);
+        return true;
+    }
+
+    private SpillSegment newSegment(int size) throws IOException {
+        int numDropped = 0;
+        while (!segments.isEmpty() && diskBytes + size > diskCapacity) {
+            SpillSegment oldest = segments.pollFirst();
+            numDropped += oldest.written - oldest.read;
+            delete(oldest);
+        }
+        if (numDropped > 0) {
+            countDropped(numDropped);
+            logger.warn("Disk capacity reached, dropped " + numDropped + " spilled messages");
+        }
+
+        File file = new File(segmentDirectory, SEGMENT_PREFIX + (nextSegmentId++) + SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer mapped;
+        try {
+            // The mapping stays valid after the file is closed
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+
+        SpillSegment segment = new SpillSegment(file, mapped);
+        segments.addLast(segment);
+        diskBytes += size;
+        return segment;
+    }
+
+    private SpillSegment headWithUnread() {
+        while (!segments.isEmpty()) {
+            SpillSegment head = segments.peekFirst();
+            if (head.hasUnread()) {
+                return head;
+            }
+            if (segments.size() == 1 && head.buffer.hasRemaining()) {
+                // Tail still has room for writes
+                return null;
+            }
+            delete(segments.pollFirst());
+        }
+        return null;
+    }
+
+    private void delete(SpillSegment segment) {
+        spilledSize -= segment.written - segment.read;
+        diskBytes -= segment.buffer.capacity();
+        // The mapping itself is released once the buffer is garbage collected
+        if (!segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+
+    private String read(SpillSegment segment) {
+        String e = decode(segment.readView);
+        segment.read++;
+        spilledSize--;
+        return e;
+    }
+
+    private String decode(ByteBuffer view) {
+        int length = view.getInt();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        view.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.warn("Could not close spill lock file", e);
+        }
+    }
+
+    private void deleteStaleSegments() {
+        File[] stale = segmentDirectory.listFiles();
+        if (stale == null) return;
+        for (File file : stale) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && !file.delete()) {
+                logger.warn("Could not delete stale spill file " + file);
+            }
+        }
+    }
+}
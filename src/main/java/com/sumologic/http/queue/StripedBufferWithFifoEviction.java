@@ -0,0 +1,298 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sumologic.http.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer that spreads producers over several independently locked stripes so that concurrent
+ * adds rarely contend.  A thread always writes to the same stripe, which keeps the elements of
+ * one producer in order.  All stripes share one cost budget; when it is exceeded the globally
+ * oldest element is evicted first, and <tt>drainTo</tt> merges the stripes oldest first.
+ * Non-empty stripes are kept in a heap ordered by the age of their head, so finding the oldest
+ * element does not visit every stripe.
+ */
+public class StripedBufferWithFifoEviction<T> extends BufferWithEviction<T> {
+    private static final Logger logger = LoggerFactory.getLogger(StripedBufferWithFifoEviction.class);
+
+    private static class Stripe<T> {
+        private final ArrayDeque<Envelope<T>> envelopes = new ArrayDeque<Envelope<T>>();
+        // Guarded by the heap lock: whether the stripe is in the heap, and its key there
+        private boolean queued;
+        private long headNanos;
+
+        // Stamping under the lock keeps every stripe sorted by enqueue time.  Returns true if
+        // the stripe was empty, in which case the caller has to put it back in the heap.
+        synchronized boolean add(T element, long cost) {
+            envelopes.addLast(new Envelope<T>(element, cost));
+            return envelopes.size() == 1;
+        }
+
+        synchronized Envelope<T> peek() {
+            return envelopes.peekFirst();
+        }
+
+        synchronized Envelope<T> pollIfCostAtMost(long maxCost) {
+            Envelope<T> head = envelopes.peekFirst();
+            if (head == null || head.getCost() > maxCost) {
+                return null;
+            }
+            return envelopes.pollFirst();
+        }
+    }
+
+    private static final Comparator<Stripe<?>> OLDEST_HEAD_FIRST = new Comparator<Stripe<?>>() {
+        @Override
+        public int compare(Stripe<?> a, Stripe<?> b) {
+            return Long.signum(a.headNanos - b.headNanos);
+        }
+    };
+
+    private final Stripe<T>[] stripes;
+    private final int mask;
+    // Only the heap paths remove elements, so a queued stripe's key is always its current head
+    private final PriorityQueue<Stripe<T>> oldest;
+    private final AtomicLong cost = new AtomicLong(0);
+    // Kept next to the cost so that size() takes no stripe locks; the flush threshold check
+    // calls it on every add
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final CostAssigner<T> costAssigner;
+
+    public StripedBufferWithFifoEviction(long capacity, CostAssigner<T> costAssigner) {
+        this(capacity, 2 * Runtime.getRuntime().availableProcessors(), costAssigner);
+    }
+
+    /**
+     * @param capacity maximum total cost shared by all stripes
+     * @param stripeCount number of stripes, rounded up to a power of two
+     * @param costAssigner cost function for elements
+     */
+    public StripedBufferWithFifoEviction(long capacity, int stripeCount, CostAssigner<T> costAssigner) {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (stripeCount <= 0 || stripeCount > (1 << 16)) {
+            throw new IllegalArgumentException("Stripe count must be between 1 and 2^16");
+        }
+
+        int size = Integer.highestOneBit(stripeCount);
+        if (size < stripeCount) {
+            size <<= 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        Stripe<T>[] created = (Stripe<T>[]) new Stripe<?>[size];
+        for (int i = 0; i < size; i++) {
+            created[i] = new Stripe<T>();
+        }
+        this.stripes = created;
+        this.mask = size - 1;
+        this.oldest = new PriorityQueue<Stripe<T>>(size, OLDEST_HEAD_FIRST);
+        this.costAssigner = costAssigner;
+    }
+
+    /**
+     * Return the sum of the costs of all the elements contained in the buffer.
+     * @return the cost
+     */
+    @Override
+    public long cost() {
+        return cost.get();
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    private Stripe<T> stripeForCurrentThread() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32));
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return stripes[hash & mask];
+    }
+
+    private Envelope<T> pollOldest() {
+        return pollOldest(Long.MAX_VALUE);
+    }
+
+    /**
+     * Remove the oldest envelope across all stripes, or return null if every stripe is empty
+     * or the oldest envelope costs more than <tt>maxCost</tt>.
+     */
+    private Envelope<T> pollOldest(long maxCost) {
+        Envelope<T> envelope;
+        synchronized (oldest) {
+            Stripe<T> stripe = oldest.peek();
+            if (stripe == null) {
+                return null;
+            }
+            envelope = stripe.pollIfCostAtMost(maxCost);
+            if (envelope == null) {
+                return null;
+            }
+
+            oldest.poll();
+            // A producer that refills the stripe after this peek finds it unqueued and requeues it
+            Envelope<T> head = stripe.peek();
+            if (head != null) {
+                stripe.headNanos = head.getEnqueueNanos();
+                oldest.add(stripe);
+            } else {
+                stripe.queued = false;
+            }
+        }
+
+        cost.addAndGet(-envelope.getCost());
+        count.decrementAndGet();
+        return envelope;
+    }
+
+    private void enqueueIfIdle(Stripe<T> stripe) {
+        synchronized (oldest) {
+            if (stripe.queued) {
+                return;
+            }
+            Envelope<T> head = stripe.peek();
+            if (head != null) {
+                stripe.headNanos = head.getEnqueueNanos();
+                stripe.queued = true;
+                oldest.add(stripe);
+            }
+        }
+    }
+
+    @Override
+    protected T evict() {
+        Envelope<T> envelope = pollOldest();
+        return envelope == null ? null : envelope.getElement();
+    }
+
+    /**
+     * Reserve <tt>cost</tt> against the shared budget, evicting the globally oldest elements
+     * as needed.
+     * @param cost the desired cost to evict
+     * @return true if the cost has been reserved, false if it can never fit.
+     */
+    protected boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
+
+        int numEvicted = 0;
+        while (true) {
+            long current = this.cost.get();
+            if (current + cost <= getCapacity()) {
+                if (this.cost.compareAndSet(current, current + cost)) {
+                    break;
+                }
+            } else if (pollOldest() != null) {
+                numEvicted++;
+            } else {
+                // Cost reserved by producers that have not added their envelope yet
+                Thread.yield();
+            }
+        }
+
+        if (numEvicted > 0) {
+            countEvicted(numEvicted);
+            logger.warn("Evicted " + numEvicted + " messages from buffer");
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the number of elements in the buffer.  It may briefly lag behind concurrent adds.
+     * @return the count
+     */
+    @Override
+    public int size() {
+        return Math.max(0, count.get());
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int atMost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost) {
+            Envelope<T> envelope = pollOldest();
+            if (envelope == null) break;
+            collection.add(envelope.getElement());
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    /**
+     * Drain into <tt>batch</tt> oldest first with the costs computed at insertion, stopping
+     * before the batch cost would exceed <tt>maxCost</tt>.
+     */
+    @Override
+    public int drainTo(Batch<T> batch, int atMost, long maxCost) {
+        int elementsDrained = 0;
+        while (elementsDrained < atMost) {
+            // An empty batch takes the oldest element however large
+            Envelope<T> envelope = pollOldest(batch.isEmpty() ? Long.MAX_VALUE : maxCost - batch.cost());
+            if (envelope == null) break;
+            batch.add(envelope.getElement(), envelope.getCost());
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public boolean add(T element) {
+        long eCost = costAssigner.cost(element);
+        if (!evict(eCost)) {
+            countDropped(1);
+            return false;
+        }
+
+        Stripe<T> stripe = stripeForCurrentThread();
+        if (stripe.add(element, eCost)) {
+            enqueueIfIdle(stripe);
+        }
+        count.incrementAndGet();
+        signalIfFlushThresholdReached();
+        return true;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.  Rather than a token count, the bucket keeps the time at which it
+ * will next be full again; taking tokens pushes that time forward, and a take that would
+ * push it more than one burst past now is refused.  A single CAS per take, no refill thread.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long tokensPerSecond;
+    private final long burstNanos;
+    private final AtomicLong fullAtNanos;
+
+    /**
+     * @param tokensPerSecond refill rate
+     * @param burst tokens that can be taken at once from a full bucket
+     */
+    public TokenBucket(long tokensPerSecond, long burst) {
+        if (tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be at least 1");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("Burst must be at least 1");
+        }
+        this.tokensPerSecond = tokensPerSecond;
+        this.burstNanos = nanosFor(burst);
+        this.fullAtNanos = new AtomicLong(System.nanoTime());
+    }
+
+    public long getTokensPerSecond() {
+        return tokensPerSecond;
+    }
+
+    public boolean tryAcquire(long tokens) {
+        return tryAcquire(tokens, System.nanoTime());
+    }
+
+    boolean tryAcquire(long tokens, long nowNanos) {
+        long cost = nanosFor(tokens);
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long newFullAt = Math.max(fullAt - nowNanos, 0) + cost;
+            if (newFullAt > burstNanos) {
+                return false;
+            }
+            if (fullAtNanos.compareAndSet(fullAt, nowNanos + newFullAt)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Return tokens taken by a successful <tt>tryAcquire</tt> that ended up unused.
+     */
+    public void release(long tokens) {
+        fullAtNanos.addAndGet(-nanosFor(tokens));
+    }
+
+    private long nanosFor(long tokens) {
+        // Split to avoid overflowing on large token counts
+        return (tokens / tokensPerSecond) * NANOS_PER_SECOND +
+                (tokens % tokensPerSecond) * NANOS_PER_SECOND / tokensPerSecond;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+/**
+ * UTF-8 helpers shared by the buffers that store encoded messages instead of Strings.
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * Return the number of bytes <tt>s</tt> occupies in UTF-8, matching
+     * <tt>s.getBytes(StandardCharsets.UTF_8).length</tt> without encoding it.  Unpaired
+     * surrogates count as the single replacement byte the encoder writes for them.
+     * @param s the string to measure
+     * @return the encoded length in bytes
+     */
+    static int encodedLength(CharSequence s) {
+        int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                // Two chars become four bytes
+                bytes += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Replaced by '?'
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,399 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of byte records in a directory of segment files.  Appends are written to the
+ * file immediately, so they survive the process being killed, but are only forced to stable
+ * storage by a background group commit every <tt>syncIntervalMs</tt>, never once per record.
+ *
+ * Every record has a position: the offset just past it in the logical log.  Once the records
+ * up to a position are no longer needed, <tt>acknowledge</tt> lets whole segments behind it be
+ * deleted; the acknowledged position itself is checkpointed with the next group commit.
+ * On startup <tt>replay</tt> returns every record after the last checkpoint.
+ *
+ * The segment files are kept under <tt>maxBytes</tt> in total.  When a new segment would take
+ * the log over it, the oldest segments are deleted and treated as acknowledged, whether or not
+ * their records were delivered.
+ */
+public class WriteAheadLog {
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024 * 1024;
+
+    public static interface RecordHandler {
+        public void handle(byte[] record, long position);
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final ScheduledExecutorService syncExecutor;
+    private final CRC32 crc = new CRC32();
+    private byte[] writeBuffer = new byte[64 * 1024];
+
+    // Start positions of the segment files, oldest first
+    private final List<Long> segmentStarts = new ArrayList<Long>();
+    // RandomAccessFile rather than FileChannel, since interrupting a thread blocked in channel
+    // I/O closes the channel, and logging threads may be interrupted at any time
+    private RandomAccessFile file;
+    private long position;
+    private long acknowledged;
+    private long checkpointed;
+    private boolean dirty = false;
+    private long droppedBytes = 0;
+
+    public WriteAheadLog(File directory, long syncIntervalMs, long segmentSize) throws IOException {
+        this(directory, syncIntervalMs, segmentSize, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Open the log in <tt>directory</tt>, creating it if needed.
+     * @param directory directory holding the segment files and checkpoint
+     * @param syncIntervalMs how often appended records are forced to disk
+     * @param segmentSize size in bytes after which a new segment file is started
+     * @param maxBytes maximum total size in bytes of the segment files
+     */
+    public WriteAheadLog(File directory, long syncIntervalMs, long segmentSize, long maxBytes) throws IOException {
+        if (syncIntervalMs <= 0) {
+            throw new IllegalArgumentException("Sync interval must be at least 1 ms");
+        }
+        if (maxBytes < segmentSize) {
+            throw new IllegalArgumentException("Maximum log size must be at least one segment");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create write-ahead log directory " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.acknowledged = readCheckpoint();
+        this.checkpointed = acknowledged;
+
+        for (File file : listSegments()) {
+            segmentStarts.add(startOf(file));
+        }
+        if (segmentStarts.isEmpty()) {
+            position = acknowledged;
+            openSegment(position);
+        } else {
+            // Appends continue after the last complete record of the newest segment
+            long start = segmentStarts.get(segmentStarts.size() - 1);
+            long validLength = scan(segmentFile(start), start, null);
+            file = new RandomAccessFile(segmentFile(start), "rw");
+            file.setLength(validLength);
+            file.seek(validLength);
+            position = start + validLength;
+        }
+
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("SumoWriteAheadLogSyncThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    logger.warn("Could not sync write-ahead log", e);
+                }
+            }
+        }, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deliver every record after the last checkpoint to <tt>handler</tt>, oldest first.
+     */
+    public synchronized void replay(RecordHandler handler) throws IOException {
+        for (long start : segmentStarts) {
+            scan(segmentFile(start), start, handler);
+        }
+    }
+
+    /**
+     * Append a record.
+     * @return the position just past the record
+     */
+    public synchronized long append(byte[] record) throws IOException {
+        if (file == null) {
+            throw new IOException("Write-ahead log is closed");
+        }
+
+        int length = RECORD_HEADER_BYTES + record.length;
+        if (position - currentSegmentStart() + length > segmentSize &&
+            position > currentSegmentStart()) {
+            rollSegment();
+            enforceMaxBytes(Math.max(segmentSize, length));
+        }
+
+        if (writeBuffer.length < length) {
+            writeBuffer = new byte[length];
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        putInt(writeBuffer, 0, record.length);
+        putInt(writeBuffer, 4, (int) crc.getValue());
+        System.arraycopy(record, 0, writeBuffer, RECORD_HEADER_BYTES, record.length);
+        // One write call per record, so a crash can tear at most the last one
+        file.write(writeBuffer, 0, length);
+
+        position += length;
+        dirty = true;
+        return position;
+    }
+
+    /**
+     * Mark every record up to <tt>position</tt> as no longer needed.  Segments entirely behind
+     * it are deleted right away; the checkpoint is written with the next sync.
+     */
+    public synchronized void acknowledge(long position) {
+        if (position <= acknowledged) return;
+        acknowledged = Math.min(position, this.position);
+
+        // A segment can go once the next one starts at or before the acknowledged position
+        while (segmentStarts.size() > 1 && segmentStarts.get(1) <= acknowledged) {
+            File file = segmentFile(segmentStarts.remove(0));
+            if (!file.delete()) {
+                logger.warn("Could not delete write-ahead log segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Return the number of bytes of records deleted, unacknowledged, to stay under
+     * <tt>maxBytes</tt>.
+     */
+    public synchronized long droppedBytes() {
+        return droppedBytes;
+    }
+
+    public synchronized long position() {
+        return position;
+    }
+
+    public synchronized long acknowledgedPosition() {
+        return acknowledged;
+    }
+
+    /**
+     * Force appended records and the acknowledged position to disk.  Called periodically by
+     * the group commit thread.
+     */
+    public synchronized void sync() throws IOException {
+        if (file == null) return;
+        if (dirty) {
+            file.getFD().sync();
+            dirty = false;
+        }
+        if (checkpointed != acknowledged) {
+            writeCheckpoint(acknowledged);
+            checkpointed = acknowledged;
+        }
+    }
+
+    public void close() throws IOException {
+        syncExecutor.shutdown();
+        synchronized (this) {
+            sync();
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+    }
+
+    private long currentSegmentStart() {
+        return segmentStarts.get(segmentStarts.size() - 1);
+    }
+
+    private void rollSegment() throws IOException {
+        file.getFD().sync();
+        file.close();
+        openSegment(position);
+    }
+
+    /**
+     * Delete the oldest segments until the log, with a current segment that grows to
+     * <tt>currentSegmentBytes</tt>, fits in <tt>maxBytes</tt>.
+     */
+    private void enforceMaxBytes(long currentSegmentBytes) {
+        while (segmentStarts.size() > 1 &&
+               currentSegmentStart() + currentSegmentBytes - segmentStarts.get(0) > maxBytes) {
+            long start = segmentStarts.remove(0);
+            File file = segmentFile(start);
+            long next = segmentStarts.get(0);
+            if (next > acknowledged) {
+                long dropped = next - Math.max(start, acknowledged);
+                droppedBytes += dropped;
+                logger.warn("Write-ahead log reached " + maxBytes + " bytes, dropped " +
+                        dropped + " bytes of unacknowledged records");
+                acknowledged = next;
+            }
+            if (!file.delete()) {
+                logger.warn("Could not delete write-ahead log segment " + file);
+            }
+        }
+    }
+
+    private void openSegment(long start) throws IOException {
+        file = new RandomAccessFile(segmentFile(start), "rw");
+        segmentStarts.add(start);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private File segmentFile(long start) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, start, SEGMENT_SUFFIX));
+    }
+
+    private static long startOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private List<File> listSegments() {
+        File[] files = directory.listFiles();
+        List<File> segments = new ArrayList<File>();
+        if (files == null) return segments;
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                segments.add(file);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Read the records of one segment, handing those after the acknowledged position to
+     * <tt>handler</tt> if it is not null.
+     * @return the length of the segment up to its last complete, uncorrupted record
+     */
+    private long scan(File segment, long start, RecordHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        long offset = 0;
+        try {
+            CRC32 checksum = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int expected = in.readInt();
+                if (length < 0 || offset + RECORD_HEADER_BYTES + length > segment.length()) {
+                    throw new EOFException();
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                checksum.reset();
+                checksum.update(record, 0, length);
+                if ((int) checksum.getValue() != expected) {
+                    logger.warn("Corrupted record in write-ahead log segment " + segment + " at offset " + offset);
+                    break;
+                }
+
+                offset += RECORD_HEADER_BYTES + length;
+                if (handler != null && start + offset > acknowledged) {
+                    handler.handle(record, start + offset);
+                }
+            }
+        } catch (EOFException e) {
+            logger.warn("Incomplete record at the end of write-ahead log segment " + segment);
+        } finally {
+            in.close();
+        }
+        return offset;
+    }
+
+    private long readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists()) return 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readLong();
+        } catch (EOFException e) {
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCheckpoint(long position) throws IOException {
+        File temporary = new File(directory, CHECKPOINT_FILE + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+        try {
+            out.setLength(0);
+            out.writeLong(position);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), new File(directory, CHECKPOINT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
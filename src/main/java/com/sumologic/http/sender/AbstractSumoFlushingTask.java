@@ -0,0 +1,91 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import com.sumologic.http.aggregation.BufferFlushingTask;
+import com.sumologic.http.queue.BufferWithEviction;
+
+/**
+ * Settings and sender shared by the tasks that flush a buffer of messages to Sumo Logic,
+ * whatever form they aggregate a batch into.
+ */
+public abstract class AbstractSumoFlushingTask<Out> extends BufferFlushingTask<String, Out> {
+    private SumoHttpSender sender;
+    private long maxFlushIntervalMs;
+    private int messagesPerRequest;
+    private long maxBytesPerRequest = Long.MAX_VALUE;
+
+    protected AbstractSumoFlushingTask(BufferWithEviction<String> queue) {
+        super(queue);
+    }
+
+    public void setSender(SumoHttpSender sender) {
+        this.sender = sender;
+    }
+
+    protected SumoHttpSender getSender() {
+        return sender;
+    }
+
+    public void setMessagesPerRequest(int messagesPerRequest) {
+        this.messagesPerRequest = messagesPerRequest;
+    }
+
+    public void setMaxBytesPerRequest(long maxBytesPerRequest) {
+        this.maxBytesPerRequest = maxBytesPerRequest;
+    }
+
+    public void setMaxFlushIntervalMs(long maxFlushIntervalMs) {
+        this.maxFlushIntervalMs = maxFlushIntervalMs;
+    }
+
+    @Override
+    protected long getMaxFlushIntervalMs() {
+        return maxFlushIntervalMs;
+    }
+
+    @Override
+    protected int getMessagesPerRequest() {
+        return messagesPerRequest;
+    }
+
+    // Also below the size the sender learnt from requests rejected as too large
+    @Override
+    protected long getMaxBytesPerRequest() {
+        return sender != null ? Math.min(maxBytesPerRequest, sender.getMaxRequestBytes()) : maxBytesPerRequest;
+    }
+
+    @Override
+    public boolean isSendingPaused() {
+        return sender != null && sender.isSendingPaused();
+    }
+
+    @Override
+    public boolean isSendingThrottled() {
+        return sender != null && sender.isThrottled();
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.apache.http.HttpEntity;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * HTTP engine that posts without blocking the calling thread, so that a few I/O threads can
+ * drive many requests at once.  <tt>SumoHttpSender</tt> keeps the headers, retries and
+ * statistics; an engine only makes single attempts.
+ */
+public interface AsyncHttpEngine {
+
+    /**
+     * Start posting <tt>body</tt> to <tt>url</tt>.  The body must stay unchanged until the
+     * returned future completes.
+     * @return a future completing with the response, or exceptionally if no response was
+     * received
+     * @throws IllegalArgumentException if <tt>url</tt> is not a valid HTTP URL
+     */
+    CompletableFuture<Response> post(String url, Map<String, String> headers, HttpEntity body);
+
+    void close();
+
+    /**
+     * The parts of a response the sender looks at.
+     */
+    class Response {
+        private final int statusCode;
+        private final String retryAfter;
+
+        public Response(int statusCode, String retryAfter) {
+            this.statusCode = statusCode;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * Return the <tt>Retry-After</tt> header, or null if there was none.
+         */
+        public String getRetryAfter() {
+            return retryAfter;
+        }
+    }
+}
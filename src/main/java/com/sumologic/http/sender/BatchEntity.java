@@ -0,0 +1,329 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.apache.http.Consts;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Request body that messages are encoded into as UTF-8, straight into chunks taken from a
+ * {@link ByteChunkPool}, instead of being concatenated into a String and encoded again.  The
+ * entity is repeatable, so retries resend the same chunks.  Call <tt>release</tt> once the
+ * request is done to give the chunks back.
+ */
+public class BatchEntity extends AbstractHttpEntity {
+    private static final ContentType CONTENT_TYPE = ContentType.create("text/plain", Consts.UTF_8);
+
+    private final ByteChunkPool pool;
+    // Written in order, each holding bytes from 0 to its position
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    // Unmappable input becomes '?', as with String.getBytes
+    private final CharsetEncoder encoder = Consts.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private long length = 0;
+    // Where each message appended as text ends, so that the body can be split between them
+    private long[] messageEnds = null;
+    private int messageCount = 0;
+
+    public BatchEntity(ByteChunkPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool cannot be null");
+        }
+        this.pool = pool;
+        setContentType(CONTENT_TYPE.toString());
+    }
+
+    /**
+     * Encode <tt>message</tt> onto the end of the body.
+     */
+    public void append(CharSequence message) {
+        CharBuffer in = CharBuffer.wrap(message);
+        encoder.reset();
+        ByteBuffer chunk = chunks.isEmpty() ? nextChunk() : chunks.get(chunks.size() - 1);
+        int start = chunk.position();
+        while (encoder.encode(in, chunk, true).isOverflow()) {
+            length += chunk.position() - start;
+            chunk = nextChunk();
+            start = 0;
+        }
+        while (encoder.flush(chunk).isOverflow()) {
+            length += chunk.position() - start;
+            chunk = nextChunk();
+            start = 0;
+        }
+        length += chunk.position() - start;
+        addMessageEnd(length);
+    }
+
+    private void addMessageEnd(long end) {
+        if (messageEnds == null) {
+            messageEnds = new long[16];
+        } else if (messageCount == messageEnds.length) {
+            messageEnds = Arrays.copyOf(messageEnds, messageCount * 2);
+        }
+        messageEnds[messageCount++] = end;
+    }
+
+    private ByteBuffer nextChunk() {
+        ByteBuffer chunk = pool.take();
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    /**
+     * Copy raw bytes onto the end of the body.
+     */
+    void append(byte[] bytes, int offset, int count) {
+        while (count > 0) {
+            ByteBuffer chunk = writableChunk();
+            int n = Math.min(count, chunk.remaining());
+            chunk.put(bytes, offset, n);
+            length += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    // For writers that fill the chunk's array themselves: the last chunk if it has room,
+    // otherwise a new one.  They report what they wrote with advance.
+    ByteBuffer writableChunk() {
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        return chunk != null && chunk.hasRemaining() ? chunk : nextChunk();
+    }
+
+    void advance(ByteBuffer chunk, int count) {
+        chunk.position(chunk.position() + count);
+        length += count;
+    }
+
+    /**
+     * Give the chunks back to the pool, leaving the entity empty.
+     */
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            pool.give(chunk);
+        }
+        chunks.clear();
+        length = 0;
+        messageCount = 0;
+    }
+
+    /**
+     * Split the body in two at the message boundary nearest its middle or, when it holds a
+     * single message, at the character boundary nearest its middle, so that the message is
+     * sent in two pieces.  Each half is copied into a new entity from the same pool, which
+     * the caller releases; this body is left as it is.
+     * @return the two halves, or null if the body is too short to split
+     */
+    public BatchEntity[] split() {
+        long at = splitPoint();
+        if (at <= 0 || at >= length) {
+            return null;
+        }
+        BatchEntity first = new BatchEntity(pool);
+        BatchEntity second = new BatchEntity(pool);
+        copyTo(first, 0, at);
+        copyTo(second, at, length);
+        for (int i = 0; i < messageCount; i++) {
+            if (messageEnds[i] < at) {
+                first.addMessageEnd(messageEnds[i]);
+            } else if (messageEnds[i] > at) {
+                second.addMessageEnd(messageEnds[i] - at);
+            }
+        }
+        // Also marks the end of a message cut in two
+        first.addMessageEnd(at);
+        return new BatchEntity[] { first, second };
+    }
+
+    private long splitPoint() {
+        long middle = length / 2;
+        long at = -1;
+        for (int i = 0; i < messageCount; i++) {
+            long end = messageEnds[i];
+            if (end > 0 && end < length && (at < 0 || Math.abs(end - middle) < Math.abs(at - middle))) {
+                at = end;
+            }
+        }
+        if (at > 0) {
+            return at;
+        }
+
+        // Never in the middle of a UTF-8 sequence
+        at = middle;
+        while (at > 0 && isContinuationByte(at)) {
+            at--;
+        }
+        if (at == 0) {
+            at = middle;
+            while (at < length && isContinuationByte(at)) {
+                at++;
+            }
+        }
+        return at;
+    }
+
+    private boolean isContinuationByte(long position) {
+        for (ByteBuffer chunk : chunks) {
+            if (position < chunk.position()) {
+                return (chunk.array()[chunk.arrayOffset() + (int) position] & 0xc0) == 0x80;
+            }
+            position -= chunk.position();
+        }
+        return false;
+    }
+
+    // Copy the bytes from from to to, exclusive, onto the end of dest
+    private void copyTo(BatchEntity dest, long from, long to) {
+        long chunkStart = 0;
+        for (ByteBuffer chunk : chunks) {
+            long chunkEnd = chunkStart + chunk.position();
+            if (chunkEnd > from && chunkStart < to) {
+                int offset = (int) (Math.max(from, chunkStart) - chunkStart);
+                int count = (int) (Math.min(to, chunkEnd) - chunkStart) - offset;
+                dest.append(chunk.array(), chunk.arrayOffset() + offset, count);
+            }
+            chunkStart = chunkEnd;
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new ChunkInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream cannot be null");
+        }
+        writeTo(out, 0, chunks.size());
+        out.flush();
+    }
+
+    // Write chunks fromChunk to toChunk, exclusive
+    void writeTo(OutputStream out, int fromChunk, int toChunk) throws IOException {
+        for (int i = fromChunk; i < toChunk; i++) {
+            ByteBuffer chunk = chunks.get(i);
+            out.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+        }
+    }
+
+    int chunkCount() {
+        return chunks.size();
+    }
+
+    int chunkLength(int index) {
+        return chunks.get(index).position();
+    }
+
+    // A read-only view of the bytes written to a chunk
+    ByteBuffer readableChunk(int index) {
+        ByteBuffer chunk = chunks.get(index).asReadOnlyBuffer();
+        chunk.flip();
+        return chunk;
+    }
+
+    /**
+     * Move the chunks of <tt>other</tt> onto the end of this body without copying them,
+     * leaving <tt>other</tt> empty.  Both must use the same pool.
+     */
+    void take(BatchEntity other) {
+        chunks.addAll(other.chunks);
+        for (int i = 0; i < other.messageCount; i++) {
+            addMessageEnd(length + other.messageEnds[i]);
+        }
+        length += other.length;
+        other.chunks.clear();
+        other.length = 0;
+        other.messageCount = 0;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private int chunk = 0;
+        private int offset = 0;
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int available() {
+            long available = -offset;
+            for (int i = chunk; i < chunks.size(); i++) {
+                available += chunks.get(i).position();
+            }
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, available));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            while (chunk < chunks.size() && offset == chunks.get(chunk).position()) {
+                chunk++;
+                offset = 0;
+            }
+            if (chunk == chunks.size()) {
+                return -1;
+            }
+            ByteBuffer current = chunks.get(chunk);
+            int n = Math.min(len, current.position() - offset);
+            System.arraycopy(current.array(), current.arrayOffset() + offset, b, off, n);
+            offset += n;
+            return n;
+        }
+    }
+}
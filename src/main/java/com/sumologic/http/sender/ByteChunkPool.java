@@ -0,0 +1,86 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of equally sized heap buffers for encoding request bodies, so that steady-state
+ * sending reuses the same few buffers instead of allocating a fresh array for every batch.
+ * Buffers beyond <tt>maxPooledChunks</tt> are left to the garbage collector.
+ */
+public class ByteChunkPool {
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_POOLED_CHUNKS = 256;
+
+    private final int chunkSize;
+    private final int maxPooledChunks;
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+    public ByteChunkPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_CHUNKS);
+    }
+
+    public ByteChunkPool(int chunkSize, int maxPooledChunks) {
+        // A single UTF-8 character can take four bytes
+        if (chunkSize < 4) {
+            throw new IllegalArgumentException("Chunk size must be at least 4");
+        }
+        if (maxPooledChunks < 0) {
+            throw new IllegalArgumentException("Max pooled chunks cannot be negative");
+        }
+        this.chunkSize = chunkSize;
+        this.maxPooledChunks = maxPooledChunks;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Return an empty chunk, from the pool if there is one.
+     */
+    public synchronized ByteBuffer take() {
+        ByteBuffer chunk = pool.pollFirst();
+        return chunk != null ? chunk : ByteBuffer.allocate(chunkSize);
+    }
+
+    /**
+     * Return <tt>chunk</tt> to the pool.  It must not be used afterwards.
+     */
+    public synchronized void give(ByteBuffer chunk) {
+        if (chunk.capacity() == chunkSize && pool.size() < maxPooledChunks) {
+            chunk.clear();
+            pool.addFirst(chunk);
+        }
+    }
+
+    public synchronized int pooledChunks() {
+        return pool.size();
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops requests to an endpoint that keeps failing.  After <tt>failureThreshold</tt> failed
+ * attempts in a row the circuit opens and requests are refused for <tt>openIntervalMs</tt>;
+ * then a single probe is let through, which closes the circuit if it succeeds and opens it
+ * again if it fails.  A probe that never reports back is replaced after another
+ * <tt>openIntervalMs</tt>.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Told about every change of state, on the thread that caused it.
+     */
+    public interface Listener {
+        void stateChanged(State from, State to);
+    }
+
+    private final int failureThreshold;
+    private final long openIntervalMs;
+    private volatile Listener listener = null;
+
+    // Written under this, volatile for the getters
+    private volatile State state = State.CLOSED;
+    private volatile int consecutiveFailures = 0;
+    private volatile long timesOpened = 0;
+    // Guarded by this: when the circuit opened, or when the current probe was let through
+    private long changedAt = 0;
+
+    public CircuitBreaker(int failureThreshold, long openIntervalMs) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("Failure threshold must be at least 1");
+        }
+        if (openIntervalMs <= 0) {
+            throw new IllegalArgumentException("Open interval must be at least 1");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openIntervalMs = openIntervalMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Return how many times the circuit has opened, including reopening after a failed probe.
+     */
+    public long getTimesOpened() {
+        return timesOpened;
+    }
+
+    /**
+     * Return whether a request would be let through now, without claiming the probe.
+     */
+    public boolean isAcceptingRequests() {
+        return isAcceptingRequests(System.currentTimeMillis());
+    }
+
+    synchronized boolean isAcceptingRequests(long now) {
+        return state == State.CLOSED || now - changedAt >= openIntervalMs;
+    }
+
+    /**
+     * Return how long until a request would be let through, 0 if one would be now.
+     */
+    public long getRemainingOpenMs() {
+        return getRemainingOpenMs(System.currentTimeMillis());
+    }
+
+    synchronized long getRemainingOpenMs(long now) {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        return Math.max(0, openIntervalMs - (now - changedAt));
+    }
+
+    /**
+     * Ask to send a request.  While the circuit is open this is refused, except once the open
+     * interval is up, when the caller becomes the probe.  Every request let through must be
+     * followed by <tt>recordSuccess</tt> or <tt>recordFailure</tt>.
+     */
+    public boolean allowRequest() {
+        return allowRequest(System.currentTimeMillis());
+    }
+
+    boolean allowRequest(long now) {
+        State from;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (now - changedAt < openIntervalMs) {
+                return false;
+            }
+            from = state;
+            state = State.HALF_OPEN;
+            changedAt = now;
+        }
+        logger.info("Circuit half open, sending a probe request");
+        notifyListener(from, State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Record a request that got through to the endpoint, closing the circuit.
+     */
+    public void recordSuccess() {
+        State from;
+        synchronized (this) {
+            consecutiveFailures = 0;
+            if (state == State.CLOSED) {
+                return;
+            }
+            from = state;
+            state = State.CLOSED;
+        }
+        logger.info("Circuit closed, endpoint recovered");
+        notifyListener(from, State.CLOSED);
+    }
+
+    /**
+     * Record a request that failed, opening the circuit once too many have failed in a row
+     * or when the probe fails.
+     */
+    public void recordFailure() {
+        recordFailure(System.currentTimeMillis());
+    }
+
+    void recordFailure(long now) {
+        State from;
+        synchronized (this) {
+            consecutiveFailures++;
+            if (state == State.OPEN || (state == State.CLOSED && consecutiveFailures < failureThreshold)) {
+                return;
+            }
+            from = state;
+            state = State.OPEN;
+            changedAt = now;
+            timesOpened++;
+        }
+        logger.warn("Circuit open after " + consecutiveFailures + " failed requests in a row, " +
+                "refusing requests for " + openIntervalMs + " ms");
+        notifyListener(from, State.OPEN);
+    }
+
+    private void notifyListener(State from, State to) {
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.stateChanged(from, to);
+        }
+    }
+}
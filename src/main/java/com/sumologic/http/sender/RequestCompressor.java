@@ -0,0 +1,402 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies into a {@link BatchEntity}, which a sender keeps for its retries.
+ * Deflaters hold native memory, so rather than creating one per request they are pooled
+ * and reset between uses; <tt>close</tt> frees them.  Totals of the bytes in and out and the
+ * CPU time spent are kept for monitoring, and each batch is logged at debug level.
+ * <p>
+ * With a worker pool set, large gzip batches are cut into segments that are compressed
+ * concurrently, each as a gzip member of its own, and joined in order; a gzip stream may
+ * hold any number of members, so the result decompresses to the same bytes.  Deflate streams
+ * cannot be joined like that and are always compressed in one piece.
+ */
+public class RequestCompressor {
+    private static final Logger logger = LoggerFactory.getLogger(RequestCompressor.class);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    // Deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final CompressionMethod method;
+    private final int level;
+    private final ByteChunkPool pool;
+    private final boolean cpuTimeSupported;
+    // Idle deflaters, guarded by their own monitor along with closed
+    private final ArrayDeque<Deflater> deflaters = new ArrayDeque<Deflater>();
+    private boolean closed = false;
+
+    private volatile ExecutorService workers = null;
+    private volatile long segmentBytes = Long.MAX_VALUE;
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong cpuTimeNanos = new AtomicLong();
+
+    /**
+     * @param method format to compress in
+     * @param level deflate level from 0 to 9, or -1 for the default
+     * @param pool where the compressed bodies take their chunks from
+     */
+    public RequestCompressor(CompressionMethod method, int level, ByteChunkPool pool) {
+        if (method == null) {
+            throw new IllegalArgumentException("Compression method cannot be null");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool cannot be null");
+        }
+        if (level != Deflater.DEFAULT_COMPRESSION &&
+            (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9, or -1");
+        }
+        this.method = method;
+        this.level = level;
+        this.pool = pool;
+        this.cpuTimeSupported = THREADS.isCurrentThreadCpuTimeSupported();
+    }
+
+    public CompressionMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Compress gzip batches larger than <tt>segmentBytes</tt> in segments of about that size,
+     * on <tt>workers</tt> as well as the calling thread.  A null pool compresses every batch
+     * on the calling thread.
+     */
+    public void setWorkers(ExecutorService workers, long segmentBytes) {
+        if (workers != null && segmentBytes <= 0) {
+            throw new IllegalArgumentException("Segment bytes must be at least 1");
+        }
+        this.segmentBytes = workers == null ? Long.MAX_VALUE : segmentBytes;
+        this.workers = workers;
+    }
+
+    /**
+     * Compress <tt>body</tt>.  The caller releases the result once it is sent.
+     */
+    public BatchEntity compress(HttpEntity body) throws IOException {
+        ExecutorService workers = this.workers;
+        long segmentBytes = this.segmentBytes;
+        List<Member> members;
+        if (workers != null && method == CompressionMethod.GZIP && body instanceof BatchEntity &&
+            body.getContentLength() > segmentBytes) {
+            members = compressSegments(workers, (BatchEntity) body, segmentBytes);
+        } else {
+            members = new ArrayList<Member>(1);
+            members.add(compressMember(body, null, 0, 0));
+        }
+
+        BatchEntity compressed = new BatchEntity(pool);
+        compressed.setContentEncoding(method.getContentEncoding());
+        long in = 0;
+        long cpuTime = 0;
+        for (Member member : members) {
+            compressed.take(member.compressed);
+            in += member.bytesIn;
+            cpuTime += member.cpuTimeNanos;
+        }
+
+        long out = compressed.getContentLength();
+        bytesIn.addAndGet(in);
+        bytesOut.addAndGet(out);
+        cpuTimeNanos.addAndGet(cpuTime);
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Compressed %d bytes to %d (%.1fx) in %.3f ms over %d segments",
+                    in, out, ratio(in, out), cpuTime / 1000000.0, members.size()));
+        }
+        return compressed;
+    }
+
+    // Cut the body's chunks into runs of about segmentBytes, compress all but the last on the
+    // workers and the last here, and wait for the rest
+    private List<Member> compressSegments(ExecutorService workers, final BatchEntity body, long segmentBytes)
+            throws IOException {
+        List<Future<Member>> futures = new ArrayList<Future<Member>>();
+        List<Member> members = new ArrayList<Member>();
+        Member last = null;
+        try {
+            int from = 0;
+            long bytes = 0;
+            int chunks = body.chunkCount();
+            for (int i = 0; i < chunks; i++) {
+                bytes += body.chunkLength(i);
+                if (bytes >= segmentBytes && i + 1 < chunks) {
+                    futures.add(submit(workers, body, from, i + 1));
+                    from = i + 1;
+                    bytes = 0;
+                }
+            }
+            last = compressMember(null, body, from, chunks);
+
+            for (Future<Member> future : futures) {
+                members.add(await(future));
+            }
+            members.add(last);
+            return members;
+        } catch (IOException e) {
+            if (last != null) {
+                last.compressed.release();
+            }
+            for (Future<Member> future : futures) {
+                try {
+                    future.get().compressed.release();
+                } catch (Exception ignore) { }
+            }
+            throw e;
+        }
+    }
+
+    private Future<Member> submit(ExecutorService workers, final BatchEntity body, final int from, final int to)
+            throws IOException {
+        Callable<Member> segment = new Callable<Member>() {
+            @Override
+            public Member call() throws IOException {
+                return compressMember(null, body, from, to);
+            }
+        };
+        try {
+            return workers.submit(segment);
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down, compress here instead
+            FutureTask<Member> task = new FutureTask<Member>(segment);
+            task.run();
+            return task;
+        }
+    }
+
+    private Member await(Future<Member> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // The segment is already underway and its chunks must not be lost
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Compress body, or if it is null chunks from to to of source, into a complete stream
+    private Member compressMember(HttpEntity body, BatchEntity source, int from, int to) throws IOException {
+        long startTime = cpuTime();
+        BatchEntity compressed = new BatchEntity(pool);
+        Deflater deflater = takeDeflater();
+        try {
+            DeflatingStream out = new DeflatingStream(deflater, compressed);
+            if (method == CompressionMethod.GZIP) {
+                compressed.append(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+            if (body != null) {
+                body.writeTo(out);
+            } else {
+                source.writeTo(out, from, to);
+            }
+            out.finish();
+            return new Member(compressed, out.count, cpuTime() - startTime);
+        } catch (IOException e) {
+            compressed.release();
+            throw e;
+        } finally {
+            giveDeflater(deflater);
+        }
+    }
+
+    /**
+     * Free the pooled deflaters.  Compressions still running free theirs when done.
+     */
+    public void close() {
+        synchronized (deflaters) {
+            closed = true;
+            for (Deflater deflater : deflaters) {
+                deflater.end();
+            }
+            deflaters.clear();
+        }
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Return the uncompressed size over the compressed size, over all batches so far.
+     */
+    public double getCompressionRatio() {
+        return ratio(bytesIn.get(), bytesOut.get());
+    }
+
+    /**
+     * Return the CPU time spent compressing so far, or the elapsed time where the JVM does
+     * not measure thread CPU time.
+     */
+    public long getCpuTimeNanos() {
+        return cpuTimeNanos.get();
+    }
+
+    int pooledDeflaters() {
+        synchronized (deflaters) {
+            return deflaters.size();
+        }
+    }
+
+    private static double ratio(long in, long out) {
+        return out == 0 ? 0 : (double) in / out;
+    }
+
+    private long cpuTime() {
+        return cpuTimeSupported ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private Deflater takeDeflater() {
+        synchronized (deflaters) {
+            Deflater deflater = deflaters.pollFirst();
+            if (deflater != null) {
+                return deflater;
+            }
+        }
+        // Raw deflate for gzip, which brings its own header and trailer
+        return new Deflater(level, method == CompressionMethod.GZIP);
+    }
+
+    private void giveDeflater(Deflater deflater) {
+        synchronized (deflaters) {
+            if (!closed) {
+                deflater.reset();
+                deflaters.addFirst(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    private static class Member {
+        final BatchEntity compressed;
+        final long bytesIn;
+        final long cpuTimeNanos;
+
+        Member(BatchEntity compressed, long bytesIn, long cpuTimeNanos) {
+            this.compressed = compressed;
+            this.bytesIn = bytesIn;
+            this.cpuTimeNanos = cpuTimeNanos;
+        }
+    }
+
+    // Deflates what the body writes straight into the target's chunks
+    private class DeflatingStream extends OutputStream {
+        private final Deflater deflater;
+        private final BatchEntity target;
+        private final CRC32 crc = method == CompressionMethod.GZIP ? new CRC32() : null;
+        private long count = 0;
+
+        DeflatingStream(Deflater deflater, BatchEntity target) {
+            this.deflater = deflater;
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len == 0) {
+                return;
+            }
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+            count += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        void finish() {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            if (crc != null) {
+                byte[] trailer = new byte[8];
+                writeIntLE(trailer, 0, crc.getValue());
+                writeIntLE(trailer, 4, count);
+                target.append(trailer, 0, trailer.length);
+            }
+        }
+
+        private void deflate() {
+            ByteBuffer chunk = target.writableChunk();
+            int n = deflater.deflate(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            target.advance(chunk, n);
+        }
+
+        private void writeIntLE(byte[] b, int off, long value) {
+            b[off] = (byte) value;
+            b[off + 1] = (byte) (value >> 8);
+            b[off + 2] = (byte) (value >> 16);
+            b[off + 3] = (byte) (value >> 24);
+        }
+    }
+}
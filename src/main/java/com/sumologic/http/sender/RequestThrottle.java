@@ -0,0 +1,144 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+
+/**
+ * Spaces out requests to an endpoint that has asked for fewer of them.  A throttling response
+ * pauses sending for as long as its <tt>Retry-After</tt> asks, or for the current interval if
+ * it gives none, and doubles the interval that requests are spaced by afterwards.  Each
+ * accepted request takes a tenth off the interval, so the request rate climbs back gradually
+ * until requests are no longer spaced at all.
+ */
+public class RequestThrottle {
+    private static final Logger logger = LoggerFactory.getLogger(RequestThrottle.class);
+
+    private final long initialIntervalMs;
+    private final long maxIntervalMs;
+    private volatile long timesThrottled = 0;
+
+    // Guarded by this
+    private long intervalMs = 0;
+    private long pausedUntil = 0;
+    private long nextRequestAt = 0;
+
+    public RequestThrottle(long initialIntervalMs, long maxIntervalMs) {
+        if (initialIntervalMs <= 0) {
+            throw new IllegalArgumentException("Initial interval must be at least 1");
+        }
+        if (maxIntervalMs < initialIntervalMs) {
+            throw new IllegalArgumentException("Max interval cannot be below the initial interval");
+        }
+        this.initialIntervalMs = initialIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+    }
+
+    /**
+     * Return the interval requests are currently spaced by, 0 when they are not throttled.
+     */
+    public synchronized long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public long getTimesThrottled() {
+        return timesThrottled;
+    }
+
+    /**
+     * Return how long until a request may be sent, 0 if one may be sent now.
+     */
+    public long getDelayMs() {
+        return getDelayMs(System.currentTimeMillis());
+    }
+
+    synchronized long getDelayMs(long now) {
+        return Math.max(0, Math.max(pausedUntil, nextRequestAt) - now);
+    }
+
+    /**
+     * Claim the next slot for a request.
+     * @return 0 if the request may be sent now, otherwise how long to wait before trying again
+     */
+    public long reserve() {
+        return reserve(System.currentTimeMillis());
+    }
+
+    synchronized long reserve(long now) {
+        long delayMs = getDelayMs(now);
+        if (delayMs == 0) {
+            nextRequestAt = now + intervalMs;
+        }
+        return delayMs;
+    }
+
+    /**
+     * Record a throttling response with the given <tt>Retry-After</tt> header, which may be
+     * null.  Pauses are capped at the max interval.
+     */
+    public void recordThrottled(String retryAfter) {
+        long now = System.currentTimeMillis();
+        recordThrottled(parseRetryAfterMs(retryAfter, now), now);
+    }
+
+    // retryAfterMs is negative when the response did not say
+    synchronized void recordThrottled(long retryAfterMs, long now) {
+        timesThrottled++;
+        intervalMs = intervalMs == 0 ? initialIntervalMs : Math.min(intervalMs * 2, maxIntervalMs);
+        long pauseMs = retryAfterMs >= 0 ? Math.min(retryAfterMs, maxIntervalMs) : intervalMs;
+        pausedUntil = Math.max(pausedUntil, now + pauseMs);
+        logger.warn("Throttled by Sumo Logic, pausing for " + pauseMs + " ms and spacing requests by " +
+                intervalMs + " ms");
+    }
+
+    /**
+     * Record an accepted request, letting the request rate climb back.
+     */
+    public synchronized void recordAccepted() {
+        if (intervalMs > 0) {
+            intervalMs = Math.max(0, intervalMs - Math.max(1, intervalMs / 10));
+        }
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date; -1 if absent or unreadable
+    static long parseRetryAfterMs(String retryAfter, long now) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(retryAfter.trim());
+            return seconds >= 0 ? Math.min(seconds, Long.MAX_VALUE / 1000) * 1000 : -1;
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(retryAfter.trim());
+            return date != null ? Math.max(0, date.getTime() - now) : -1;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+/**
+ * Outcome of sending one request, retries included.
+ */
+public class SendResult {
+    /**
+     * Status code of a request that never got a response.
+     */
+    public static final int NO_RESPONSE = -1;
+
+    private final boolean delivered;
+    private final int statusCode;
+    private final int attempts;
+    private final long latencyMs;
+
+    public SendResult(boolean delivered, int statusCode, int attempts, long latencyMs) {
+        this.delivered = delivered;
+        this.statusCode = statusCode;
+        this.attempts = attempts;
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * Return true if Sumo Logic accepted the request, false if it was dropped.
+     */
+    public boolean isDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Return the status code of the last attempt, or <tt>NO_RESPONSE</tt>.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Return the time from the first attempt until the request was delivered or dropped.
+     */
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+
+    @Override
+    public String toString() {
+        return "SendResult{delivered=" + delivered +
+                ", statusCode=" + statusCode +
+                ", attempts=" + attempts +
+                ", latencyMs=" + latencyMs + "}";
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import com.sumologic.http.queue.BufferWithEviction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * Flushing task that encodes each batch straight into a {@link BatchEntity} of pooled chunks
+ * instead of building a String, so steady-state flushing allocates no per-batch buffers.
+ * This is the task <tt>SumoBufferFlusher</tt> uses.
+ */
+public class SumoBatchEntityFlushingTask extends AbstractSumoFlushingTask<BatchEntity> {
+    private static final Logger logger = LoggerFactory.getLogger(SumoBatchEntityFlushingTask.class);
+    // Shared by the batches in flight, which give their chunks back once sent
+    private final ByteChunkPool chunkPool = new ByteChunkPool();
+
+    public SumoBatchEntityFlushingTask(BufferWithEviction<String> queue) {
+        super(queue);
+    }
+
+    @Override
+    protected BatchEntity aggregate(List<String> messages) {
+        BatchEntity body = new BatchEntity(chunkPool);
+        for (String message: messages) {
+            body.append(message);
+        }
+        return body;
+    }
+
+    @Override
+    protected void sendOut(BatchEntity body) {
+        deliver(body);
+    }
+
+    @Override
+    protected boolean deliver(BatchEntity body) {
+        try {
+            SumoHttpSender sender = getSender();
+            if (sender != null && sender.isInitialized()) {
+                logger.debug("Sending out data");
+                return sender.sendWithResult(body).isDelivered();
+            } else {
+                logger.error("HTTPSender is not initialized");
+                return false;
+            }
+        } finally {
+            body.release();
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Boolean> deliverAsync(final BatchEntity body) {
+        SumoHttpSender sender = getSender();
+        if (sender == null || !sender.isInitialized()) {
+            logger.error("HTTPSender is not initialized");
+            body.release();
+            return CompletableFuture.completedFuture(false);
+        }
+        logger.debug("Sending out data");
+        return sender.sendAsync(body).handle(new BiFunction<SendResult, Throwable, Boolean>() {
+            @Override
+            public Boolean apply(SendResult result, Throwable error) {
+                body.release();
+                return error == null && result.isDelivered();
+            }
+        });
+    }
+}
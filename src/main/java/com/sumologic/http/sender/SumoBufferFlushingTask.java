@@ -26,45 +26,21 @@
 
 package com.sumologic.http.sender;
 
-import com.sumologic.http.aggregation.BufferFlushingTask;
 import com.sumologic.http.queue.BufferWithEviction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 
-public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
+public class SumoBufferFlushingTask extends AbstractSumoFlushingTask<String> {
     private static final Logger logger = LoggerFactory.getLogger(SumoBufferFlushingTask.class);
-    private SumoHttpSender sender;
-    private long maxFlushIntervalMs;
-    private int messagesPerRequest;
 
     public SumoBufferFlushingTask(BufferWithEviction<String> queue) {
         super(queue);
     }
 
-    public void setSender(SumoHttpSender sender) {
-        this.sender = sender;
-    }
-
-    public void setMessagesPerRequest(int messagesPerRequest) {
-        this.messagesPerRequest = messagesPerRequest;
-    }
-
-    public void setMaxFlushIntervalMs(long maxFlushIntervalMs) {
-        this.maxFlushIntervalMs = maxFlushIntervalMs;
-    }
-
-    @Override
-    protected long getMaxFlushIntervalMs() {
-        return maxFlushIntervalMs;
-    }
-
-    @Override
-    protected int getMessagesPerRequest() {
-        return messagesPerRequest;
-    }
-
     @Override
     protected String aggregate(List<String> messages) {
         StringBuilder builder = new StringBuilder(messages.size() * 10);
@@ -76,11 +52,34 @@ public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
 
     @Override
     protected void sendOut(String body) {
+        deliver(body);
+    }
+
+    @Override
+    protected boolean deliver(String body) {
+        SumoHttpSender sender = getSender();
         if (sender != null && sender.isInitialized()) {
             logger.debug("Sending out data");
-            sender.send(body);
+            return sender.sendWithResult(body).isDelivered();
         } else {
             logger.error("HTTPSender is not initialized");
+            return false;
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Boolean> deliverAsync(String body) {
+        SumoHttpSender sender = getSender();
+        if (sender == null || !sender.isInitialized()) {
+            logger.error("HTTPSender is not initialized");
+            return CompletableFuture.completedFuture(false);
         }
+        logger.debug("Sending out data");
+        return sender.sendAsync(body).handle(new BiFunction<SendResult, Throwable, Boolean>() {
+            @Override
+            public Boolean apply(SendResult result, Throwable error) {
+                return error == null && result.isDelivered();
+            }
+        });
     }
 }
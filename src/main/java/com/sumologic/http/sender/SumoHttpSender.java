@@ -26,9 +26,12 @@
 
 package com.sumologic.http.sender;
 
+import com.sumologic.http.aggregation.AdaptiveFlushController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.CookieSpecs;
@@ -42,7 +45,25 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 
 public class SumoHttpSender {
@@ -53,11 +74,17 @@ public class SumoHttpSender {
     private static final String SUMO_SOURCE_HOST_HEADER = "X-Sumo-Host";
     private static final String SUMO_CLIENT_HEADER = "X-Sumo-Client";
     private static final String SUMO_FIELDS_HEADER = "X-Sumo-Fields";
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+    private static final int STATUS_PAYLOAD_TOO_LARGE = 413;
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+    private static final String ASYNC_ENGINE_CLASS = "com.sumologic.http.sender.JdkAsyncHttpEngine";
 
     private long retryIntervalMs = 10000L;
+    private long maxRetryIntervalMs = 300000L;
     private int maxNumberOfRetries = -1;
     private int connectionTimeoutMs = 1000;
     private int socketTimeoutMs = 60000;
+    private int maxConnections = 2;
     private String url = null;
     private String sourceName = null;
     private String sourceCategory = null;
@@ -69,6 +96,24 @@ public class SumoHttpSender {
     private String retryableHttpCodeRegex = "^5.*";
     private Pattern retryableHttpCodeRegexPattern = null;
     private SumoHttpSender fields = null;
+    private volatile AdaptiveFlushController flushController = null;
+    private CompressionMethod compressionMethod = null;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private RequestCompressor compressor = null;
+    private int compressionThreads = 1;
+    private long compressionSegmentSize = 256 * 1024;
+    private ExecutorService compressionWorkers = null;
+    private boolean asyncEngine = false;
+    private AsyncHttpEngine engine = null;
+    private ScheduledExecutorService retryScheduler = null;
+    // Runs sendAsync on the blocking client
+    private ExecutorService sendPool = null;
+    private int circuitBreakerFailures = 0;
+    private long circuitBreakerOpenMs = 30000L;
+    private volatile CircuitBreaker circuitBreaker = null;
+    private volatile RequestThrottle throttle = null;
+    // Lowered by every 413
+    private volatile long maxRequestBytes = Long.MAX_VALUE;
 
     public ProxySettings getProxySettings() {
         return proxySettings;
@@ -78,10 +123,19 @@ public class SumoHttpSender {
         this.proxySettings = proxySettings;
     }
 
+    /**
+     * Wait about this long before the first retry.  Each further retry waits twice as long
+     * as the one before, up to <tt>maxRetryIntervalMs</tt>, and every wait is cut by a random
+     * amount of up to half so that senders failing together do not retry together.
+     */
     public void setRetryIntervalMs(long retryIntervalMs) {
         this.retryIntervalMs = retryIntervalMs;
     }
 
+    public void setMaxRetryIntervalMs(long maxRetryIntervalMs) {
+        this.maxRetryIntervalMs = maxRetryIntervalMs;
+    }
+
     public void setMaxNumberOfRetries(int maxNumberOfRetries) {
         this.maxNumberOfRetries = maxNumberOfRetries;
     }
@@ -110,6 +164,134 @@ public class SumoHttpSender {
         this.socketTimeoutMs = socketTimeoutMs;
     }
 
+    /**
+     * Set how many requests can be sent concurrently, for use with pipelined flushing.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Report the status code and latency of every request to <tt>flushController</tt>.
+     */
+    public void setFlushController(AdaptiveFlushController flushController) {
+        this.flushController = flushController;
+    }
+
+    /**
+     * Compress requests with <tt>compressionMethod</tt>, or not at all if null, the default.
+     * Takes effect on <tt>init</tt>.
+     */
+    public void setCompressionMethod(CompressionMethod compressionMethod) {
+        this.compressionMethod = compressionMethod;
+    }
+
+    /**
+     * Set the deflate level from 0 to 9, or -1 for the default.  Takes effect on <tt>init</tt>.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Compress gzip requests larger than <tt>compressionSegmentSize</tt> in segments on up to
+     * <tt>compressionThreads</tt> threads, including the sending one.  1, the default,
+     * compresses on the sending thread only.  Takes effect on <tt>init</tt>.
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads <= 0) {
+            throw new IllegalArgumentException("Compression threads must be at least 1");
+        }
+        this.compressionThreads = compressionThreads;
+    }
+
+    public void setCompressionSegmentSize(long compressionSegmentSize) {
+        if (compressionSegmentSize <= 0) {
+            throw new IllegalArgumentException("Compression segment size must be at least 1");
+        }
+        this.compressionSegmentSize = compressionSegmentSize;
+    }
+
+    /**
+     * Return the compressor, for its statistics, or null if requests are not compressed.
+     */
+    public RequestCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Send on a non-blocking engine, on the JDK's own HTTP client, rather than on a blocking
+     * Apache client, so that concurrent requests do not each need a thread.  Headers and
+     * retries are the same; retries are scheduled instead of slept.  Needs Java 11 or later,
+     * and does not support NTLM proxies.  Takes effect on <tt>init</tt>.
+     */
+    public void setAsyncEngine(boolean asyncEngine) {
+        this.asyncEngine = asyncEngine;
+    }
+
+    /**
+     * Open a circuit breaker after this many failed attempts in a row, so that requests fail
+     * fast and the flusher leaves messages in the buffer until a probe request gets through.
+     * A request already being retried waits for the circuit instead, each wait counting as a
+     * retry.  0, the default, never opens it.  Takes effect on <tt>init</tt>.
+     */
+    public void setCircuitBreakerFailures(int circuitBreakerFailures) {
+        this.circuitBreakerFailures = circuitBreakerFailures;
+    }
+
+    /**
+     * How long an open circuit refuses requests before letting a probe through.
+     */
+    public void setCircuitBreakerOpenMs(long circuitBreakerOpenMs) {
+        this.circuitBreakerOpenMs = circuitBreakerOpenMs;
+    }
+
+    /**
+     * Return the circuit breaker, to watch its state, or null if there is none.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Return the throttle that paces requests after Sumo Logic answers 429, to watch it.
+     * Set on <tt>init</tt>.
+     */
+    public RequestThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Return the size (in bytes, before compression) that requests should stay within, learnt
+     * from the requests Sumo Logic rejected as too large, or <tt>Long.MAX_VALUE</tt> if none
+     * were.  The flusher cuts batches below it.
+     */
+    public long getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    /**
+     * Return whether requests are being held back, because Sumo Logic throttled them or
+     * because the circuit is open, in which case the flusher leaves messages in the buffer.
+     */
+    public boolean isSendingPaused() {
+        RequestThrottle throttle = this.throttle;
+        if (throttle != null && throttle.getDelayMs() > 0) {
+            return true;
+        }
+        CircuitBreaker breaker = circuitBreaker;
+        return breaker != null && !breaker.isAcceptingRequests();
+    }
+
+    /**
+     * Return whether Sumo Logic throttled requests recently enough that they are still being
+     * spaced out, in which case the flusher sends larger batches.
+     */
+    public boolean isThrottled() {
+        RequestThrottle throttle = this.throttle;
+        return throttle != null && throttle.getIntervalMs() > 0;
+    }
+
     public void setClientHeaderValue(String clientHeaderValue) {
         this.clientHeaderValue = clientHeaderValue;
     }
@@ -123,18 +305,56 @@ public class SumoHttpSender {
     }
 
     public boolean isInitialized() {
-        return httpClient != null;
+        return httpClient != null || engine != null;
     }
 
     public void init() {
+        if (asyncEngine) {
+            engine = newAsyncEngine();
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("SumoRetryThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            httpClient = newHttpClient();
+            sendPool = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("SumoSendThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        retryableHttpCodeRegexPattern = Pattern.compile(retryableHttpCodeRegex);
+        // A 429 pauses for as long as a retry would wait, when it gives no Retry-After
+        throttle = new RequestThrottle(Math.max(1, retryIntervalMs), Math.max(retryIntervalMs, maxRetryIntervalMs));
+        circuitBreaker = circuitBreakerFailures > 0 ?
+                new CircuitBreaker(circuitBreakerFailures, circuitBreakerOpenMs) : null;
+        initCompression();
+    }
+
+    private CloseableHttpClient newHttpClient() {
         RequestConfig requestConfig = RequestConfig.custom()
                 .setSocketTimeout(socketTimeoutMs)
                 .setConnectTimeout(connectionTimeoutMs)
                 .setCookieSpec(CookieSpecs.STANDARD)
                 .build();
 
+        // All requests go to the one collector route
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setMaxTotal(Math.max(maxConnections, connectionManager.getMaxTotal()));
+
         HttpClientBuilder builder = HttpClients.custom()
-                .setConnectionManager(new PoolingHttpClientConnectionManager())
+                .setConnectionManager(connectionManager)
                 .setDefaultRequestConfig(requestConfig);
 
         if (proxySettings != null) {
@@ -142,82 +362,438 @@ public class SumoHttpSender {
             creator.configureProxySettings(builder);
         }
 
-        httpClient = builder.build();
+        return builder.build();
+    }
 
-        retryableHttpCodeRegexPattern = Pattern.compile(retryableHttpCodeRegex);
+    // The engine lives in META-INF/versions/11 of the multi-release jar, so on Java 8 the
+    // class is not found at all
+    private AsyncHttpEngine newAsyncEngine() {
+        try {
+            return (AsyncHttpEngine) Class.forName(ASYNC_ENGINE_CLASS)
+                    .getConstructor(int.class, int.class, ProxySettings.class)
+                    .newInstance(connectionTimeoutMs, socketTimeoutMs, proxySettings);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The async engine needs Java 11 or later", e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not create the async engine", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the async engine", e);
+        }
+    }
+
+    private void initCompression() {
+        if (compressionMethod != null) {
+            compressor = new RequestCompressor(compressionMethod, compressionLevel, new ByteChunkPool());
+            if (compressionThreads > 1) {
+                compressionWorkers =
+                    Executors.newFixedThreadPool(compressionThreads - 1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r);
+                            thread.setName("SumoCompressionThread");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                compressor.setWorkers(compressionWorkers, compressionSegmentSize);
+            }
+        }
     }
 
     public void close() throws IOException {
-        httpClient.close();
-        httpClient = null;
+        if (sendPool != null) {
+            sendPool.shutdownNow();
+            sendPool = null;
+        }
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+        if (engine != null) {
+            engine.close();
+            engine = null;
+            retryScheduler.shutdownNow();
+            retryScheduler = null;
+        }
+        if (compressionWorkers != null) {
+            compressionWorkers.shutdown();
+            compressionWorkers = null;
+        }
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
     }
 
     public void send(String body) {
-        keepTrying(body);
+        sendWithResult(body);
+    }
+
+    /**
+     * Send <tt>body</tt>, retrying as configured, without copying it into a String first.
+     * If Sumo Logic rejects it as too large, it is split in two between messages, or within
+     * a single message, and the halves are sent the same way.  The caller releases it
+     * afterwards.
+     */
+    public void send(BatchEntity body) {
+        sendWithResult(body);
+    }
+
+    /**
+     * Send <tt>body</tt> like <tt>send(String)</tt> and report the outcome.
+     * @return the outcome once the body is delivered or dropped
+     */
+    public SendResult sendWithResult(String body) {
+        return sendNow(new StringEntity(body, Consts.UTF_8));
+    }
+
+    /**
+     * Send <tt>body</tt> like <tt>send(BatchEntity)</tt> and report the outcome.  The caller
+     * releases it afterwards.
+     * @return the outcome once the body is delivered or dropped
+     */
+    public SendResult sendWithResult(BatchEntity body) {
+        return sendNow(body);
+    }
+
+    /**
+     * Start sending <tt>body</tt>, retrying as configured, without waiting for it.  On the
+     * async engine no thread waits at all; otherwise the send runs on one of
+     * <tt>maxConnections</tt> sending threads.
+     * @return a future completing with the outcome once the body is delivered or dropped
+     */
+    public CompletableFuture<SendResult> sendAsync(String body) {
+        return startSend(new StringEntity(body, Consts.UTF_8));
+    }
+
+    /**
+     * Start sending <tt>body</tt> like <tt>sendAsync(String)</tt>.  The caller releases it
+     * once the returned future completes.
+     */
+    public CompletableFuture<SendResult> sendAsync(BatchEntity body) {
+        return startSend(body);
+    }
+
+    private SendResult sendNow(HttpEntity body) {
+        long startTime = System.currentTimeMillis();
+        SendResult result = sendUnsplit(body);
+        BatchEntity[] halves = splitIfTooLarge(body, result);
+        if (halves == null) {
+            return result;
+        }
+        try {
+            SendResult first = sendNow(halves[0]);
+            SendResult second = sendNow(halves[1]);
+            return combine(result, first, second, startTime);
+        } finally {
+            halves[0].release();
+            halves[1].release();
+        }
+    }
+
+    private SendResult sendUnsplit(HttpEntity body) {
+        BatchEntity compressed = compress(body);
+        try {
+            return keepTrying(compressed != null ? compressed : body);
+        } finally {
+            if (compressed != null) {
+                compressed.release();
+            }
+        }
+    }
+
+    private CompletableFuture<SendResult> startSend(final HttpEntity body) {
+        final long startTime = System.currentTimeMillis();
+        return startUnsplit(body).thenCompose(new Function<SendResult, CompletionStage<SendResult>>() {
+            @Override
+            public CompletionStage<SendResult> apply(final SendResult result) {
+                final BatchEntity[] halves = splitIfTooLarge(body, result);
+                if (halves == null) {
+                    return CompletableFuture.completedFuture(result);
+                }
+                // One half after the other, as when sending synchronously
+                return startSend(halves[0]).thenCompose(new Function<SendResult, CompletionStage<SendResult>>() {
+                    @Override
+                    public CompletionStage<SendResult> apply(final SendResult first) {
+                        return startSend(halves[1]).thenApply(new Function<SendResult, SendResult>() {
+                            @Override
+                            public SendResult apply(SendResult second) {
+                                return combine(result, first, second, startTime);
+                            }
+                        });
+                    }
+                }).whenComplete(new BiConsumer<SendResult, Throwable>() {
+                    @Override
+                    public void accept(SendResult sendResult, Throwable error) {
+                        halves[0].release();
+                        halves[1].release();
+                    }
+                });
+            }
+        });
+    }
+
+    // After a 413, lowers the request size ceiling to half the rejected body and splits it.
+    // Returns null for any other result, or if the body cannot be split.
+    private BatchEntity[] splitIfTooLarge(HttpEntity body, SendResult result) {
+        if (result.getStatusCode() != STATUS_PAYLOAD_TOO_LARGE || !(body instanceof BatchEntity)) {
+            return null;
+        }
+        long rejectedBytes = body.getContentLength();
+        lowerMaxRequestBytes(Math.max(1, rejectedBytes / 2));
+        BatchEntity[] halves = ((BatchEntity) body).split();
+        if (halves == null) {
+            logger.warn("Dropping message, because a request of " + rejectedBytes + " bytes is too large");
+        } else {
+            logger.warn("Request of " + rejectedBytes + " bytes is too large, sending it in two halves");
+        }
+        return halves;
     }
 
-    private void keepTrying(String body) {
+    private synchronized void lowerMaxRequestBytes(long bytes) {
+        if (bytes < maxRequestBytes) {
+            maxRequestBytes = bytes;
+        }
+    }
+
+    // Delivered only if both halves were
+    private static SendResult combine(SendResult rejected, SendResult first, SendResult second, long startTime) {
+        SendResult failed = first.isDelivered() ? second : first;
+        return new SendResult(failed.isDelivered(),
+                failed.getStatusCode(),
+                rejected.getAttempts() + first.getAttempts() + second.getAttempts(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    private CompletableFuture<SendResult> startUnsplit(HttpEntity body) {
+        final BatchEntity compressed = compress(body);
+        final HttpEntity request = compressed != null ? compressed : body;
+
+        CompletableFuture<SendResult> result;
+        AsyncHttpEngine engine = this.engine;
+        if (engine != null) {
+            AsyncSend send = new AsyncSend(engine, retryScheduler, request);
+            send.run();
+            result = send.result;
+        } else {
+            Supplier<SendResult> send = new Supplier<SendResult>() {
+                @Override
+                public SendResult get() {
+                    return keepTrying(request);
+                }
+            };
+            try {
+                result = CompletableFuture.supplyAsync(send, sendPool);
+            } catch (RejectedExecutionException e) {
+                // Closed, send here rather than lose the body
+                result = CompletableFuture.completedFuture(send.get());
+            }
+        }
+
+        if (compressed == null) {
+            return result;
+        }
+        return result.whenComplete(new BiConsumer<SendResult, Throwable>() {
+            @Override
+            public void accept(SendResult sendResult, Throwable error) {
+                compressed.release();
+            }
+        });
+    }
+
+    // Compress once up front, so that retries resend the same compressed bytes.  Returns
+    // null when not compressing.
+    private BatchEntity compress(HttpEntity body) {
+        RequestCompressor compressor = this.compressor;
+        if (compressor == null) {
+            return null;
+        }
+        try {
+            return compressor.compress(body);
+        } catch (IOException e) {
+            logger.warn("Could not compress request, sending it uncompressed", e);
+            return null;
+        }
+    }
+
+    private SendResult keepTrying(HttpEntity body) {
+        AsyncHttpEngine engine = this.engine;
+        if (engine != null) {
+            AsyncSend send = new AsyncSend(engine, retryScheduler, body);
+            send.run();
+            return awaitAsyncSend(send);
+        }
+
+        long startTime = System.currentTimeMillis();
         boolean success = false;
+        boolean delivered = false;
+        int statusCode = SendResult.NO_RESPONSE;
         int tries = 0;
+        int circuitWaits = 0;
         do {
+            long throttledMs = throttle.reserve();
+            if (throttledMs > 0) {
+                try {
+                    Thread.sleep(throttledMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker != null && !breaker.allowRequest()) {
+                if (tries == 0) {
+                    logger.warn("Dropping message, because the circuit to Sumo Logic is open");
+                    break;
+                }
+                // Already tried, so wait for the circuit, which counts as a retry
+                if (isOutOfRetries(tries - 1 + circuitWaits)) {
+                    logger.warn("Dropping message, because max number of retries has been reached. Message: %s", body);
+                    break;
+                }
+                circuitWaits++;
+                try {
+                    Thread.sleep(circuitWaitMs(breaker, tries));
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
             tries++;
 
             try {
-                trySend(body);
+                statusCode = trySend(body);
+                delivered = statusCode == 200;
                 success = true;
             } catch (Exception e) {
-                try {
-                    Thread.sleep(retryIntervalMs);
-                } catch (InterruptedException e1) {
-                    break;
+                statusCode = e instanceof RetryableStatusException ?
+                        ((RetryableStatusException) e).statusCode : SendResult.NO_RESPONSE;
+                // After a 429 the throttle decides when to try again
+                if (statusCode != STATUS_TOO_MANY_REQUESTS) {
+                    try {
+                        Thread.sleep(retryDelayMs(tries));
+                    } catch (InterruptedException e1) {
+                        break;
+                    }
                 }
             }
 
-            if ((tries - 1 == maxNumberOfRetries) && (maxNumberOfRetries >= 0)) {
+            if (isOutOfRetries(tries - 1 + circuitWaits)) {
                 if (!success) {
                     logger.warn("Dropping message, because max number of retries has been reached. Message: %s", body);
                 }
                 break;
             }
         } while (!success && !Thread.currentThread().isInterrupted());
+
+        return new SendResult(delivered, statusCode, tries, System.currentTimeMillis() - startTime);
+    }
+
+    // Exponential backoff with jitter: the doubled interval, less a random amount of up to half
+    private long retryDelayMs(int tries) {
+        long maxDelayMs = Math.max(retryIntervalMs, maxRetryIntervalMs);
+        long delayMs = retryIntervalMs;
+        for (int i = 1; i < tries && delayMs < maxDelayMs; i++) {
+            delayMs *= 2;
+        }
+        delayMs = Math.min(delayMs, maxDelayMs);
+        long halfMs = delayMs / 2;
+        return delayMs - ThreadLocalRandom.current().nextLong(halfMs + 1);
+    }
+
+    private boolean isOutOfRetries(int retries) {
+        return maxNumberOfRetries >= 0 && retries >= maxNumberOfRetries;
+    }
+
+    // Until the circuit lets a probe through, but no longer than the next retry would wait
+    private long circuitWaitMs(CircuitBreaker breaker, int tries) {
+        long remainingMs = breaker.getRemainingOpenMs();
+        long delayMs = retryDelayMs(tries);
+        return remainingMs > 0 ? Math.min(remainingMs, delayMs) : delayMs;
+    }
+
+    // A 429 pauses sending and a 200 lets the request rate climb back.  For the circuit, a
+    // status worth retrying other than 429 counts as a failure, any other response as a success
+    private void recordResponse(int statusCode, String retryAfter) {
+        if (statusCode == STATUS_TOO_MANY_REQUESTS) {
+            throttle.recordThrottled(retryAfter);
+        } else if (statusCode == 200) {
+            throttle.recordAccepted();
+        }
+
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            if (statusCode != 200 && statusCode != STATUS_TOO_MANY_REQUESTS && isRetryable(statusCode)) {
+                breaker.recordFailure();
+            } else {
+                breaker.recordSuccess();
+            }
+        }
+    }
+
+    private void recordFailure() {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.recordFailure();
+        }
     }
 
-    private void trySend(String body) throws IOException {
+    // Returns the status code, or NO_RESPONSE for a request that cannot be sent at all
+    private int trySend(HttpEntity body) throws IOException {
         HttpPost post = null;
+        AdaptiveFlushController controller = flushController;
+        long startTime = System.currentTimeMillis();
+        boolean responded = false;
         try {
             if (url == null)
                 throw new IOException("Unknown endpoint");
 
             post = new HttpPost(url);
-            safeSetHeader(post, SUMO_SOURCE_NAME_HEADER, sourceName);
-            safeSetHeader(post, SUMO_SOURCE_CATEGORY_HEADER, sourceCategory);
-            safeSetHeader(post, SUMO_SOURCE_HOST_HEADER, sourceHost);
-            safeSetHeader(post, SUMO_CLIENT_HEADER, clientHeaderValue);
-            safeSetHeader(post, SUMO_FIELDS_HEADER, fieldsHeaderValue);
-            post.setEntity(new StringEntity(body, Consts.UTF_8));
+            for (Map.Entry<String, String> header : sumoHeaders().entrySet()) {
+                post.setHeader(header.getKey(), header.getValue());
+            }
+            post.setEntity(body);
             HttpResponse response = httpClient.execute(post);
             int statusCode = response.getStatusLine().getStatusCode();
+            responded = true;
+            Header retryAfter = response.getFirstHeader(RETRY_AFTER_HEADER);
+            recordResponse(statusCode, retryAfter != null ? retryAfter.getValue() : null);
+            if (controller != null) {
+                controller.recordResponse(statusCode, System.currentTimeMillis() - startTime);
+            }
             if (statusCode != 200) {
                 logger.warn("Received non-200 response code from Sumo Service: " + statusCode);
-                // Not success. Only retry if status matches retryableHttpCodeRegex
-                if (retryableHttpCodeRegexPattern.matcher(String.valueOf(statusCode)).find()) {
+                // Not success. Only retry if throttled or status matches retryableHttpCodeRegex
+                if (isRetryable(statusCode)) {
                     //need to consume the body if you want to re-use the connection.
                     EntityUtils.consume(response.getEntity());
-                    throw new IOException("Encountered retryable status code: " + statusCode);
+                    throw new RetryableStatusException(statusCode);
                 }
             } else {
                 logger.debug("Successfully sent log request to Sumo Logic");
             }
             //need to consume the body if you want to re-use the connection.
             EntityUtils.consume(response.getEntity());
+            return statusCode;
         } catch (ClientProtocolException e) {
             logger.warn("Dropping message due to invalid URL: " + url);
+            recordFailure();
             try {
                 post.abort();
             } catch (Exception ignore) { }
             // Don't throw exception any further
+            return SendResult.NO_RESPONSE;
         } catch (IOException e) {
             logger.warn("Could not send log to Sumo Logic", e);
+            if (!responded) {
+                recordFailure();
+                if (controller != null) {
+                    controller.recordFailure();
+                }
+            }
             try {
                 post.abort();
             } catch (Exception ignore) { }
@@ -225,9 +801,208 @@ public class SumoHttpSender {
         }
     }
 
-    private void safeSetHeader(HttpPost post, String name, String value) {
+    private static class RetryableStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int statusCode;
+
+        RetryableStatusException(int statusCode) {
+            super("Encountered retryable status code: " + statusCode);
+            this.statusCode = statusCode;
+        }
+    }
+
+    // Retrying a body that is too large would only be rejected again; it is split instead
+    private boolean isRetryable(int statusCode) {
+        if (statusCode == STATUS_PAYLOAD_TOO_LARGE) {
+            return false;
+        }
+        return statusCode == STATUS_TOO_MANY_REQUESTS ||
+                retryableHttpCodeRegexPattern.matcher(String.valueOf(statusCode)).find();
+    }
+
+    private Map<String, String> sumoHeaders() {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        safePutHeader(headers, SUMO_SOURCE_NAME_HEADER, sourceName);
+        safePutHeader(headers, SUMO_SOURCE_CATEGORY_HEADER, sourceCategory);
+        safePutHeader(headers, SUMO_SOURCE_HOST_HEADER, sourceHost);
+        safePutHeader(headers, SUMO_CLIENT_HEADER, clientHeaderValue);
+        safePutHeader(headers, SUMO_FIELDS_HEADER, fieldsHeaderValue);
+        return headers;
+    }
+
+    private void safePutHeader(Map<String, String> headers, String name, String value) {
         if (value != null && !value.trim().isEmpty()) {
-            post.setHeader(name, value);
+            headers.put(name, value);
+        }
+    }
+
+    // Waits out an async send.  The engine may still be reading the body, which the caller
+    // releases afterwards, so an interrupt stops further retries but does not stop the wait.
+    private SendResult awaitAsyncSend(AsyncSend send) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return send.result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    send.abandon();
+                } catch (ExecutionException e) {
+                    logger.warn("Could not send log to Sumo Logic", e.getCause());
+                    return new SendResult(false, SendResult.NO_RESPONSE, 0, 0);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * One body sent on the async engine, with the same retries as <tt>keepTrying</tt>: each
+     * attempt is posted without blocking, and a retry is scheduled when it fails.
+     */
+    private class AsyncSend implements Runnable {
+        final CompletableFuture<SendResult> result = new CompletableFuture<SendResult>();
+        private final AsyncHttpEngine engine;
+        private final ScheduledExecutorService retryScheduler;
+        private final HttpEntity body;
+        private final long startTime = System.currentTimeMillis();
+        // Only written by one attempt at a time
+        private volatile int tries = 0;
+        private volatile int circuitWaits = 0;
+        private volatile int statusCode = SendResult.NO_RESPONSE;
+        // Guarded by this
+        private boolean abandoned = false;
+        private ScheduledFuture<?> retry = null;
+
+        AsyncSend(AsyncHttpEngine engine, ScheduledExecutorService retryScheduler, HttpEntity body) {
+            this.engine = engine;
+            this.retryScheduler = retryScheduler;
+            this.body = body;
+        }
+
+        // Stop retrying, finishing straight away unless an attempt is under way
+        void abandon() {
+            synchronized (this) {
+                abandoned = true;
+                if (retry == null || !retry.cancel(false)) {
+                    return;
+                }
+            }
+            finish(false);
+        }
+
+        private void finish(boolean delivered) {
+            result.complete(new SendResult(delivered, statusCode, tries, System.currentTimeMillis() - startTime));
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (abandoned) {
+                    finish(false);
+                    return;
+                }
+            }
+            long throttledMs = throttle.reserve();
+            if (throttledMs > 0) {
+                scheduleRetry(throttledMs);
+                return;
+            }
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker != null && !breaker.allowRequest()) {
+                if (tries == 0) {
+                    logger.warn("Dropping message, because the circuit to Sumo Logic is open");
+                    finish(false);
+                    return;
+                }
+                // Already tried, so wait for the circuit, which counts as a retry
+                if (isOutOfRetries(tries - 1 + circuitWaits)) {
+                    logger.warn("Dropping message, because max number of retries has been reached.");
+                    finish(false);
+                    return;
+                }
+                circuitWaits++;
+                scheduleRetry(circuitWaitMs(breaker, tries));
+                return;
+            }
+            tries++;
+
+            final AdaptiveFlushController controller = flushController;
+            final long attemptStartTime = System.currentTimeMillis();
+            CompletableFuture<AsyncHttpEngine.Response> response;
+            try {
+                if (url == null) {
+                    throw new IOException("Unknown endpoint");
+                }
+                response = engine.post(url, sumoHeaders(), body);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Dropping message due to invalid URL: " + url);
+                recordFailure();
+                finish(false);
+                return;
+            } catch (IOException e) {
+                response = new CompletableFuture<AsyncHttpEngine.Response>();
+                response.completeExceptionally(e);
+            }
+
+            response.whenComplete(new BiConsumer<AsyncHttpEngine.Response, Throwable>() {
+                @Override
+                public void accept(AsyncHttpEngine.Response response, Throwable error) {
+                    int statusCode = error == null ? response.getStatusCode() : SendResult.NO_RESPONSE;
+                    AsyncSend.this.statusCode = statusCode;
+                    if (error == null) {
+                        recordResponse(statusCode, response.getRetryAfter());
+                        if (controller != null) {
+                            controller.recordResponse(statusCode, System.currentTimeMillis() - attemptStartTime);
+                        }
+                        if (statusCode == 200) {
+                            logger.debug("Successfully sent log request to Sumo Logic");
+                            finish(true);
+                            return;
+                        }
+                        logger.warn("Received non-200 response code from Sumo Service: " + statusCode);
+                        if (!isRetryable(statusCode)) {
+                            finish(false);
+                            return;
+                        }
+                    } else {
+                        logger.warn("Could not send log to Sumo Logic", error);
+                        recordFailure();
+                        if (controller != null) {
+                            controller.recordFailure();
+                        }
+                    }
+                    retryLater();
+                }
+            });
+        }
+
+        private void retryLater() {
+            if (isOutOfRetries(tries - 1 + circuitWaits)) {
+                logger.warn("Dropping message, because max number of retries has been reached.");
+                finish(false);
+                return;
+            }
+            // After a 429 the throttle decides when to try again
+            scheduleRetry(statusCode == STATUS_TOO_MANY_REQUESTS ? throttle.getDelayMs() : retryDelayMs(tries));
+        }
+
+        private void scheduleRetry(long delayMs) {
+            synchronized (this) {
+                if (!abandoned) {
+                    try {
+                        retry = retryScheduler.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // Closed while sending
+                    }
+                }
+            }
+            finish(false);
         }
     }
 }
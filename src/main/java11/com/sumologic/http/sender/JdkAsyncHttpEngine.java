@@ -0,0 +1,239 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * {@link AsyncHttpEngine} on the JDK's <tt>java.net.http</tt> client.  The client multiplexes
+ * every connection on its own selector thread; responses are handed to a single completion
+ * thread.  Batch bodies are published straight from their chunks.
+ * <p>
+ * Compiled for Java 11 from <tt>src/main/java11</tt> and loaded by name, so that the rest
+ * of the library still runs on Java 8.  Proxies with basic authentication are supported,
+ * NTLM proxies are not.
+ */
+public class JdkAsyncHttpEngine implements AsyncHttpEngine {
+    private final ExecutorService completions;
+    private final HttpClient client;
+    private final Duration socketTimeout;
+
+    public JdkAsyncHttpEngine(int connectionTimeoutMs, int socketTimeoutMs, ProxySettings proxySettings) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectionTimeoutMs));
+
+        if (proxySettings != null && proxySettings.getHostname() != null) {
+            proxySettings.validate();
+            final String authType = proxySettings.getAuthType();
+            if (ProxySettings.NTLM_AUTH.equals(authType)) {
+                throw new IllegalArgumentException("The async engine does not support NTLM proxies");
+            } else if (authType != null && !ProxySettings.BASIC_AUTH.equals(authType)) {
+                throw new IllegalStateException("proxyAuth " + authType + " not supported!");
+            }
+            builder.proxy(ProxySelector.of(
+                    new InetSocketAddress(proxySettings.getHostname(), proxySettings.getPort())));
+            if (authType != null) {
+                final PasswordAuthentication credentials = new PasswordAuthentication(
+                        proxySettings.getUsername(), proxySettings.getPassword().toCharArray());
+                builder.authenticator(new Authenticator() {
+                    @Override
+                    protected PasswordAuthentication getPasswordAuthentication() {
+                        return getRequestorType() == RequestorType.PROXY ? credentials : null;
+                    }
+                });
+            }
+        }
+
+        completions = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("SumoAsyncHttpThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        client = builder.executor(completions).build();
+        socketTimeout = Duration.ofMillis(socketTimeoutMs);
+    }
+
+    @Override
+    public CompletableFuture<Response> post(String url, Map<String, String> headers, HttpEntity body) {
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid URL: " + url, e);
+        }
+
+        HttpRequest.BodyPublisher publisher;
+        try {
+            publisher = publisherFor(body);
+        } catch (IOException e) {
+            CompletableFuture<Response> failed = new CompletableFuture<Response>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(socketTimeout)
+                // Plain http would otherwise try to upgrade every request to HTTP/2
+                .version("https".equalsIgnoreCase(uri.getScheme()) ?
+                        HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .POST(publisher);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.header(header.getKey(), header.getValue());
+        }
+        setHeader(request, body.getContentType());
+        setHeader(request, body.getContentEncoding());
+
+        return client.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding())
+                .thenApply(new Function<HttpResponse<Void>, Response>() {
+                    @Override
+                    public Response apply(HttpResponse<Void> response) {
+                        return new Response(response.statusCode(),
+                                response.headers().firstValue("Retry-After").orElse(null));
+                    }
+                });
+    }
+
+    @Override
+    public void close() {
+        completions.shutdown();
+    }
+
+    private static void setHeader(HttpRequest.Builder request, Header header) {
+        if (header != null) {
+            request.header(header.getName(), header.getValue());
+        }
+    }
+
+    private static HttpRequest.BodyPublisher publisherFor(HttpEntity body) throws IOException {
+        if (body instanceof BatchEntity) {
+            BatchEntity batch = (BatchEntity) body;
+            List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(batch.chunkCount());
+            for (int i = 0; i < batch.chunkCount(); i++) {
+                buffers.add(batch.readableChunk(i));
+            }
+            return HttpRequest.BodyPublishers.fromPublisher(new ChunkPublisher(buffers), batch.getContentLength());
+        }
+        return HttpRequest.BodyPublishers.ofByteArray(EntityUtils.toByteArray(body));
+    }
+
+    // Publishes the same buffers to every subscriber, as the client may subscribe again to
+    // resend the body
+    private static class ChunkPublisher implements Flow.Publisher<ByteBuffer> {
+        private final List<ByteBuffer> buffers;
+
+        ChunkPublisher(List<ByteBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new ChunkSubscription(subscriber, buffers));
+        }
+    }
+
+    private static class ChunkSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final List<ByteBuffer> buffers;
+        private final AtomicLong demand = new AtomicLong();
+        // Requests can arrive from within onNext, or from other threads; whichever gets here
+        // first emits, and the others only leave a note to loop again
+        private final AtomicInteger emitters = new AtomicInteger();
+        private int next = 0;
+        private volatile boolean done = false;
+
+        ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, List<ByteBuffer> buffers) {
+            this.subscriber = subscriber;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                done = true;
+                subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+                return;
+            }
+            long current;
+            do {
+                current = demand.get();
+            } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            emit();
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        private void emit() {
+            if (emitters.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (!done && next < buffers.size() && demand.get() > 0) {
+                    demand.decrementAndGet();
+                    subscriber.onNext(buffers.get(next++).duplicate());
+                }
+                if (!done && next == buffers.size()) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+                missed = emitters.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.aggregation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveFlushControllerTest {
+
+    @Test
+    public void testStartsAtSmallestBatchAndLongestInterval() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 100, 1000, 10000);
+        assertEquals(10, controller.getMessagesPerRequest());
+        assertEquals(10000, controller.getMaxFlushIntervalMs());
+    }
+
+    @Test
+    public void testEnqueueRate() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 100, 1000, 10000);
+        long now = System.currentTimeMillis();
+
+        controller.recordQueueSize(0, now);
+        assertEquals(0, controller.getEnqueueRate(), 0.001);
+
+        // 500 still queued plus 500 taken out in a second
+        controller.recordDrained(500);
+        controller.recordQueueSize(500, now + 1000);
+        assertEquals(1000, controller.getEnqueueRate(), 0.001);
+
+        // Smoothed towards the newest sample
+        controller.recordQueueSize(500, now + 2000);
+        assertEquals(800, controller.getEnqueueRate(), 0.001);
+    }
+
+    @Test
+    public void testPromptResponsesGrowBatchAndShortenInterval() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 30, 1000, 10000);
+        long now = System.currentTimeMillis();
+        controller.recordQueueSize(0, now);
+        controller.recordQueueSize(1000, now + 1000);
+
+        controller.recordResponse(200, 10);
+        assertEquals(20, controller.getMessagesPerRequest());
+        assertEquals(9100, controller.getMaxFlushIntervalMs());
+
+        for (int i = 0; i < 20; i++) {
+            controller.recordResponse(200, 10);
+        }
+        assertEquals(30, controller.getMessagesPerRequest());
+        assertEquals(1000, controller.getMaxFlushIntervalMs());
+    }
+
+    @Test
+    public void testBatchDoesNotGrowPastWhatTheIntervalFills() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 100, 1000, 10000);
+        long now = System.currentTimeMillis();
+        // Half a message per second, so 5 per interval
+        controller.recordQueueSize(0, now);
+        controller.recordQueueSize(5, now + 10000);
+
+        controller.recordResponse(200, 10);
+        assertEquals(10, controller.getMessagesPerRequest());
+        assertEquals(9100, controller.getMaxFlushIntervalMs());
+    }
+
+    @Test
+    public void testSlowResponseHalvesBatch() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 100, 1000, 10000);
+        controller.setTargetLatencyMs(500);
+        long now = System.currentTimeMillis();
+        controller.recordQueueSize(0, now);
+        controller.recordQueueSize(10000, now + 1000);
+
+        for (int i = 0; i < 5; i++) {
+            controller.recordResponse(200, 10);
+        }
+        assertEquals(60, controller.getMessagesPerRequest());
+
+        controller.recordResponse(200, 600);
+        assertEquals(30, controller.getMessagesPerRequest());
+        controller.recordResponse(200, 600);
+        controller.recordResponse(200, 600);
+        assertEquals(10, controller.getMessagesPerRequest());
+    }
+
+    @Test
+    public void testTooLargeResponseHalvesBatchOnly() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 100, 1000, 10000);
+        long now = System.currentTimeMillis();
+        controller.recordQueueSize(0, now);
+        controller.recordQueueSize(10000, now + 1000);
+        for (int i = 0; i < 5; i++) {
+            controller.recordResponse(200, 10);
+        }
+        long interval = controller.getMaxFlushIntervalMs();
+
+        controller.recordResponse(413, 10);
+        assertEquals(30, controller.getMessagesPerRequest());
+        assertEquals(interval, controller.getMaxFlushIntervalMs());
+    }
+
+    @Test
+    public void testThrottlingAndFailuresLengthenInterval() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 100, 1000, 10000);
+        controller.setFlushIntervalDecreaseMs(4000);
+
+        controller.recordResponse(200, 10);
+        controller.recordResponse(200, 10);
+        assertEquals(2000, controller.getMaxFlushIntervalMs());
+
+        controller.recordResponse(429, 10);
+        assertEquals(4000, controller.getMaxFlushIntervalMs());
+        controller.recordFailure();
+        assertEquals(8000, controller.getMaxFlushIntervalMs());
+        controller.recordResponse(503, 10);
+        assertEquals(10000, controller.getMaxFlushIntervalMs());
+        assertEquals(10, controller.getMessagesPerRequest());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvertedBoundsRejected() {
+        new AdaptiveFlushController(100, 10, 1000, 10000);
+    }
+
+    @Test
+    public void testListenerToldAboutBatchSizeChanges() {
+        AdaptiveFlushController controller = new AdaptiveFlushController(10, 100, 1000, 10000);
+        final List<Integer> sizes = new ArrayList<Integer>();
+        controller.setListener(new AdaptiveFlushController.Listener() {
+            @Override
+            public void messagesPerRequestChanged(int messagesPerRequest) {
+                sizes.add(messagesPerRequest);
+            }
+        });
+        long now = System.currentTimeMillis();
+        controller.recordQueueSize(0, now);
+        controller.recordQueueSize(1000, now + 1000);
+
+        controller.recordResponse(200, 10);
+        controller.recordResponse(200, 10);
+        // Only the interval changes
+        controller.recordResponse(503, 10);
+        controller.recordResponse(413, 10);
+
+        assertEquals(Arrays.asList(20, 30, 15), sizes);
+    }
+}
@@ -26,14 +26,25 @@
 
 package com.sumologic.http.aggregation;
 
+import com.sumologic.http.queue.Batch;
 import com.sumologic.http.queue.BufferWithFifoEviction;
 import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -129,11 +140,563 @@ public class BufferFlushingTaskTest {
         assertEquals(2, tasks.get(0).size());
     }
 
+    @Test
+    public void testFlushByBytes() {
+        BufferFlushingTask<String, List<String>> task =
+                createTask(Integer.MAX_VALUE, Integer.MAX_VALUE, 10);
+
+        queue.add("msg1");
+        queue.add("msg2");
+        task.run();
+        assertTrue(tasks.isEmpty());
+
+        queue.add("msg3");
+        task.run();
+        // Cut at 10 bytes: two messages, then the rest
+        assertEquals(2, tasks.size());
+        assertEquals(Arrays.asList("msg1", "msg2"), tasks.get(0));
+        assertEquals(Arrays.asList("msg3"), tasks.get(1));
+    }
+
+    @Test
+    public void testFlushControllerOverridesBatchSize() {
+        BufferFlushingTask<String, List<String>> task =
+                createTask(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        AdaptiveFlushController controller = new AdaptiveFlushController(2, 100, 1000, 100000);
+        task.setFlushController(controller);
+        assertEquals(2, task.getCurrentMessagesPerRequest());
+
+        queue.add("msg1");
+        task.run();
+        assertTrue(tasks.isEmpty());
+
+        queue.add("msg2");
+        queue.add("msg3");
+        task.run();
+        assertEquals(2, tasks.size());
+        assertEquals(Arrays.asList("msg1", "msg2"), tasks.get(0));
+        assertEquals(Arrays.asList("msg3"), tasks.get(1));
+
+        task.setFlushController(null);
+        assertEquals(Integer.MAX_VALUE, task.getCurrentMessagesPerRequest());
+    }
+
+    @Test
+    public void testBatchesGrowWhileThrottled() {
+        final boolean[] throttled = {true};
+        BufferFlushingTask<String, List<String>> task =
+            new BufferFlushingTask<String, List<String>>(queue) {
+                @Override
+                protected long getMaxFlushIntervalMs() {
+                    return Integer.MAX_VALUE;
+                }
+
+                @Override
+                protected int getMessagesPerRequest() {
+                    return 2;
+                }
+
+                @Override
+                public boolean isSendingThrottled() {
+                    return throttled[0];
+                }
+
+                @Override
+                protected List<String> aggregate(List<String> messages) {
+                    return new ArrayList<String>(messages);
+                }
+
+                @Override
+                protected void sendOut(List<String> body) {
+                    tasks.add(body);
+                }
+            };
+        task.setThrottledBatchFactor(3);
+        assertEquals(6, task.getCurrentMessagesPerRequest());
+
+        for (int i = 1; i <= 5; i++) {
+            queue.add("msg" + i);
+        }
+        // Past the usual batch size, short of the throttled one
+        task.run();
+        assertTrue(tasks.isEmpty());
+
+        queue.add("msg6");
+        queue.add("msg7");
+        task.run();
+        assertEquals(2, tasks.size());
+        assertEquals(Arrays.asList("msg1", "msg2", "msg3", "msg4", "msg5", "msg6"), tasks.get(0));
+        assertEquals(Arrays.asList("msg7"), tasks.get(1));
+
+        throttled[0] = false;
+        assertEquals(2, task.getCurrentMessagesPerRequest());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThrottledBatchFactorMustBePositive() {
+        createTask(Integer.MAX_VALUE, 2).setThrottledBatchFactor(0);
+    }
+
+    @Test
+    public void testAcknowledgesOnlyDeliveredBatches() {
+        final List<Long> acknowledged = new ArrayList<Long>();
+        queue = new BufferWithFifoEviction<String>(1000, sizeElements) {
+            private long drained = 0;
+
+            @Override
+            public int drainTo(Batch<String> batch, int atMost, long maxCost) {
+                int n = super.drainTo(batch, atMost, maxCost);
+                drained += n;
+                return n;
+            }
+
+            @Override
+            public long drainPosition() {
+                return drained;
+            }
+
+            @Override
+            public void acknowledge(long position) {
+                acknowledged.add(position);
+            }
+        };
+        BufferFlushingTask<String, List<String>> task =
+            new BufferFlushingTask<String, List<String>>(queue) {
+                @Override
+                protected long getMaxFlushIntervalMs() {
+                    return Integer.MAX_VALUE;
+                }
+
+                @Override
+                protected int getMessagesPerRequest() {
+                    return 1;
+                }
+
+                @Override
+                protected List<String> aggregate(List<String> messages) {
+                    return new ArrayList<String>(messages);
+                }
+
+                @Override
+                protected void sendOut(List<String> body) {
+                    tasks.add(body);
+                }
+
+                @Override
+                protected boolean deliver(List<String> body) {
+                    sendOut(body);
+                    return !body.contains("dropped");
+                }
+            };
+
+        queue.add("msg1");
+        queue.add("dropped");
+        queue.add("msg3");
+        task.flushAndSend();
+
+        assertEquals(3, tasks.size());
+        assertEquals(Arrays.asList(1L, 3L), acknowledged);
+    }
+
+    @Test
+    public void testSteadyStateFlushDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final long[] total = {0};
+        BufferFlushingTask<String, Long> task = new BufferFlushingTask<String, Long>(queue) {
+            @Override
+            protected long getMaxFlushIntervalMs() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected int getMessagesPerRequest() {
+                return 100;
+            }
+
+            @Override
+            protected Long aggregate(List<String> messages) {
+                long length = 0;
+                for (int i = 0; i < messages.size(); i++) {
+                    length += messages.get(i).length();
+                }
+                total[0] += length;
+                return null;
+            }
+
+            @Override
+            protected void sendOut(Long body) {
+            }
+        };
+
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 100; i++) {
+                queue.add("msg1");
+            }
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            task.flushAndSend();
+            long after = allocations.getThreadAllocatedBytes(threadId);
+            // The first rounds size the batch and load classes
+            if (round >= 100) {
+                allocated += after - before;
+            }
+        }
+
+        assertEquals(200 * 100 * 4, total[0]);
+        assertTrue("Allocated " + allocated + " bytes in 100 flushes", allocated / 100 < 256);
+    }
+
+    @Test
+    public void testPipelinedDelivery() throws Exception {
+        final List<Long> acknowledged = new ArrayList<Long>();
+        queue = new BufferWithFifoEviction<String>(1000, sizeElements) {
+            private long drained = 0;
+
+            @Override
+            public int drainTo(Batch<String> batch, int atMost, long maxCost) {
+                int n = super.drainTo(batch, atMost, maxCost);
+                drained += n;
+                return n;
+            }
+
+            @Override
+            public long drainPosition() {
+                return drained;
+            }
+
+            @Override
+            public synchronized void acknowledge(long position) {
+                acknowledged.add(position);
+            }
+        };
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger sending = new AtomicInteger(0);
+        final AtomicInteger maxSending = new AtomicInteger(0);
+        final BufferFlushingTask<String, String> task = new BufferFlushingTask<String, String>(queue) {
+            @Override
+            protected long getMaxFlushIntervalMs() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected int getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String aggregate(List<String> messages) {
+                return messages.get(0);
+            }
+
+            @Override
+            protected void sendOut(String body) {
+            }
+
+            @Override
+            protected boolean deliver(String body) {
+                int now = sending.incrementAndGet();
+                synchronized (maxSending) {
+                    maxSending.set(Math.max(maxSending.get(), now));
+                }
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                sending.decrementAndGet();
+                return !body.equals("dropped");
+            }
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        task.setSenderPool(pool, 3);
+        queue.add("msg1");
+        queue.add("dropped");
+        queue.add("msg3");
+        queue.add("msg4");
+        queue.add("msg5");
+
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                task.flushAndSend();
+            }
+        });
+        flusher.start();
+
+        // Three batches in flight, the flusher waits for a free slot with two still queued
+        while (sending.get() < 3) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(3, task.getInFlightRequests());
+        assertEquals(2, queue.size());
+
+        release.countDown();
+        flusher.join(10000);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(3, maxSending.get());
+        assertEquals(0, task.getInFlightRequests());
+        assertEquals(0, queue.size());
+        // Acknowledged in drain order; the dropped batch is covered by a later one
+        assertTrue(acknowledged.size() >= 1);
+        assertEquals((Object) 5L, acknowledged.get(acknowledged.size() - 1));
+        for (int i = 1; i < acknowledged.size(); i++) {
+            assertTrue(acknowledged.get(i) > acknowledged.get(i - 1));
+        }
+        assertTrue(!acknowledged.contains(2L));
+    }
+
+    @Test
+    public void testInFlightByteLimitKeepsMessagesQueued() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BufferFlushingTask<String, String> task = new BufferFlushingTask<String, String>(queue) {
+            @Override
+            protected long getMaxFlushIntervalMs() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected int getMessagesPerRequest() {
+                return 2;
+            }
+
+            @Override
+            protected String aggregate(List<String> messages) {
+                return messages.toString();
+            }
+
+            @Override
+            protected void sendOut(String body) {
+            }
+
+            @Override
+            protected boolean deliver(String body) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        task.setSenderPool(pool, 4);
+        task.setMaxInFlightBytes(8);
+        for (int i = 0; i < 6; i++) {
+            queue.add("msg" + i);
+        }
+
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                task.flushAndSend();
+            }
+        });
+        flusher.start();
+
+        while (task.getInFlightRequests() < 1) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        // One batch of 8 bytes reaches the limit
+        assertEquals(1, task.getInFlightRequests());
+        assertEquals(8, task.getInFlightBytes());
+        assertEquals(4, queue.size());
+
+        release.countDown();
+        flusher.join(10000);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, queue.size());
+        assertEquals(0, task.getInFlightBytes());
+    }
+
+    @Test
+    public void testAsyncDeliveryWithoutSenderPool() throws Exception {
+        final List<Long> acknowledged = new ArrayList<Long>();
+        queue = new BufferWithFifoEviction<String>(1000, sizeElements) {
+            private long drained = 0;
+
+            @Override
+            public int drainTo(Batch<String> batch, int atMost, long maxCost) {
+                int n = super.drainTo(batch, atMost, maxCost);
+                drained += n;
+                return n;
+            }
+
+            @Override
+            public long drainPosition() {
+                return drained;
+            }
+
+            @Override
+            public synchronized void acknowledge(long position) {
+                acknowledged.add(position);
+            }
+        };
+
+        final List<CompletableFuture<Boolean>> pending =
+            Collections.synchronizedList(new ArrayList<CompletableFuture<Boolean>>());
+        final BufferFlushingTask<String, String> task = new BufferFlushingTask<String, String>(queue) {
+            @Override
+            protected long getMaxFlushIntervalMs() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected int getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String aggregate(List<String> messages) {
+                return messages.get(0);
+            }
+
+            @Override
+            protected void sendOut(String body) {
+            }
+
+            @Override
+            protected CompletableFuture<Boolean> deliverAsync(String body) {
+                CompletableFuture<Boolean> delivery = new CompletableFuture<Boolean>();
+                pending.add(delivery);
+                return delivery;
+            }
+        };
+
+        task.setMaxInFlightRequests(2);
+        queue.add("msg1");
+        queue.add("msg2");
+        queue.add("msg3");
+
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                task.flushAndSend();
+            }
+        });
+        flusher.start();
+
+        while (pending.size() < 2) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(2, pending.size());
+        assertEquals(2, task.getInFlightRequests());
+
+        // The second batch completes first, nothing is acknowledged past the first one
+        pending.get(1).complete(true);
+        assertTrue(acknowledged.isEmpty());
+        pending.get(0).complete(true);
+        while (pending.size() < 3) {
+            Thread.sleep(1);
+        }
+        pending.get(2).complete(true);
+        flusher.join(10000);
+        task.awaitInFlight();
+
+        assertEquals(0, task.getInFlightRequests());
+        assertEquals((Object) 3L, acknowledged.get(acknowledged.size() - 1));
+        assertTrue(!acknowledged.contains(1L));
+    }
+
+    @Test
+    public void testPermitGoesBackToItsOwnPipeline() throws Exception {
+        final List<CompletableFuture<Boolean>> pending =
+            Collections.synchronizedList(new ArrayList<CompletableFuture<Boolean>>());
+        final BufferFlushingTask<String, String> task = new BufferFlushingTask<String, String>(queue) {
+            @Override
+            protected long getMaxFlushIntervalMs() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected int getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String aggregate(List<String> messages) {
+                return messages.get(0);
+            }
+
+            @Override
+            protected void sendOut(String body) {
+            }
+
+            @Override
+            protected CompletableFuture<Boolean> deliverAsync(String body) {
+                CompletableFuture<Boolean> delivery = new CompletableFuture<Boolean>();
+                pending.add(delivery);
+                return delivery;
+            }
+        };
+
+        task.setMaxInFlightRequests(2);
+        queue.add("msg1");
+        task.flushAndSend();
+        assertEquals(1, pending.size());
+
+        // Reconfigured while msg1 is in flight, as stopping the flusher does
+        task.setSenderPool(null, 0);
+        task.setMaxInFlightRequests(1);
+        pending.get(0).complete(true);
+        assertEquals(0, task.getInFlightRequests());
+
+        queue.add("msg2");
+        queue.add("msg3");
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                task.flushAndSend();
+            }
+        });
+        flusher.start();
+
+        while (pending.size() < 2) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        // msg1's permit did not leak into the new pipeline
+        assertEquals(2, pending.size());
+
+        pending.get(1).complete(true);
+        while (pending.size() < 3) {
+            Thread.sleep(1);
+        }
+        pending.get(2).complete(true);
+        flusher.join(10000);
+        task.awaitInFlight();
+        assertEquals(0, task.getInFlightRequests());
+    }
+
     private BufferFlushingTask<String, List<String>> createTask(
             final long maxFlushIntervalMs, final int messagesPerRequest) {
+        return createTask(maxFlushIntervalMs, messagesPerRequest, Long.MAX_VALUE);
+    }
+
+    private BufferFlushingTask<String, List<String>> createTask(
+            final long maxFlushIntervalMs, final int messagesPerRequest, final long maxBytesPerRequest) {
 
         return new BufferFlushingTask<String, List<String>>(queue) {
 
+            @Override
+            protected long getMaxBytesPerRequest() {
+                return maxBytesPerRequest;
+            }
+
             @Override
             protected long getMaxFlushIntervalMs() {
                 return maxFlushIntervalMs;
@@ -146,7 +709,7 @@ public class BufferFlushingTaskTest {
 
             @Override
             protected List<String> aggregate(List<String> messages) {
-                return messages;
+                return new ArrayList<String>(messages);
             }
 
             @Override
@@ -0,0 +1,172 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlledBufferTest {
+
+    private CostBoundedConcurrentQueue.CostAssigner<String> lengthCost;
+    private BufferWithFifoEviction<String> buffer;
+
+    @Before
+    public void setUp() {
+        lengthCost = new CostBoundedConcurrentQueue.CostAssigner<String>() {
+            @Override
+            public long cost(String e) {
+                return e.length();
+            }
+        };
+        buffer = new BufferWithFifoEviction<String>(10000, lengthCost);
+    }
+
+    @Test
+    public void testUnlimitedAdmitsEverything() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(admission.add("m"));
+        }
+        assertEquals(1000, admission.size());
+        assertEquals(0, admission.getDroppedCount());
+    }
+
+    @Test
+    public void testMessageBudget() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 5, 0);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(admission.admit(1, now));
+        }
+        assertFalse(admission.admit(1, now));
+        assertTrue(admission.admit(1, now + 200000000L));
+    }
+
+    @Test
+    public void testByteBudgetDoesNotSpendMessageBudget() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 2, 10);
+        long now = System.nanoTime();
+
+        assertFalse(admission.admit(11, now));
+        assertTrue(admission.admit(5, now));
+        assertTrue(admission.admit(5, now));
+        assertFalse(admission.admit(1, now));
+    }
+
+    @Test
+    public void testDropsOverBudget() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 10, 0);
+        for (int i = 0; i < 100; i++) {
+            admission.add("m");
+        }
+
+        // Burst of ten, plus whatever refilled while looping
+        assertTrue(admission.size() >= 10 && admission.size() < 15);
+        assertEquals(100 - admission.size(), admission.getDroppedCount());
+        assertEquals(admission.getDroppedCount(), admission.getSampledOutCount());
+    }
+
+    @Test
+    public void testSamplesOneInN() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 1, 0);
+        admission.setSampleRate(10);
+        for (int i = 0; i < 101; i++) {
+            admission.add("m" + i);
+        }
+
+        List<String> result = new ArrayList<String>();
+        admission.drainTo(result, Integer.MAX_VALUE);
+
+        // m0 fits the budget, then the first of every ten over budget is let through
+        assertEquals(Arrays.asList("m0", "m1", "m11", "m21", "m31", "m41", "m51", "m61", "m71", "m81", "m91"),
+            result);
+        assertEquals(90, admission.getSampledOutCount());
+    }
+
+    @Test
+    public void testSummaryRecord() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 1, 0);
+        admission.setSummaryFactory(AdmissionControlledBuffer.SAMPLED_OUT_SUMMARY);
+        admission.setSummaryIntervalMs(0);
+
+        admission.add("a");
+        admission.add("b");
+
+        List<String> result = new ArrayList<String>();
+        admission.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("a", "1 messages sampled out"), result);
+
+        // Nothing new sampled out, no new summary
+        result.clear();
+        admission.drainTo(result, Integer.MAX_VALUE);
+        assertTrue(result.isEmpty());
+    }
+
+    @Test
+    public void testSummaryWaitsForInterval() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 1, 0);
+        admission.setSummaryFactory(AdmissionControlledBuffer.SAMPLED_OUT_SUMMARY);
+
+        admission.add("a");
+        admission.add("b");
+        long now = System.nanoTime();
+        admission.maybeAddSummary(now);
+        assertEquals(1, admission.size());
+
+        admission.maybeAddSummary(now + 20000000000L);
+        assertEquals(2, admission.size());
+    }
+
+    @Test
+    public void testDrainToByteLimit() {
+        AdmissionControlledBuffer<String> admission =
+            new AdmissionControlledBuffer<String>(buffer, lengthCost, 0, 0);
+        admission.add("aa");
+        admission.add("bbb");
+        admission.add("c");
+
+        Batch<String> batch = new Batch<String>();
+        assertEquals(2, admission.drainTo(batch, Integer.MAX_VALUE, 5));
+        assertEquals(Arrays.asList("aa", "bbb"), batch);
+        assertEquals(5, batch.cost());
+        assertEquals(1, admission.size());
+    }
+}
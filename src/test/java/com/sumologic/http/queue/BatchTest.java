@@ -0,0 +1,101 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BatchTest {
+
+    private CostBoundedConcurrentQueue.CostAssigner<String> lengthCost =
+        new CostBoundedConcurrentQueue.CostAssigner<String>() {
+            @Override
+            public long cost(String e) {
+                return e.length();
+            }
+        };
+
+    @Test
+    public void testGrowsAndAccumulatesCost() {
+        Batch<String> batch = new Batch<String>(2);
+        batch.add("a", 1);
+        batch.add("bb", 2);
+        batch.add("ccc", 3);
+
+        assertEquals(Arrays.asList("a", "bb", "ccc"), batch);
+        assertEquals(6, batch.cost());
+    }
+
+    @Test
+    public void testClearKeepsBatchUsable() {
+        Batch<String> batch = new Batch<String>();
+        batch.add("a", 1);
+        batch.clear();
+
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.cost());
+        batch.add("b");
+        assertEquals(Arrays.asList("b"), batch);
+        assertEquals(0, batch.cost());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetPastSize() {
+        Batch<String> batch = new Batch<String>();
+        batch.add("a");
+        batch.clear();
+        batch.get(0);
+    }
+
+    @Test
+    public void testDrainFromBufferCarriesCost() {
+        BufferWithFifoEviction<String> buffer = new BufferWithFifoEviction<String>(100, lengthCost);
+        buffer.add("one");
+        buffer.add("three");
+        buffer.add("seven");
+
+        Batch<String> batch = new Batch<String>();
+        assertEquals(2, buffer.drainTo(batch, 2));
+        assertEquals(Arrays.asList("one", "three"), batch);
+        assertEquals(8, batch.cost());
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void testDefaultDrainFillsBatch() {
+        RingBufferWithFifoEviction<String> buffer = new RingBufferWithFifoEviction<String>(100, 16, lengthCost);
+        buffer.add("one");
+        buffer.add("two");
+
+        Batch<String> batch = new Batch<String>();
+        assertEquals(2, buffer.drainTo(batch, Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("one", "two"), batch);
+    }
+}
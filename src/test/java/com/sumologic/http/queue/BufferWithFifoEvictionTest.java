@@ -143,5 +143,230 @@ public class BufferWithFifoEvictionTest {
 
     }
 
+    @Test
+    public void testLargeElementEvictsManySmallOnes() {
+        queue = new BufferWithFifoEviction<Integer>(10000, valueCost);
+        for (int i = 0; i < 10000; i++) {
+            queue.add(1);
+        }
+
+        assertTrue(queue.add(9990));
+        assertEquals(11, queue.size());
+
+        List<Integer> result = new ArrayList<Integer>(11);
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals((Object) 9990, result.get(10));
+    }
+
+    @Test
+    public void testCostAssignedOncePerElement() {
+        final int[] calls = {0};
+        queue = new BufferWithFifoEviction<Integer>(10,
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    calls[0]++;
+                    return e;
+                }
+            });
+
+        for (int i = 1; i <= 4; i++) {
+            queue.add(i);
+        }
+        // Overflows, evicting 1 and 2
+        queue.add(3);
+        queue.drainTo(new ArrayList<Integer>(), Integer.MAX_VALUE);
+
+        assertEquals(5, calls[0]);
+    }
+
+    @Test
+    public void testDropNewestPolicy() {
+        queue = new BufferWithFifoEviction<Integer>(3, countCost);
+        queue.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>(3);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(1, 2, 3), result);
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(0, queue.getEvictedCount());
+    }
+
+    @Test
+    public void testDropOldestCountsEvictions() {
+        queue = new BufferWithFifoEviction<Integer>(3, countCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        assertEquals(2, queue.getEvictedCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testBlockPolicyWaitsForDrain() throws Exception {
+        queue = new BufferWithFifoEviction<Integer>(2, countCost);
+        queue.setOverflowPolicy(OverflowPolicy.BLOCK);
+        queue.setBlockTimeoutMs(10000);
+        queue.add(1);
+        queue.add(2);
+
+        final boolean[] added = {false};
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                added[0] = queue.add(3);
+            }
+        });
+        producer.start();
+        while (queue.getBlockedCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        List<Integer> result = new ArrayList<Integer>(2);
+        queue.drainTo(result, 1);
+        producer.join(10000);
+
+        assertTrue(added[0]);
+        result.clear();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(2, 3), result);
+        assertEquals(0, queue.getTimedOutCount());
+    }
+
+    @Test
+    public void testBlockPolicyTimesOut() {
+        queue = new BufferWithFifoEviction<Integer>(2, countCost);
+        queue.setOverflowPolicy(OverflowPolicy.BLOCK);
+        queue.setBlockTimeoutMs(10);
+        queue.add(1);
+        queue.add(2);
 
+        assertFalse(queue.add(3));
+        assertEquals(1, queue.getBlockedCount());
+        assertEquals(1, queue.getTimedOutCount());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testOfferDoesNotBlock() {
+        queue = new BufferWithFifoEviction<Integer>(2, countCost);
+        queue.setOverflowPolicy(OverflowPolicy.BLOCK);
+        queue.setBlockTimeoutMs(10000);
+        assertTrue(queue.offer(1));
+        queue.add(2);
+
+        assertFalse(queue.offer(3));
+        assertEquals(0, queue.getBlockedCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testSpillPolicyKeepsOrder() {
+        queue = new BufferWithFifoEviction<Integer>(2, countCost);
+        queue.setSpillBuffer(new BufferWithFifoEviction<Integer>(10, countCost));
+        queue.setOverflowPolicy(OverflowPolicy.SPILL);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+        assertEquals(5, queue.size());
+        assertEquals(3, queue.getSpilledCount());
+
+        List<Integer> result = new ArrayList<Integer>(5);
+        queue.drainTo(result, 2);
+        // Memory has room again, but spilled elements must leave first
+        queue.add(6);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), result);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSpillPolicyRequiresSpillBuffer() {
+        queue = new BufferWithFifoEviction<Integer>(2, countCost);
+        queue.setOverflowPolicy(OverflowPolicy.SPILL);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedPolicyRejected() {
+        new RingBufferWithFifoEviction<Integer>(2, 4, countCost)
+            .setOverflowPolicy(OverflowPolicy.BLOCK);
+    }
+
+    @Test
+    public void testSetCapacity() {
+        queue = new BufferWithFifoEviction<Integer>(10, countCost);
+        for (int i = 1; i <= 10; i++) {
+            queue.add(i);
+        }
+
+        queue.setCapacity(4);
+        assertEquals(4, queue.size());
+        assertEquals(6, queue.getEvictedCount());
+        queue.add(11);
+        assertEquals(4, queue.size());
+
+        queue.setCapacity(6);
+        queue.add(12);
+        queue.add(13);
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(8, 9, 10, 11, 12, 13), result);
+    }
+
+    @Test
+    public void testGrowingReleasesBlockedProducer() throws Exception {
+        queue = new BufferWithFifoEviction<Integer>(1, countCost);
+        queue.setOverflowPolicy(OverflowPolicy.BLOCK);
+        queue.setBlockTimeoutMs(10000);
+        queue.add(1);
+
+        final boolean[] added = {false};
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                added[0] = queue.add(2);
+            }
+        });
+        producer.start();
+        while (queue.getBlockedCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        queue.setCapacity(2);
+        producer.join(10000);
+        assertTrue(added[0]);
+        assertEquals(2, queue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetCapacityRejectsZero() {
+        queue = new BufferWithFifoEviction<Integer>(10, countCost);
+        queue.setCapacity(0);
+    }
+
+    @Test
+    public void testDrainToByteLimit() {
+        queue = new BufferWithFifoEviction<Integer>(1+2+3+4+5, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        Batch<Integer> batch = new Batch<Integer>();
+        assertEquals(3, queue.drainTo(batch, Integer.MAX_VALUE, 6));
+        assertEquals(Arrays.asList(1, 2, 3), batch);
+        assertEquals(6, batch.cost());
+
+        // An element over the limit on its own still goes out alone
+        batch.clear();
+        assertEquals(1, queue.drainTo(batch, Integer.MAX_VALUE, 2));
+        assertEquals(Arrays.asList(4), batch);
+        assertEquals(4, batch.cost());
+        assertEquals(5, queue.cost());
+    }
 }
@@ -115,4 +115,118 @@ public class CostBoundedConcurrentQueueTest {
         assertEquals(0, queue.cost());
 
     }
+
+    @Test
+    public void testOrderAcrossSegments() {
+        int count = 3 * CostBoundedConcurrentQueue.SEGMENT_SIZE + 7;
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(count, sizeElements);
+        for (int i = 0; i < count; i++) {
+            assertTrue(queue.offer(String.valueOf((char) ('a' + i % 26))));
+        }
+        assertEquals(count, queue.size());
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(String.valueOf((char) ('a' + i % 26)), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testEvictDropsWholeSegments() {
+        int perSegment = CostBoundedConcurrentQueue.SEGMENT_SIZE;
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(10 * perSegment, sizeElements);
+        for (int i = 0; i < 4 * perSegment; i++) {
+            queue.offer(stringOfSize(1));
+        }
+        queue.offer(stringOfSize(5));
+
+        // Down to the last segment plus a few elements of the one before it
+        assertEquals(3 * perSegment - 3, queue.evict(perSegment + 3 + 5));
+        assertEquals(perSegment + 3 + 5, queue.cost());
+        assertEquals(perSegment + 4, queue.size());
+
+        // Nothing to do when already below the target
+        assertEquals(0, queue.evict(Long.MAX_VALUE));
+
+        assertEquals(perSegment + 4, queue.evict(0));
+        assertEquals(0, queue.cost());
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+
+        assertTrue(queue.offer(stringOfSize(3)));
+        assertEquals(stringOfSize(3), queue.poll());
+    }
+
+    @Test
+    public void testEvictMatchesElementWiseEviction() {
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(100000, sizeElements);
+        CostBoundedConcurrentQueue<String> reference =
+                new CostBoundedConcurrentQueue<String>(100000, sizeElements);
+        for (int i = 0; i < 2000; i++) {
+            String s = stringOfSize(i % 7);
+            queue.offer(s);
+            reference.offer(s);
+        }
+
+        long target = 2345;
+        int evicted = queue.evict(target);
+        int expected = 0;
+        while (reference.cost() > target) {
+            reference.poll();
+            expected++;
+        }
+
+        assertEquals(expected, evicted);
+        assertEquals(reference.cost(), queue.cost());
+        assertEquals(reference.size(), queue.size());
+    }
+
+    @Test
+    public void testDrainEnvelopesTo() {
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(1000, sizeElements);
+
+        long before = System.nanoTime();
+        queue.offer(stringOfSize(3));
+        queue.offer(new Envelope<String>("abc", 42));
+
+        List<Envelope<String>> list = new ArrayList<Envelope<String>>(2);
+        assertEquals(2, queue.drainEnvelopesTo(list, Integer.MAX_VALUE));
+
+        assertEquals(3, list.get(0).getCost());
+        assertTrue(list.get(0).getEnqueueNanos() - before >= 0);
+        assertEquals("abc", list.get(1).getElement());
+        assertEquals(42, list.get(1).getCost());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testDrainToBatchStopsAtMaxCost() {
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(1000, sizeElements);
+        queue.offer(stringOfSize(40));
+        queue.offer(stringOfSize(40));
+        queue.offer(stringOfSize(40));
+
+        Batch<String> batch = new Batch<String>();
+        assertEquals(2, queue.drainTo(batch, Integer.MAX_VALUE, 100));
+        assertEquals(80, batch.cost());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testDrainToBatchAlwaysTakesOversizedHead() {
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(1000, sizeElements);
+        queue.offer(stringOfSize(500));
+        queue.offer(stringOfSize(1));
+
+        Batch<String> batch = new Batch<String>();
+        assertEquals(1, queue.drainTo(batch, Integer.MAX_VALUE, 100));
+        assertEquals(500, batch.cost());
+    }
 }
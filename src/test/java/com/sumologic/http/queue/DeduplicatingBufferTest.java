@@ -0,0 +1,218 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class DeduplicatingBufferTest {
+
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    private BufferWithFifoEviction<String> buffer;
+    private DeduplicatingBuffer<String> dedup;
+
+    @Before
+    public void setUp() {
+        buffer = new BufferWithFifoEviction<String>(10000,
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return e.length();
+                }
+            });
+        dedup = new DeduplicatingBuffer<String>(buffer, DeduplicatingBuffer.STRING_REPEATS, 1000, 16);
+    }
+
+    private List<String> drain() {
+        List<String> result = new ArrayList<String>();
+        buffer.drainTo(result, Integer.MAX_VALUE);
+        return result;
+    }
+
+    @Test
+    public void testRepeatsCollapsedAfterWindow() {
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(dedup.add("retrying", now));
+        }
+        assertEquals(Arrays.asList("retrying"), drain());
+        assertEquals(999, dedup.getSuppressedCount());
+
+        dedup.flushRepeats(now + WINDOW_NANOS / 2, false);
+        assertTrue(drain().isEmpty());
+
+        dedup.flushRepeats(now + WINDOW_NANOS, false);
+        assertEquals(Arrays.asList("Message repeated 999 more times: retrying"), drain());
+    }
+
+    @Test
+    public void testRepeatAfterWindowStartsOver() {
+        long now = System.nanoTime();
+        dedup.add("ping", now);
+        dedup.add("ping", now + 1);
+        dedup.add("ping", now + WINDOW_NANOS);
+
+        assertEquals(Arrays.asList("ping", "Message repeated 1 more times: ping", "ping"), drain());
+    }
+
+    @Test
+    public void testDistinctMessagesPassThrough() {
+        long now = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            dedup.add("m" + i, now);
+        }
+        assertEquals(100, drain().size());
+        assertEquals(0, dedup.getSuppressedCount());
+    }
+
+    @Test
+    public void testCollisionFlushesOldEntry() {
+        // "Aa" and "BB" share a hash code
+        long now = System.nanoTime();
+        dedup.add("Aa", now);
+        dedup.add("Aa", now);
+        dedup.add("BB", now);
+        dedup.add("BB", now);
+
+        assertEquals(Arrays.asList("Aa", "Message repeated 1 more times: Aa", "BB"), drain());
+    }
+
+    @Test
+    public void testFlushRepeatsEmitsPendingCounts() {
+        dedup.add("a");
+        dedup.add("a");
+        dedup.add("b");
+        dedup.flushRepeats();
+
+        List<String> result = drain();
+        assertEquals(3, result.size());
+        assertTrue(result.contains("Message repeated 1 more times: a"));
+
+        dedup.add("a");
+        assertEquals(Arrays.asList("a"), drain());
+    }
+
+    @Test
+    public void testDrainToFlushesExpiredRepeats() throws Exception {
+        dedup = new DeduplicatingBuffer<String>(buffer, DeduplicatingBuffer.STRING_REPEATS, 1, 16);
+        dedup.add("a");
+        dedup.add("a");
+        Thread.sleep(5);
+
+        List<String> result = new ArrayList<String>();
+        dedup.drainTo(result, Integer.MAX_VALUE);
+        dedup.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("a", "Message repeated 1 more times: a"), result);
+    }
+
+    @Test
+    public void testDrainToDoesNotWaitForRoom() throws Exception {
+        buffer = new BufferWithFifoEviction<String>(50,
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return e.length();
+                }
+            });
+        buffer.setOverflowPolicy(OverflowPolicy.BLOCK);
+        buffer.setBlockTimeoutMs(5000);
+        dedup = new DeduplicatingBuffer<String>(buffer, DeduplicatingBuffer.STRING_REPEATS, 1, 16);
+        dedup.add("aaaa");
+        dedup.add("aaaa");
+        dedup.add("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+        Thread.sleep(5);
+
+        // The repeat record does not fit yet; only the next drain makes room for it
+        long start = System.currentTimeMillis();
+        List<String> result = new ArrayList<String>();
+        assertEquals(1, dedup.drainTo(result, 1));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, buffer.getBlockedCount());
+
+        dedup.drainTo(result, Integer.MAX_VALUE);
+        dedup.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("aaaa", "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb",
+                "Message repeated 1 more times: aaaa"), result);
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 8;
+        final int perProducer = 10000;
+        dedup = new DeduplicatingBuffer<String>(buffer, DeduplicatingBuffer.STRING_REPEATS, 60000, 1024);
+
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        dedup.add("m" + (i % 100));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        // Each distinct message goes in once, everything else is a repeat
+        assertEquals(100, buffer.size());
+        assertEquals(producers * perProducer - 100, dedup.getSuppressedCount());
+
+        dedup.flushRepeats();
+        long repeats = 0;
+        for (String e : drain()) {
+            if (e.startsWith("Message repeated ")) {
+                repeats += Long.parseLong(e.split(" ")[2]);
+            }
+        }
+        assertEquals(dedup.getSuppressedCount(), repeats);
+    }
+
+    @Test
+    public void testDrainToByteLimit() {
+        long now = System.nanoTime();
+        dedup.add("aa", now);
+        dedup.add("bbb", now);
+        dedup.add("c", now);
+
+        Batch<String> batch = new Batch<String>();
+        assertEquals(2, dedup.drainTo(batch, Integer.MAX_VALUE, 5));
+        assertEquals(Arrays.asList("aa", "bbb"), batch);
+        assertEquals(5, batch.cost());
+        assertEquals(1, dedup.size());
+    }
+}
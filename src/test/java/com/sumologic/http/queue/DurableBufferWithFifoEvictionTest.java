@@ -0,0 +1,242 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DurableBufferWithFifoEvictionTest {
+    private static final Logger logger = LoggerFactory.getLogger(DurableBufferWithFifoEvictionTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CostBoundedConcurrentQueue.CostAssigner<String> sizeElements;
+    private File logDirectory;
+    private DurableBufferWithFifoEviction queue;
+
+    @Before
+    public void setUp() throws Exception {
+        sizeElements = new CostBoundedConcurrentQueue.CostAssigner<String>() {
+            @Override
+            public long cost(String e) {
+                return e.length();
+            }
+        };
+        logDirectory = folder.newFolder("wal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    private DurableBufferWithFifoEviction reopen() throws Exception {
+        if (queue != null) {
+            queue.close();
+        }
+        queue = new DurableBufferWithFifoEviction(1000, sizeElements, logDirectory, 10, 64);
+        return queue;
+    }
+
+    @Test
+    public void testDrainTo() throws Exception {
+        reopen();
+        queue.add("msg1");
+        queue.add("msg2");
+        queue.add("msg3");
+
+        List<String> result = new ArrayList<String>();
+        assertEquals(2, queue.drainTo(result, 2));
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList("msg1", "msg2", "msg3"), result);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testReplayUnacknowledged() throws Exception {
+        reopen();
+        queue.add("msg1");
+        queue.add("msg2");
+        queue.add("msg3");
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, 1);
+        queue.acknowledge(queue.drainPosition());
+        // Drained but never acknowledged
+        queue.drainTo(result, 1);
+
+        reopen();
+        queue.add("msg4");
+        result.clear();
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList("msg2", "msg3", "msg4"), result);
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws Exception {
+        reopen();
+        for (int i = 0; i < 20; i++) {
+            queue.add("message number " + i);
+        }
+        assertTrue(logDirectory.list().length > 5);
+
+        queue.drainTo(new ArrayList<String>(), Integer.MAX_VALUE);
+        queue.acknowledge(queue.drainPosition());
+
+        int segments = 0;
+        for (String name : logDirectory.list()) {
+            if (name.endsWith(".log")) segments++;
+        }
+        assertEquals(1, segments);
+
+        reopen();
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testTornRecordIsDiscarded() throws Exception {
+        reopen();
+        queue.add("complete");
+        queue.add("torn");
+        queue.close();
+        queue = null;
+
+        File last = null;
+        for (File file : logDirectory.listFiles()) {
+            if (file.getName().endsWith(".log") && (last == null || file.compareTo(last) > 0)) {
+                last = file;
+            }
+        }
+        RandomAccessFile file = new RandomAccessFile(last, "rw");
+        file.setLength(file.length() - 2);
+        file.close();
+
+        reopen();
+        queue.add("after");
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList("complete", "after"), result);
+    }
+
+    @Test
+    public void testLogSizeIsCapped() throws Exception {
+        queue = new DurableBufferWithFifoEviction(1000, sizeElements, logDirectory, 10, 64, 192);
+        for (int i = 0; i < 40; i++) {
+            queue.add("message number " + i);
+        }
+        // Still queued in memory, just no longer durable
+        assertEquals(40, queue.size());
+
+        long logBytes = 0;
+        for (File file : logDirectory.listFiles()) {
+            if (file.getName().endsWith(".log")) logBytes += file.length();
+        }
+        assertTrue("Log holds " + logBytes + " bytes", logBytes <= 192);
+
+        queue.close();
+        queue = new DurableBufferWithFifoEviction(1000, sizeElements, logDirectory, 10, 64, 192);
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertTrue(result.size() > 0 && result.size() < 40);
+        assertEquals("message number 39", result.get(result.size() - 1));
+    }
+
+    @Test
+    public void testEvictionKeepsNewest() throws Exception {
+        queue = new DurableBufferWithFifoEviction(10, sizeElements, logDirectory, 10);
+        queue.add("aaaa");
+        queue.add("bbbb");
+        queue.add("cccc");
+        assertFalse(queue.add("12345678901"));
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("bbbb", "cccc"), result);
+    }
+
+    @Test
+    public void testGroupCommitThroughput() throws Exception {
+        queue = new DurableBufferWithFifoEviction(Long.MAX_VALUE, sizeElements, logDirectory, 50);
+        String message = "2024-01-01 00:00:00,000 [main] INFO  com.example.Service - request handled in 12 ms\n";
+        int count = 100000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            queue.add(message);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        long perSecond = count * 1000000000L / Math.max(1, elapsedNanos);
+        logger.info("Durable buffer appended " + count + " messages at " + perSecond + " messages/s");
+        assertEquals(count, queue.size());
+        // Far beyond what fsync per message could achieve on any disk
+        assertTrue("Only " + perSecond + " messages/s", perSecond > 10000);
+    }
+
+    @Test
+    public void testDrainToByteLimit() throws Exception {
+        reopen();
+        queue.add("aa");
+        queue.add("bbb");
+        queue.add("c");
+        queue.add("dddd");
+
+        Batch<String> batch = new Batch<String>();
+        assertEquals(2, queue.drainTo(batch, Integer.MAX_VALUE, 5));
+        assertEquals(Arrays.asList("aa", "bbb"), batch);
+        assertEquals(5, batch.cost());
+
+        batch.clear();
+        assertEquals(2, queue.drainTo(batch, Integer.MAX_VALUE, 5));
+        assertEquals(Arrays.asList("c", "dddd"), batch);
+        queue.acknowledge(queue.drainPosition());
+
+        // Everything drained was acknowledged, so nothing comes back
+        assertEquals(0, reopen().size());
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HeapPressureMonitorTest {
+
+    private BufferWithFifoEviction<Integer> buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new BufferWithFifoEviction<Integer>(1000,
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return 1;
+                }
+            });
+    }
+
+    @Test
+    public void testShrinksUnderPressure() {
+        HeapPressureMonitor monitor = new HeapPressureMonitor(buffer, 200, 0.8, 0.5);
+        for (int i = 0; i < 1000; i++) {
+            buffer.add(i);
+        }
+
+        monitor.update(0.9);
+        assertEquals(500, buffer.getCapacity());
+        assertEquals(500, buffer.size());
+        assertEquals(500, buffer.getEvictedCount());
+
+        monitor.update(0.9);
+        monitor.update(0.9);
+        assertEquals(200, buffer.getCapacity());
+        assertEquals(200, buffer.size());
+    }
+
+    @Test
+    public void testGrowsBackWhenPressureSubsides() {
+        HeapPressureMonitor monitor = new HeapPressureMonitor(buffer, 100, 0.8, 0.5);
+        monitor.update(0.9);
+        monitor.update(0.9);
+        assertEquals(250, buffer.getCapacity());
+
+        // Between the watermarks nothing changes
+        monitor.update(0.7);
+        assertEquals(250, buffer.getCapacity());
+
+        monitor.update(0.3);
+        assertEquals(500, buffer.getCapacity());
+        monitor.update(0.3);
+        monitor.update(0.3);
+        assertEquals(1000, buffer.getCapacity());
+    }
+
+    @Test
+    public void testStopRestoresCapacity() {
+        HeapPressureMonitor monitor = new HeapPressureMonitor(buffer, 100);
+        monitor.start();
+        monitor.update(1.0);
+        assertEquals(500, buffer.getCapacity());
+
+        monitor.stop();
+        assertEquals(1000, buffer.getCapacity());
+    }
+
+    @Test
+    public void testHeapUsageIsAFraction() {
+        HeapPressureMonitor monitor = new HeapPressureMonitor(buffer, 100);
+        double usage = monitor.heapUsage();
+        assertTrue(usage >= 0 && usage <= 1);
+    }
+
+    @Test
+    public void testIgnoresYoungPools() {
+        // What G1 reports after every young collection
+        MemoryPoolMXBean survivor = pool("G1 Survivor Space", new MemoryUsage(0, 10485760, 10485760, -1));
+        MemoryPoolMXBean eden = pool("G1 Eden Space", new MemoryUsage(0, 0, 20971520, -1));
+        MemoryPoolMXBean old = pool("G1 Old Gen", new MemoryUsage(0, 100, 400, 1000));
+        HeapPressureMonitor monitor = new HeapPressureMonitor(buffer, 100, 0.8, 0.5,
+                Arrays.asList(survivor, eden, old));
+
+        assertEquals(0.1, monitor.heapUsage(), 0.0001);
+        for (int i = 0; i < 5; i++) {
+            monitor.update(monitor.heapUsage());
+        }
+        assertEquals(1000, buffer.getCapacity());
+    }
+
+    @Test
+    public void testShrinksWhenTenuredPoolIsFull() {
+        MemoryPoolMXBean survivor = pool("PS Survivor Space", new MemoryUsage(0, 10, 10, 10));
+        MemoryPoolMXBean old = pool("PS Old Gen", new MemoryUsage(0, 900, 1000, 1000));
+        // No defined maximum, so it cannot say how full it is
+        MemoryPoolMXBean unbounded = pool("Tenured", new MemoryUsage(0, 50, 50, -1));
+        HeapPressureMonitor monitor = new HeapPressureMonitor(buffer, 100, 0.8, 0.5,
+                Arrays.asList(survivor, old, unbounded));
+
+        assertEquals(0.9, monitor.heapUsage(), 0.0001);
+        monitor.update(monitor.heapUsage());
+        assertEquals(500, buffer.getCapacity());
+    }
+
+    private static MemoryPoolMXBean pool(final String name, final MemoryUsage collectionUsage) {
+        return (MemoryPoolMXBean) Proxy.newProxyInstance(MemoryPoolMXBean.class.getClassLoader(),
+            new Class<?>[] {MemoryPoolMXBean.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String methodName = method.getName();
+                    if (methodName.equals("getName")) {
+                        return name;
+                    } else if (methodName.equals("getType")) {
+                        return MemoryType.HEAP;
+                    } else if (methodName.equals("isCollectionUsageThresholdSupported")) {
+                        return true;
+                    } else if (methodName.equals("getCollectionUsage")) {
+                        return collectionUsage;
+                    }
+                    throw new UnsupportedOperationException(methodName);
+                }
+            });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvertedWatermarks() {
+        new HeapPressureMonitor(buffer, 100, 0.5, 0.8);
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> valueCost;
+    private MemoryBudget budget;
+
+    @Before
+    public void setUp() {
+        valueCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return e;
+                }
+            };
+        budget = new MemoryBudget(100);
+    }
+
+    private BufferWithFifoEviction<Integer> buffer(long guarantee) {
+        BufferWithFifoEviction<Integer> buffer = new BufferWithFifoEviction<Integer>(1000, valueCost);
+        buffer.setMemoryBudget(budget, guarantee);
+        return buffer;
+    }
+
+    private List<Integer> drain(BufferWithEviction<Integer> buffer) {
+        List<Integer> result = new ArrayList<Integer>();
+        buffer.drainTo(result, Integer.MAX_VALUE);
+        return result;
+    }
+
+    @Test
+    public void testTotalCappedAcrossBuffers() {
+        List<BufferWithFifoEviction<Integer>> buffers = new ArrayList<BufferWithFifoEviction<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            buffers.add(buffer(0));
+        }
+
+        for (int round = 0; round < 100; round++) {
+            for (BufferWithFifoEviction<Integer> buffer : buffers) {
+                assertTrue(buffer.add(5));
+            }
+            assertTrue(budget.used() <= 100);
+        }
+        assertEquals(100, budget.used());
+    }
+
+    @Test
+    public void testBorrowsUnusedBudget() {
+        BufferWithFifoEviction<Integer> a = buffer(20);
+        buffer(20);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(a.add(10));
+        }
+        assertEquals(100, budget.used());
+        assertEquals(0, a.getEvictedCount());
+    }
+
+    @Test
+    public void testGuaranteeReclaimedFromBorrower() {
+        BufferWithFifoEviction<Integer> a = buffer(50);
+        BufferWithFifoEviction<Integer> b = buffer(50);
+
+        for (int i = 0; i < 10; i++) {
+            a.add(10);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertTrue(b.add(10));
+        }
+
+        assertEquals(70, a.size() * 10);
+        assertEquals(3, a.getEvictedCount());
+        assertEquals(0, b.getEvictedCount());
+        assertEquals(100, budget.used());
+    }
+
+    @Test
+    public void testBufferAboveGuaranteeEvictsItself() {
+        BufferWithFifoEviction<Integer> a = buffer(50);
+        BufferWithFifoEviction<Integer> b = buffer(50);
+
+        for (int i = 0; i < 5; i++) {
+            a.add(10);
+        }
+        for (int i = 1; i <= 6; i++) {
+            b.add(10 + i);
+        }
+
+        // b went above its guarantee, a kept its share
+        assertEquals(5, a.size());
+        assertEquals(Arrays.asList(14, 15, 16), drain(b));
+    }
+
+    @Test
+    public void testDrainReleasesBudget() {
+        BufferWithFifoEviction<Integer> a = buffer(0);
+        a.add(40);
+        a.add(30);
+        assertEquals(70, budget.used());
+
+        drain(a);
+        assertEquals(0, budget.used());
+    }
+
+    @Test
+    public void testLocalEvictionReleasesBudget() {
+        BufferWithFifoEviction<Integer> a = new BufferWithFifoEviction<Integer>(20, valueCost);
+        a.setMemoryBudget(budget, 0);
+        for (int i = 0; i < 10; i++) {
+            a.add(10);
+        }
+        assertEquals(20, budget.used());
+
+        a.setCapacity(10);
+        assertEquals(10, budget.used());
+    }
+
+    @Test
+    public void testRegisteringChargesExistingContents() {
+        BufferWithFifoEviction<Integer> a = new BufferWithFifoEviction<Integer>(1000, valueCost);
+        a.add(30);
+        a.setMemoryBudget(budget, 0);
+        assertEquals(30, budget.used());
+
+        a.setMemoryBudget(null, 0);
+        assertEquals(0, budget.used());
+        assertEquals(0, budget.registeredBuffers());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGuaranteesCannotExceedBudget() {
+        buffer(60);
+        buffer(60);
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapBufferWithFifoEvictionTest {
+
+    private OffHeapBufferWithFifoEviction queue;
+
+    @Test
+    public void testEncodedLength() {
+        String[] samples = { "", "ascii", "caf\u00e9", "\u20ac100", "\ud83d\ude00 emoji",
+                             "unpaired \ud83d high", "unpaired \ude00 low", "trailing \ud83d" };
+        for (String sample : samples) {
+            assertEquals(sample, sample.getBytes(StandardCharsets.UTF_8).length,
+                    Utf8.encodedLength(sample));
+        }
+    }
+
+    @Test
+    public void testDrainTo() {
+        queue = new OffHeapBufferWithFifoEviction(1000, 64);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            String message = "message " + i + "\n";
+            expected.add(message);
+            assertTrue(queue.add(message));
+        }
+        assertEquals(20, queue.size());
+
+        List<String> result = new ArrayList<String>();
+        assertEquals(5, queue.drainTo(result, 5));
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(expected, result);
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testCostIsEncodedBytes() {
+        queue = new OffHeapBufferWithFifoEviction(1000);
+        queue.add("caf\u00e9");
+        queue.add("\ud83d\ude00");
+        assertEquals(5 + 4, queue.cost());
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("caf\u00e9", "\ud83d\ude00"), result);
+    }
+
+    @Test
+    public void testEviction() {
+        queue = new OffHeapBufferWithFifoEviction(3, 64);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(String.valueOf(i));
+        }
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList("3", "4", "5"), result);
+    }
+
+    @Test
+    public void testInsertLarge() {
+        queue = new OffHeapBufferWithFifoEviction(10, 64);
+        queue.add("12345");
+
+        assertFalse(queue.add("12345678901"));
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("12345"), result);
+    }
+
+    @Test
+    public void testMessageLargerThanSegment() {
+        queue = new OffHeapBufferWithFifoEviction(1000, 16);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append('x');
+        }
+        queue.add("small");
+        queue.add(large.toString());
+        queue.add("small again");
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("small", large.toString(), "small again"), result);
+    }
+
+    @Test
+    public void testSegmentsAreRecycled() {
+        queue = new OffHeapBufferWithFifoEviction(1000, 16);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                queue.add("msg" + i);
+            }
+            List<String> result = new ArrayList<String>();
+            queue.drainTo(result, Integer.MAX_VALUE);
+            assertEquals(10, result.size());
+            // Draining to empty frees every segment but the tail
+            assertEquals(0, queue.size());
+        }
+
+        int pooled = queue.pooledSegments();
+        assertTrue(pooled > 0);
+        for (int i = 0; i < 10; i++) {
+            queue.add("msg" + i);
+        }
+        assertTrue(queue.pooledSegments() < pooled);
+    }
+
+    @Test
+    public void testDrainToByteLimit() {
+        queue = new OffHeapBufferWithFifoEviction(1000, 64);
+        queue.add("caf\u00e9");
+        queue.add("a");
+        queue.add("\ud83d\ude00");
+
+        // The limit counts encoded bytes, not chars
+        Batch<String> batch = new Batch<String>();
+        assertEquals(2, queue.drainTo(batch, Integer.MAX_VALUE, 8));
+        assertEquals(Arrays.asList("caf\u00e9", "a"), batch);
+        assertEquals(6, batch.cost());
+
+        batch.clear();
+        assertEquals(1, queue.drainTo(batch, Integer.MAX_VALUE, 1));
+        assertEquals(Arrays.asList("\ud83d\ude00"), batch);
+        assertEquals(4, batch.cost());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RingBufferWithFifoEvictionTest {
+
+    private RingBufferWithFifoEviction<Integer> queue;
+
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> countCost;
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> valueCost;
+
+
+    @Before
+    public void setUp() {
+        countCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return 1;
+                }
+            };
+
+        valueCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return e;
+                }
+            };
+    }
+
+    @Test
+    public void testSlotsRoundedToPowerOfTwo() {
+        queue = new RingBufferWithFifoEviction<Integer>(10, 5, countCost);
+        assertEquals(8, queue.getSlots());
+    }
+
+    @Test
+    public void testEnforceBottomless() {
+        queue = new RingBufferWithFifoEviction<Integer>(2, 16, countCost);
+        queue.add(1);
+        queue.add(2);
+        assertEquals(2, queue.size());
+
+        for (int i = 0; i < 100; i++) {
+            queue.add(3);
+        }
+
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.cost());
+    }
+
+    @Test
+    public void testDrainTo() {
+        queue = new RingBufferWithFifoEviction<Integer>(10, 16, countCost);
+        for (int i = 0; i < queue.getCapacity(); i++) {
+            queue.add(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>(10);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(10, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals((Object) i, result.get(i));
+        }
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testDrainAtMost() {
+        queue = new RingBufferWithFifoEviction<Integer>(10, 16, countCost);
+        for (int i = 0; i < 5; i++) {
+            queue.add(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>();
+        assertEquals(2, queue.drainTo(result, 2));
+        assertEquals(Arrays.asList(0, 1), result);
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void testEviction() {
+        queue = new RingBufferWithFifoEviction<Integer>(3, 16, countCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>(3);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(3, 4, 5), result);
+    }
+
+    @Test
+    public void testEvictionWhenOutOfSlots() {
+        queue = new RingBufferWithFifoEviction<Integer>(1000, 4, countCost);
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(queue.add(i));
+        }
+
+        List<Integer> result = new ArrayList<Integer>(4);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(3, 4, 5, 6), result);
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testInsertLarge() {
+        queue = new RingBufferWithFifoEviction<Integer>(1+2+3+4+5, 16, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        assertFalse(queue.add(1000));
+
+        List<Integer> result = new ArrayList<Integer>(5);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), result);
+    }
+
+    @Test
+    public void testComplexEviction() {
+        queue = new RingBufferWithFifoEviction<Integer>(1+2+3+4+5, 16, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        assertFalse(queue.add(100));
+        assertTrue(queue.add(6));
+
+        List<Integer> result = new ArrayList<Integer>(3);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(4, 5, 6), result);
+    }
+
+    @Test
+    public void testConcurrentProducersKeepPerThreadOrder() throws Exception {
+        final int producers = 8;
+        final int perProducer = 10000;
+        queue = new RingBufferWithFifoEviction<Integer>(
+                producers * perProducer, producers * perProducer, countCost);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.add(id * perProducer + i);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        List<Integer> result = new ArrayList<Integer>(producers * perProducer);
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        while (result.size() < producers * perProducer) {
+            List<Integer> batch = new ArrayList<Integer>();
+            queue.drainTo(batch, 100);
+            for (Integer e : batch) {
+                int id = e / perProducer;
+                assertTrue(e % perProducer > last[id]);
+                last[id] = e % perProducer;
+            }
+            result.addAll(batch);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testSetCapacity() {
+        queue = new RingBufferWithFifoEviction<Integer>(10, 16, countCost);
+        for (int i = 1; i <= 10; i++) {
+            queue.add(i);
+        }
+
+        queue.setCapacity(3);
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.cost());
+
+        queue.add(11);
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(9, 10, 11), result);
+    }
+
+    @Test
+    public void testDrainToByteLimit() {
+        queue = new RingBufferWithFifoEviction<Integer>(1+2+3+4+5, 16, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        Batch<Integer> batch = new Batch<Integer>();
+        assertEquals(3, queue.drainTo(batch, Integer.MAX_VALUE, 6));
+        assertEquals(Arrays.asList(1, 2, 3), batch);
+        assertEquals(6, batch.cost());
+
+        // An element over the limit on its own still goes out alone
+        batch.clear();
+        assertEquals(1, queue.drainTo(batch, Integer.MAX_VALUE, 2));
+        assertEquals(Arrays.asList(4), batch);
+        assertEquals(4, batch.cost());
+        assertEquals(5, queue.cost());
+    }
+}
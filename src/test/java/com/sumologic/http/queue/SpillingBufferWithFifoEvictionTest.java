@@ -0,0 +1,226 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpillingBufferWithFifoEvictionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CostBoundedConcurrentQueue.CostAssigner<String> countCost;
+    private SpillingBufferWithFifoEviction queue;
+    private File spillDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        countCost = new CostBoundedConcurrentQueue.CostAssigner<String>() {
+            @Override
+            public long cost(String e) {
+                return 1;
+            }
+        };
+        spillDirectory = folder.newFolder("spill");
+    }
+
+    @Test
+    public void testSpillKeepsOrder() {
+        queue = new SpillingBufferWithFifoEviction(3, countCost, spillDirectory, 1024, 64);
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(queue.add("msg" + i));
+        }
+        assertEquals(10, queue.size());
+        assertEquals(7, queue.spilledSize());
+
+        List<String> result = new ArrayList<String>();
+        assertEquals(5, queue.drainTo(result, 5));
+        // Memory has room again, but newer messages must still go behind the spilled ones
+        queue.add("msg11");
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= 11; i++) {
+            expected.add("msg" + i);
+        }
+        assertEquals(expected, result);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testMemoryUsedAgainOnceDrained() {
+        queue = new SpillingBufferWithFifoEviction(2, countCost, spillDirectory, 1024, 64);
+        queue.add("a");
+        queue.add("b");
+        queue.add("c");
+        assertEquals(1, queue.spilledSize());
+
+        queue.drainTo(new ArrayList<String>(), Integer.MAX_VALUE);
+        queue.add("d");
+        assertEquals(0, queue.spilledSize());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testSegmentFilesDeletedAfterDrain() {
+        queue = new SpillingBufferWithFifoEviction(1, countCost, spillDirectory, 1024, 16);
+        for (int i = 0; i < 20; i++) {
+            queue.add("message " + i);
+        }
+        File segmentDirectory = queue.getSegmentDirectory();
+        assertEquals(spillDirectory, segmentDirectory.getParentFile());
+        // Segments plus the lock file
+        assertTrue(segmentDirectory.listFiles().length > 2);
+
+        queue.drainTo(new ArrayList<String>(), Integer.MAX_VALUE);
+
+        assertTrue(segmentDirectory.listFiles().length <= 2);
+        queue.close();
+        assertArrayEquals(new String[] {".lock"}, segmentDirectory.list());
+        assertEquals(0, queue.diskBytes());
+    }
+
+    @Test
+    public void testDiskCapacityDropsOldestSegment() {
+        // Each segment holds two 4-byte messages
+        queue = new SpillingBufferWithFifoEviction(1, countCost, spillDirectory, 32, 16);
+        for (int i = 0; i < 10; i++) {
+            queue.add("m" + i + "_");
+        }
+
+        assertTrue(queue.diskBytes() <= 32);
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList("m0_", "m7_", "m8_", "m9_"), result);
+    }
+
+    @Test
+    public void testMessageLargerThanSegment() {
+        queue = new SpillingBufferWithFifoEviction(1, countCost, spillDirectory, 1024, 16);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append('x');
+        }
+        queue.add("head");
+        queue.add(large.toString());
+        queue.add("caf\u00e9");
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("head", large.toString(), "caf\u00e9"), result);
+    }
+
+    @Test
+    public void testStaleSegmentsRemoved() throws Exception {
+        File abandoned = new File(spillDirectory, "sumo-spill-0");
+        assertTrue(abandoned.mkdir());
+        assertTrue(new File(abandoned, "sumo-spill-7.seg").createNewFile());
+        assertTrue(new File(abandoned, "unrelated.txt").createNewFile());
+        assertTrue(new File(spillDirectory, "sumo-spill-8.seg").createNewFile());
+
+        queue = new SpillingBufferWithFifoEviction(1, countCost, spillDirectory, 1024, 16);
+
+        // Nobody held the lock, so the subdirectory is taken over and cleaned
+        assertEquals(abandoned, queue.getSegmentDirectory());
+        String[] left = abandoned.list();
+        Arrays.sort(left);
+        assertArrayEquals(new String[] {".lock", "unrelated.txt"}, left);
+        assertTrue(new File(spillDirectory, "sumo-spill-8.seg").exists());
+    }
+
+    @Test
+    public void testInstancesSharingDirectory() {
+        queue = new SpillingBufferWithFifoEviction(1, countCost, spillDirectory, 1024, 16);
+        for (int i = 0; i < 5; i++) {
+            queue.add("first " + i);
+        }
+
+        SpillingBufferWithFifoEviction other =
+            new SpillingBufferWithFifoEviction(1, countCost, spillDirectory, 1024, 16);
+        assertFalse(queue.getSegmentDirectory().equals(other.getSegmentDirectory()));
+        for (int i = 0; i < 5; i++) {
+            other.add("second " + i);
+        }
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("first 0", "first 1", "first 2", "first 3", "first 4"), result);
+
+        result.clear();
+        other.drainTo(result, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("second 0", "second 1", "second 2", "second 3", "second 4"), result);
+
+        // A closed buffer's subdirectory can be claimed again
+        File released = other.getSegmentDirectory();
+        other.close();
+        other = new SpillingBufferWithFifoEviction(1, countCost, spillDirectory, 1024, 16);
+        assertEquals(released, other.getSegmentDirectory());
+        other.close();
+    }
+
+    @Test
+    public void testDrainToByteLimit() {
+        CostBoundedConcurrentQueue.CostAssigner<String> lengthCost =
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return e.length();
+                }
+            };
+        queue = new SpillingBufferWithFifoEviction(5, lengthCost, spillDirectory, 1024, 64);
+        queue.add("aa");
+        queue.add("bbb");
+        queue.add("c");
+        queue.add("dddd");
+        assertEquals(2, queue.spilledSize());
+
+        // Spilled messages are costed the same way once read back
+        Batch<String> batch = new Batch<String>();
+        assertEquals(3, queue.drainTo(batch, Integer.MAX_VALUE, 6));
+        assertEquals(Arrays.asList("aa", "bbb", "c"), batch);
+        assertEquals(6, batch.cost());
+        assertEquals(1, queue.spilledSize());
+
+        batch.clear();
+        assertEquals(1, queue.drainTo(batch, Integer.MAX_VALUE, 2));
+        assertEquals(Arrays.asList("dddd"), batch);
+        assertEquals(4, batch.cost());
+        assertEquals(0, queue.size());
+    }
+}
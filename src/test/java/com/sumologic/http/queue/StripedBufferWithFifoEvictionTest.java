@@ -0,0 +1,287 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.sumologic.http.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class StripedBufferWithFifoEvictionTest {
+
+    private StripedBufferWithFifoEviction<Integer> queue;
+
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> countCost;
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> valueCost;
+
+
+    @Before
+    public void setUp() {
+        countCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return 1;
+                }
+            };
+
+        valueCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return e;
+                }
+            };
+    }
+
+    @Test
+    public void testEnforceBottomless() {
+        queue = new StripedBufferWithFifoEviction<Integer>(2, 4, countCost);
+        queue.add(1);
+        queue.add(2);
+        assertEquals(2, queue.size());
+
+        for (int i = 0; i < 100; i++) {
+            queue.add(3);
+        }
+
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.cost());
+    }
+
+    @Test
+    public void testEviction() {
+        queue = new StripedBufferWithFifoEviction<Integer>(3, 4, countCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>(3);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(3, 4, 5), result);
+    }
+
+    @Test
+    public void testComplexEviction() {
+        queue = new StripedBufferWithFifoEviction<Integer>(1+2+3+4+5, 4, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        assertFalse(queue.add(100));
+        assertTrue(queue.add(6));
+
+        List<Integer> result = new ArrayList<Integer>(3);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(4, 5, 6), result);
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testEvictsOldestAcrossStripes() throws Exception {
+        queue = new StripedBufferWithFifoEviction<Integer>(3, 64, countCost);
+        // Each element comes from a different thread, so most likely a different stripe
+        for (int i = 1; i <= 3; i++) {
+            addFromNewThread(i);
+        }
+        addFromNewThread(4);
+
+        List<Integer> result = new ArrayList<Integer>(3);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(2, 3, 4), result);
+    }
+
+    @Test
+    public void testDrainMergesStripesInOrder() throws Exception {
+        queue = new StripedBufferWithFifoEviction<Integer>(100, 64, countCost);
+        for (int i = 0; i < 10; i++) {
+            addFromNewThread(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>();
+        assertEquals(4, queue.drainTo(result, 4));
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), result);
+    }
+
+    @Test
+    public void testConcurrentProducersKeepPerThreadOrder() throws Exception {
+        final int producers = 8;
+        final int perProducer = 10000;
+        queue = new StripedBufferWithFifoEviction<Integer>(producers * perProducer, 4, countCost);
+
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.add(id * perProducer + i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        int received = 0;
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        while (received < producers * perProducer) {
+            List<Integer> batch = new ArrayList<Integer>();
+            queue.drainTo(batch, 100);
+            for (Integer e : batch) {
+                int id = e / perProducer;
+                assertTrue(e % perProducer > last[id]);
+                last[id] = e % perProducer;
+            }
+            received += batch.size();
+        }
+
+        done.await();
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testRefilledStripeRejoinsMerge() throws Exception {
+        queue = new StripedBufferWithFifoEviction<Integer>(100, 64, countCost);
+        queue.add(1);
+        addFromNewThread(2);
+
+        List<Integer> result = new ArrayList<Integer>();
+        assertEquals(1, queue.drainTo(result, 1));
+        // This thread's stripe went empty and is filled again behind an older element
+        queue.add(3);
+        addFromNewThread(4);
+        queue.drainTo(result, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4), result);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testConcurrentEvictionKeepsAccounting() throws Exception {
+        final int producers = 8;
+        final int perProducer = 10000;
+        queue = new StripedBufferWithFifoEviction<Integer>(16, 4, countCost);
+
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.add(i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long received = 0;
+        while (done.getCount() > 0) {
+            List<Integer> batch = new ArrayList<Integer>();
+            received += queue.drainTo(batch, 5);
+        }
+        List<Integer> rest = new ArrayList<Integer>();
+        received += queue.drainTo(rest, Integer.MAX_VALUE);
+
+        assertEquals(producers * perProducer, received + queue.getEvictedCount());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testFlushThresholdUsesCount() throws Exception {
+        queue = new StripedBufferWithFifoEviction<Integer>(3, 64, countCost);
+        final int[] signals = {0};
+        queue.setFlushListener(new Runnable() {
+            @Override
+            public void run() {
+                signals[0]++;
+            }
+        });
+        queue.setFlushThreshold(2, Long.MAX_VALUE);
+
+        addFromNewThread(1);
+        assertEquals(0, signals[0]);
+        addFromNewThread(2);
+        assertEquals(1, signals[0]);
+        // Evictions keep the count at capacity
+        addFromNewThread(3);
+        addFromNewThread(4);
+        assertEquals(3, queue.size());
+        assertEquals(3, signals[0]);
+
+        queue.drainTo(new ArrayList<Integer>(), 2);
+        assertEquals(1, queue.size());
+        addFromNewThread(5);
+        assertEquals(4, signals[0]);
+    }
+
+    private void addFromNewThread(final int element) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.add(element);
+            }
+        });
+        thread.start();
+        thread.join();
+    }
+
+    @Test
+    public void testDrainToByteLimit() {
+        queue = new StripedBufferWithFifoEviction<Integer>(1+2+3+4+5, 4, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        Batch<Integer> batch = new Batch<Integer>();
+        assertEquals(3, queue.drainTo(batch, Integer.MAX_VALUE, 6));
+        assertEquals(Arrays.asList(1, 2, 3), batch);
+        assertEquals(6, batch.cost());
+
+        // An element over the limit on its own still goes out alone
+        batch.clear();
+        assertEquals(1, queue.drainTo(batch, Integer.MAX_VALUE, 2));
+        assertEquals(Arrays.asList(4), batch);
+        assertEquals(4, batch.cost());
+        assertEquals(5, queue.cost());
+    }
+}
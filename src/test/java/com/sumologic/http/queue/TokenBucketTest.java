@@ -0,0 +1,104 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.queue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstThenRefill() {
+        TokenBucket bucket = new TokenBucket(10, 10);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bucket.tryAcquire(1, now));
+        }
+        assertFalse(bucket.tryAcquire(1, now));
+
+        // 100ms refills one token
+        assertTrue(bucket.tryAcquire(1, now + 100000000L));
+        assertFalse(bucket.tryAcquire(1, now + 100000000L));
+    }
+
+    @Test
+    public void testIdleBucketDoesNotExceedBurst() {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        long later = System.nanoTime() + 60000000000L;
+
+        assertTrue(bucket.tryAcquire(100, later));
+        assertFalse(bucket.tryAcquire(1, later));
+    }
+
+    @Test
+    public void testRequestLargerThanBurstRefused() {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        assertFalse(bucket.tryAcquire(101, System.nanoTime()));
+    }
+
+    @Test
+    public void testRelease() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long now = System.nanoTime();
+
+        assertTrue(bucket.tryAcquire(2, now));
+        assertFalse(bucket.tryAcquire(1, now));
+        bucket.release(1);
+        assertTrue(bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    public void testConcurrentAcquireNeverOverAdmits() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1, 1000);
+        final long now = System.nanoTime();
+        final int[] admitted = new int[4];
+        Thread[] threads = new Thread[admitted.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (bucket.tryAcquire(1, now)) {
+                            admitted[index]++;
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        int total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += admitted[t];
+        }
+        assertEquals(1000, total);
+    }
+}
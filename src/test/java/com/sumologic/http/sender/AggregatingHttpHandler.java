@@ -32,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
@@ -39,17 +40,28 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class AggregatingHttpHandler implements HttpHandler {
     private static final Logger logger = LoggerFactory.getLogger(AggregatingHttpHandler.class);
     private final static String REQUEST_ENCODING = "UTF-8";
     private final List<MaterializedHttpRequest> exchanges = new ArrayList<MaterializedHttpRequest>();
     private final Queue<Integer> forceReturnCodes = new ArrayBlockingQueue<Integer>(100);
+    private volatile String retryAfter = null;
+    private volatile int maxBodyBytes = Integer.MAX_VALUE;
 
     // Extract and materialize HTTP Request Body into a String
     private String readRequestBody(HttpExchange httpExchange) throws IOException {
         StringBuilder content = new StringBuilder();
-        InputStreamReader is = new InputStreamReader(httpExchange.getRequestBody(), REQUEST_ENCODING);
+        InputStream body = httpExchange.getRequestBody();
+        String contentEncoding = httpExchange.getRequestHeaders().getFirst("Content-Encoding");
+        if ("gzip".equals(contentEncoding)) {
+            body = new GZIPInputStream(body);
+        } else if ("deflate".equals(contentEncoding)) {
+            body = new InflaterInputStream(body);
+        }
+        InputStreamReader is = new InputStreamReader(body, REQUEST_ENCODING);
         int c;
         while ((c = is.read()) != -1) {
             content.append((char) c);
@@ -70,12 +82,24 @@ public class AggregatingHttpHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
-        if (!forceReturnCodes.isEmpty()) {
+        if (maxBodyBytes < Integer.MAX_VALUE) {
+            MaterializedHttpRequest request = requestFor(httpExchange);
+            if (request.getBody().getBytes(REQUEST_ENCODING).length > maxBodyBytes) {
+                httpExchange.sendResponseHeaders(413, 0);
+            } else {
+                exchanges.add(request);
+                httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+            }
+            httpExchange.close();
+        } else if (!forceReturnCodes.isEmpty()) {
             int returnCode = forceReturnCodes.poll();
             if (returnCode == HttpURLConnection.HTTP_OK) {
                 logger.debug("Handling exchange " + httpExchange);
                 exchanges.add(requestFor(httpExchange));
             }
+            if (returnCode == 429 && retryAfter != null) {
+                httpExchange.getResponseHeaders().set("Retry-After", retryAfter);
+            }
             httpExchange.sendResponseHeaders(returnCode, 0);
             httpExchange.close();
         } else {
@@ -98,4 +122,14 @@ public class AggregatingHttpHandler implements HttpHandler {
         forceReturnCodes.add(returnCode);
     }
 
+    // Bodies larger than this are answered with 413
+    public void setMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    // Sent along with forced 429s
+    public void setRetryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
 }
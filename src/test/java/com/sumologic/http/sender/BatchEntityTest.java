@@ -0,0 +1,145 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BatchEntityTest {
+
+    private static byte[] written(BatchEntity entity) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] read(BatchEntity entity) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = entity.getContent();
+        byte[] buffer = new byte[3];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testMatchesStringEncoding() throws Exception {
+        BatchEntity entity = new BatchEntity(new ByteChunkPool(5, 10));
+        String[] messages = {"info 1\n", "caf\u00e9 \u20ac\n", "", "\ud83d\ude00 smile\n", "bad \ud800 surrogate\n"};
+        StringBuilder expected = new StringBuilder();
+        for (String message : messages) {
+            entity.append(message);
+            expected.append(message);
+        }
+
+        byte[] bytes = expected.toString().getBytes(StandardCharsets.UTF_8);
+        assertEquals(bytes.length, entity.getContentLength());
+        assertArrayEquals(bytes, written(entity));
+        assertArrayEquals(bytes, read(entity));
+        assertEquals(bytes.length, entity.getContent().available());
+        assertEquals("text/plain; charset=UTF-8", entity.getContentType().getValue());
+    }
+
+    @Test
+    public void testRepeatable() throws Exception {
+        BatchEntity entity = new BatchEntity(new ByteChunkPool());
+        entity.append("msg1");
+        entity.append("msg2");
+
+        assertTrue(entity.isRepeatable());
+        assertArrayEquals("msg1msg2".getBytes(StandardCharsets.UTF_8), written(entity));
+        assertArrayEquals("msg1msg2".getBytes(StandardCharsets.UTF_8), written(entity));
+    }
+
+    @Test
+    public void testReleaseReturnsChunks() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool(4, 10);
+        BatchEntity entity = new BatchEntity(pool);
+        entity.append("0123456789");
+        assertEquals(0, pool.pooledChunks());
+
+        entity.release();
+        assertEquals(3, pool.pooledChunks());
+        assertEquals(0, entity.getContentLength());
+        assertEquals(0, written(entity).length);
+
+        // The next batch reuses them
+        BatchEntity next = new BatchEntity(pool);
+        next.append("abcd");
+        assertEquals(2, pool.pooledChunks());
+        assertArrayEquals("abcd".getBytes(StandardCharsets.UTF_8), written(next));
+    }
+
+    @Test
+    public void testSplitsAtMessageBoundaryNearestMiddle() throws Exception {
+        BatchEntity entity = new BatchEntity(new ByteChunkPool(4, 10));
+        entity.append("aaaa\n");
+        entity.append("bb\n");
+        entity.append("cccccc\n");
+        entity.append("d\n");
+
+        BatchEntity[] halves = entity.split();
+        assertEquals("aaaa\nbb\n", new String(written(halves[0]), StandardCharsets.UTF_8));
+        assertEquals("cccccc\nd\n", new String(written(halves[1]), StandardCharsets.UTF_8));
+        // The halves keep their own boundaries
+        BatchEntity[] quarters = halves[1].split();
+        assertEquals("cccccc\n", new String(written(quarters[0]), StandardCharsets.UTF_8));
+        assertEquals("d\n", new String(written(quarters[1]), StandardCharsets.UTF_8));
+        assertEquals(17, entity.getContentLength());
+    }
+
+    @Test
+    public void testSplitsSingleMessageBetweenCharacters() throws Exception {
+        BatchEntity entity = new BatchEntity(new ByteChunkPool(4, 10));
+        // Three-byte characters, so the middle byte falls inside one
+        String message = "\u20ac\u20ac\u20ac\u20ac\u20ac";
+        entity.append(message);
+
+        BatchEntity[] halves = entity.split();
+        String first = new String(written(halves[0]), StandardCharsets.UTF_8);
+        String second = new String(written(halves[1]), StandardCharsets.UTF_8);
+        assertEquals("\u20ac\u20ac", first);
+        assertEquals("\u20ac\u20ac\u20ac", second);
+    }
+
+    @Test
+    public void testTooShortToSplit() throws Exception {
+        BatchEntity entity = new BatchEntity(new ByteChunkPool());
+        assertNull(entity.split());
+        entity.append("\u20ac");
+        assertNull(entity.split());
+        entity.append("x");
+        assertEquals(2, entity.split().length);
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteChunkPoolTest {
+
+    @Test
+    public void testReusesChunks() {
+        ByteChunkPool pool = new ByteChunkPool(16, 2);
+        ByteBuffer chunk = pool.take();
+        assertEquals(16, chunk.capacity());
+        chunk.put((byte) 1);
+
+        pool.give(chunk);
+        assertEquals(1, pool.pooledChunks());
+        ByteBuffer again = pool.take();
+        assertSame(chunk, again);
+        assertEquals(0, again.position());
+        assertEquals(0, pool.pooledChunks());
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        ByteChunkPool pool = new ByteChunkPool(16, 2);
+        pool.give(pool.take());
+        pool.give(ByteBuffer.allocate(16));
+        pool.give(ByteBuffer.allocate(16));
+        assertEquals(2, pool.pooledChunks());
+
+        // Foreign sizes are not pooled
+        pool = new ByteChunkPool(16, 2);
+        pool.give(ByteBuffer.allocate(8));
+        assertEquals(0, pool.pooledChunks());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkTooSmallForACharacter() {
+        new ByteChunkPool(3, 2);
+    }
+}
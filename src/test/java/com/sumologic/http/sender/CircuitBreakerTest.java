@@ -0,0 +1,127 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+        long now = System.currentTimeMillis();
+
+        breaker.recordFailure(now);
+        breaker.recordFailure(now);
+        breaker.recordSuccess();
+        breaker.recordFailure(now);
+        breaker.recordFailure(now);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(now));
+
+        breaker.recordFailure(now);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(3, breaker.getConsecutiveFailures());
+        assertEquals(1, breaker.getTimesOpened());
+        assertFalse(breaker.isAcceptingRequests(now + 999));
+        assertFalse(breaker.allowRequest(now + 999));
+        assertEquals(1, breaker.getRemainingOpenMs(now + 999));
+    }
+
+    @Test
+    public void testSingleProbeClosesCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        long now = System.currentTimeMillis();
+        breaker.recordFailure(now);
+
+        assertTrue(breaker.isAcceptingRequests(now + 1000));
+        assertTrue(breaker.allowRequest(now + 1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Only the one probe until it reports back
+        assertFalse(breaker.isAcceptingRequests(now + 1001));
+        assertFalse(breaker.allowRequest(now + 1001));
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertTrue(breaker.allowRequest(now + 1002));
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        long now = System.currentTimeMillis();
+        breaker.recordFailure(now);
+        assertTrue(breaker.allowRequest(now + 1000));
+
+        breaker.recordFailure(now + 1500);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getTimesOpened());
+        assertFalse(breaker.allowRequest(now + 2499));
+        assertTrue(breaker.allowRequest(now + 2500));
+    }
+
+    @Test
+    public void testLostProbeIsReplaced() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        long now = System.currentTimeMillis();
+        breaker.recordFailure(now);
+        assertTrue(breaker.allowRequest(now + 1000));
+
+        assertFalse(breaker.allowRequest(now + 1999));
+        assertTrue(breaker.allowRequest(now + 2000));
+    }
+
+    @Test
+    public void testListenerSeesStateChanges() {
+        final List<String> changes = new ArrayList<String>();
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.setListener(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(CircuitBreaker.State from, CircuitBreaker.State to) {
+                changes.add(from + "->" + to);
+            }
+        });
+        long now = System.currentTimeMillis();
+
+        breaker.recordFailure(now);
+        breaker.allowRequest(now + 1000);
+        breaker.recordSuccess();
+        assertEquals(Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), changes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroThreshold() {
+        new CircuitBreaker(0, 1000);
+    }
+}
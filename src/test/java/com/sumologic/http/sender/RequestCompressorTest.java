@@ -0,0 +1,184 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class RequestCompressorTest {
+
+    private static String decode(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static BatchEntity batch(ByteChunkPool pool, int lines) {
+        BatchEntity body = new BatchEntity(pool);
+        for (int i = 0; i < lines; i++) {
+            body.append("2024-01-01 00:00:00 INFO [main] Message number " + i + " caf\u00e9\n");
+        }
+        return body;
+    }
+
+    private static String text(BatchEntity body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool(64, 100);
+        RequestCompressor compressor = new RequestCompressor(CompressionMethod.GZIP, -1, pool);
+        BatchEntity body = batch(pool, 1000);
+
+        BatchEntity compressed = compressor.compress(body);
+        assertEquals("gzip", compressed.getContentEncoding().getValue());
+        assertEquals(text(body), decode(new GZIPInputStream(compressed.getContent())));
+        assertTrue(compressed.getContentLength() * 5 < body.getContentLength());
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool();
+        RequestCompressor compressor = new RequestCompressor(CompressionMethod.DEFLATE, 9, pool);
+        BatchEntity body = batch(pool, 100);
+
+        BatchEntity compressed = compressor.compress(body);
+        assertEquals("deflate", compressed.getContentEncoding().getValue());
+        assertEquals(text(body), decode(new InflaterInputStream(compressed.getContent())));
+    }
+
+    @Test
+    public void testEmptyBody() throws Exception {
+        RequestCompressor compressor = new RequestCompressor(CompressionMethod.GZIP, -1, new ByteChunkPool());
+        BatchEntity compressed = compressor.compress(new StringEntity(""));
+        assertEquals("", decode(new GZIPInputStream(compressed.getContent())));
+    }
+
+    @Test
+    public void testReusesDeflaters() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool();
+        RequestCompressor compressor = new RequestCompressor(CompressionMethod.GZIP, -1, pool);
+        assertEquals(0, compressor.pooledDeflaters());
+
+        BatchEntity first = compressor.compress(batch(pool, 10));
+        assertEquals(1, compressor.pooledDeflaters());
+        BatchEntity second = compressor.compress(batch(pool, 20));
+        assertEquals(1, compressor.pooledDeflaters());
+
+        // A reset deflater carries nothing over from the previous batch
+        assertEquals(text(batch(pool, 20)), decode(new GZIPInputStream(second.getContent())));
+        assertEquals(text(batch(pool, 10)), decode(new GZIPInputStream(first.getContent())));
+
+        compressor.close();
+        assertEquals(0, compressor.pooledDeflaters());
+        compressor.compress(batch(pool, 1));
+        assertEquals(0, compressor.pooledDeflaters());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool();
+        RequestCompressor compressor = new RequestCompressor(CompressionMethod.GZIP, -1, pool);
+        BatchEntity first = batch(pool, 100);
+        BatchEntity second = batch(pool, 50);
+
+        long out = compressor.compress(first).getContentLength() + compressor.compress(second).getContentLength();
+        assertEquals(first.getContentLength() + second.getContentLength(), compressor.getBytesIn());
+        assertEquals(out, compressor.getBytesOut());
+        assertEquals((double) compressor.getBytesIn() / out, compressor.getCompressionRatio(), 0.0001);
+        assertTrue(compressor.getCpuTimeNanos() >= 0);
+    }
+
+    @Test
+    public void testGzipSegmentsInParallel() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool(256, 1000);
+        RequestCompressor compressor = new RequestCompressor(CompressionMethod.GZIP, -1, pool);
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(3, 3, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        compressor.setWorkers(workers, 4096);
+        try {
+            BatchEntity body = batch(pool, 2000);
+            BatchEntity compressed = compressor.compress(body);
+
+            // Members decompress back to back, in order
+            assertEquals(text(body), decode(new GZIPInputStream(compressed.getContent())));
+            assertEquals(body.getContentLength(), compressor.getBytesIn());
+            assertEquals(compressed.getContentLength(), compressor.getBytesOut());
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+            long segments = body.getContentLength() / 4096;
+            assertTrue(workers.getCompletedTaskCount() >= segments - 1);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSmallBatchesAndDeflateNotSegmented() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool(256, 1000);
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(3, 3, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        try {
+            RequestCompressor gzip = new RequestCompressor(CompressionMethod.GZIP, -1, pool);
+            gzip.setWorkers(workers, 1000000);
+            BatchEntity body = batch(pool, 2000);
+            assertEquals(text(body), decode(new GZIPInputStream(gzip.compress(body).getContent())));
+
+            // Joined deflate streams would stop decompressing after the first
+            RequestCompressor deflate = new RequestCompressor(CompressionMethod.DEFLATE, -1, pool);
+            deflate.setWorkers(workers, 4096);
+            assertEquals(text(body), decode(new InflaterInputStream(deflate.compress(body).getContent())));
+
+            assertEquals(0, workers.getTaskCount());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new RequestCompressor(CompressionMethod.GZIP, 10, new ByteChunkPool());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.http.sender;
+
+import org.apache.http.client.utils.DateUtils;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class RequestThrottleTest {
+
+    @Test
+    public void testUnthrottledRequestsAreNotSpaced() {
+        RequestThrottle throttle = new RequestThrottle(100, 10000);
+        long now = System.currentTimeMillis();
+        assertEquals(0, throttle.reserve(now));
+        assertEquals(0, throttle.reserve(now));
+        assertEquals(0, throttle.getIntervalMs());
+    }
+
+    @Test
+    public void testRetryAfterPausesSending() {
+        RequestThrottle throttle = new RequestThrottle(100, 10000);
+        long now = System.currentTimeMillis();
+
+        throttle.recordThrottled(2000, now);
+        assertEquals(1, throttle.getTimesThrottled());
+        assertEquals(2000, throttle.getDelayMs(now));
+        assertEquals(500, throttle.reserve(now + 1500));
+
+        // Then requests are spaced by the interval
+        assertEquals(0, throttle.reserve(now + 2000));
+        assertEquals(100, throttle.reserve(now + 2000));
+        assertEquals(0, throttle.reserve(now + 2100));
+    }
+
+    @Test
+    public void testIntervalDoublesAndRecovers() {
+        RequestThrottle throttle = new RequestThrottle(100, 300);
+        long now = System.currentTimeMillis();
+
+        // Without Retry-After the pause is the interval
+        throttle.recordThrottled(-1, now);
+        assertEquals(100, throttle.getIntervalMs());
+        assertEquals(100, throttle.getDelayMs(now));
+        throttle.recordThrottled(-1, now);
+        assertEquals(200, throttle.getIntervalMs());
+        throttle.recordThrottled(60000, now);
+        assertEquals(300, throttle.getIntervalMs());
+        // Capped at the max interval
+        assertEquals(300, throttle.getDelayMs(now));
+
+        throttle.recordAccepted();
+        assertEquals(270, throttle.getIntervalMs());
+        for (int i = 0; i < 100; i++) {
+            throttle.recordAccepted();
+        }
+        assertEquals(0, throttle.getIntervalMs());
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        long now = System.currentTimeMillis();
+        assertEquals(-1, RequestThrottle.parseRetryAfterMs(null, now));
+        assertEquals(-1, RequestThrottle.parseRetryAfterMs("soon", now));
+        assertEquals(-1, RequestThrottle.parseRetryAfterMs("-5", now));
+        assertEquals(120000, RequestThrottle.parseRetryAfterMs(" 120 ", now));
+
+        long date = (now / 1000) * 1000 + 30000;
+        assertEquals(date - now, RequestThrottle.parseRetryAfterMs(DateUtils.formatDate(new Date(date)), now));
+        assertEquals(0, RequestThrottle.parseRetryAfterMs(DateUtils.formatDate(new Date(now - 60000)), now));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMaxBelowInitial() {
+        new RequestThrottle(1000, 100);
+    }
+}
@@ -26,16 +26,26 @@
 
 package com.sumologic.http.sender;
 
+import com.sumologic.http.aggregation.AdaptiveFlushController;
+import com.sumologic.http.aggregation.BufferFlushingTask;
 import com.sumologic.http.aggregation.SumoBufferFlusher;
 import com.sumologic.http.queue.BufferWithEviction;
 import com.sumologic.http.queue.BufferWithFifoEviction;
 import com.sumologic.http.queue.CostBoundedConcurrentQueue;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SumoHttpSenderTest {
 
@@ -141,14 +151,15 @@ public class SumoHttpSenderTest {
     public void testRetry() throws Exception {
         setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
                 1, -1,1, false, null);
-        // retry on 503, don't retry on 429
+        // retry on 503 and 429, don't retry on 403
         handler.addForceReturnCode(503);
         handler.addForceReturnCode(503);
         handler.addForceReturnCode(503);
         handler.addForceReturnCode(200);    // Test1 succeeds
-        handler.addForceReturnCode(429);    // Test2 dropped
+        handler.addForceReturnCode(429);
         handler.addForceReturnCode(503);
-        handler.addForceReturnCode(200);    // Test3 succeeds
+        handler.addForceReturnCode(200);    // Test2 succeeds
+        handler.addForceReturnCode(403);    // Test3 dropped
         flusher.start();
         queue.add("Test1");
         Thread.sleep(200);
@@ -158,7 +169,7 @@ public class SumoHttpSenderTest {
         Thread.sleep(1000);
         assertEquals(2, handler.getExchanges().size());
         assertEquals("Test1", handler.getExchanges().get(0).getBody());
-        assertEquals("Test3", handler.getExchanges().get(1).getBody());
+        assertEquals("Test2", handler.getExchanges().get(1).getBody());
     }
 
     @Test
@@ -327,4 +338,543 @@ public class SumoHttpSenderTest {
         assertEquals(1, handler.getExchanges().size());
         assertEquals("Test2", handler.getExchanges().get(0).getBody());
     }
+
+    @Test
+    public void testStringFlushingTask() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                2, -1, 100000, false, null);
+        SumoBufferFlushingTask task = new SumoBufferFlushingTask(queue);
+        // Still flushes Strings, as it always has
+        BufferFlushingTask<String, String> stringTask = task;
+        task.setSender(sender);
+        task.setMessagesPerRequest(2);
+        task.setMaxFlushIntervalMs(100000);
+        queue.add("Test1");
+        queue.add("Test2");
+        queue.add("Test3");
+
+        stringTask.run();
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("Test1Test2", handler.getExchanges().get(0).getBody());
+        assertEquals("Test3", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testEventDrivenBatchingBySize() throws Exception {
+        // Long window and no polling, only the buffer's signal can trigger a flush
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                10, -1, 100000, false, null);
+        flusher.setEventDriven(true);
+        flusher.start();
+        for (int i = 0; i < 9; i ++) {
+            queue.add("info " + i);
+        }
+        Thread.sleep(200);
+        assertEquals(0, handler.getExchanges().size());
+
+        queue.add("info 9");
+        Thread.sleep(200);
+        assertEquals(1, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testEventDrivenBatchingByWindow() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1000, -1, 100, false, null);
+        flusher.setEventDriven(true);
+        flusher.start();
+        queue.add("Test1");
+        Thread.sleep(500);
+        queue.add("Test2");
+        queue.add("Test3");
+        Thread.sleep(500);
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("Test2Test3", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testEventDrivenThresholdFollowsFlushController() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 100000, false, null);
+        AdaptiveFlushController controller = new AdaptiveFlushController(1, 100, 100000, 100000);
+        // A high enqueue rate, so that prompt responses grow the batch size
+        controller.recordQueueSize(0);
+        Thread.sleep(20);
+        controller.recordQueueSize(1000);
+        controller.recordResponse(200, 0);
+        controller.recordResponse(200, 0);
+        assertEquals(21, controller.getMessagesPerRequest());
+        flusher.setFlushController(controller);
+        flusher.setEventDriven(true);
+        flusher.start();
+
+        for (int i = 0; i < 5; i++) {
+            queue.add("info " + i);
+        }
+        Thread.sleep(300);
+        assertEquals(0, handler.getExchanges().size());
+
+        // The queue already holds a batch of the new size; no further add has to signal it
+        controller.recordResponse(413, 0);
+        controller.recordResponse(413, 0);
+        assertEquals(5, controller.getMessagesPerRequest());
+        Thread.sleep(300);
+        assertEquals(1, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testEventDrivenFlushOnStop() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1000, -1, 100000, true, null);
+        flusher.setEventDriven(true);
+        flusher.start();
+        for (int i = 0; i < 10; i ++) {
+            queue.add("info " + i + "\n");
+        }
+        flusher.stop();
+        assertEquals(10, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testFlushControllerSeesResponses() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1000, 0, 100000, false, null);
+        // Batch size pinned at one message; a prompt 200 could otherwise grow it, and Test2
+        // would then wait out the flush interval for a fuller batch
+        AdaptiveFlushController controller = new AdaptiveFlushController(1, 1, 1000, 3000);
+        flusher.setFlushController(controller);
+        handler.addForceReturnCode(200);
+        handler.addForceReturnCode(429);
+        flusher.start();
+        queue.add("Test1");
+        Thread.sleep(200);
+        // A prompt 200 shortens the interval
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals(2800, controller.getMaxFlushIntervalMs());
+        // Test2 dropped on 429 with no retries left, which backs the interval off again
+        queue.add("Test2");
+        Thread.sleep(200);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals(3000, controller.getMaxFlushIntervalMs());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        sender.close();
+        sender.setCompressionMethod(CompressionMethod.GZIP);
+        sender.init();
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(200);
+        flusher.start();
+        queue.add("This is a message\n");
+        Thread.sleep(200);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("gzip", handler.getExchanges().get(0).getHeaders().getFirst("Content-Encoding"));
+        assertEquals("This is a message\n", handler.getExchanges().get(0).getBody());
+        // Compressed once for both attempts
+        assertEquals(18, sender.getCompressor().getBytesIn());
+    }
+
+    // The async engine is built for Java 11 and absent from Java 8 builds
+    private void useAsyncEngine() throws Exception {
+        try {
+            Class.forName("com.sumologic.http.sender.JdkAsyncHttpEngine");
+        } catch (ClassNotFoundException e) {
+            Assume.assumeNoException(e);
+        }
+        sender.close();
+        sender.setAsyncEngine(true);
+        sender.init();
+    }
+
+    @Test
+    public void testAsyncEngineSingleMessage() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        sender.setFieldsHeaderValue("environment=test");
+        useAsyncEngine();
+        flusher.start();
+        queue.add("This is a message\n");
+        Thread.sleep(200);
+        assertEquals(1, handler.getExchanges().size());
+        MaterializedHttpRequest request = handler.getExchanges().get(0);
+        assertEquals("This is a message\n", request.getBody());
+        assertEquals("POST", request.getMethod());
+        assertEquals("testSource", request.getHeaders().getFirst("X-Sumo-Name"));
+        assertEquals("testCategory", request.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals("testHost", request.getHeaders().getFirst("X-Sumo-Host"));
+        assertEquals("testClient", request.getHeaders().getFirst("X-Sumo-Client"));
+        assertEquals("environment=test", request.getHeaders().getFirst("X-Sumo-Fields"));
+        assertEquals("text/plain; charset=UTF-8", request.getHeaders().getFirst("Content-Type"));
+    }
+
+    @Test
+    public void testAsyncEngineRetry() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        useAsyncEngine();
+        // retry on 503 and 429, don't retry on 403
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(200);    // Test1 succeeds
+        handler.addForceReturnCode(429);
+        handler.addForceReturnCode(200);    // Test2 succeeds
+        handler.addForceReturnCode(403);    // Test3 dropped
+        flusher.start();
+        queue.add("Test1");
+        Thread.sleep(200);
+        queue.add("Test2");
+        Thread.sleep(200);
+        queue.add("Test3");
+        Thread.sleep(500);
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("Test1", handler.getExchanges().get(0).getBody());
+        assertEquals("Test2", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testAsyncEngineExceedingMaxNumberOfRetries() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, 2, 1, false, null);
+        useAsyncEngine();
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(200);
+
+        flusher.start();
+        queue.add("Test");
+        Thread.sleep(200);
+        flusher.stop();
+
+        assertEquals(0, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testAsyncEngineCompressedBatch() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                100, -1, 100000, true, null);
+        sender.setCompressionMethod(CompressionMethod.GZIP);
+        useAsyncEngine();
+        flusher.start();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            queue.add("info " + i + "\n");
+            expected.append("info ").append(i).append("\n");
+        }
+        Thread.sleep(300);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("gzip", handler.getExchanges().get(0).getHeaders().getFirst("Content-Encoding"));
+        assertEquals(expected.toString(), handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testSendAsyncResult() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(200);
+        handler.addForceReturnCode(403);
+
+        SendResult result = sender.sendAsync("Test1").get(10, TimeUnit.SECONDS);
+        assertTrue(result.isDelivered());
+        assertEquals(200, result.getStatusCode());
+        assertEquals(3, result.getAttempts());
+
+        result = sender.sendAsync("Test2").get(10, TimeUnit.SECONDS);
+        assertFalse(result.isDelivered());
+        assertEquals(403, result.getStatusCode());
+        assertEquals(1, result.getAttempts());
+
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("Test1", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testAsyncEngineSendAsyncResult() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        useAsyncEngine();
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(200);
+
+        SendResult result = sender.sendAsync("Test").get(10, TimeUnit.SECONDS);
+        assertTrue(result.isDelivered());
+        assertEquals(200, result.getStatusCode());
+        assertEquals(2, result.getAttempts());
+        assertEquals(1, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testBackoffGrowsBetweenRetries() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, 3, 1, false, null);
+        sender.setRetryIntervalMs(40);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(200);
+
+        // Waits of at least 20, 40 and 80 ms
+        SendResult result = sender.sendAsync("Test").get(10, TimeUnit.SECONDS);
+        assertTrue(result.isDelivered());
+        assertEquals(4, result.getAttempts());
+        assertTrue(result.getLatencyMs() >= 140);
+    }
+
+    @Test
+    public void testCircuitBreakerPausesFlushing() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        sender.close();
+        sender.setCircuitBreakerFailures(2);
+        sender.setCircuitBreakerOpenMs(500);
+        sender.init();
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(200);    // The probe succeeds
+
+        flusher.start();
+        queue.add("Test1");
+        Thread.sleep(100);
+        queue.add("Test2");
+        Thread.sleep(100);
+        // Test1 waits for the probe, Test2 stays queued
+        assertEquals(CircuitBreaker.State.OPEN, sender.getCircuitBreaker().getState());
+        assertTrue(sender.isSendingPaused());
+        assertEquals(1, queue.size());
+        assertEquals(0, handler.getExchanges().size());
+
+        Thread.sleep(800);
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreaker().getState());
+        assertEquals(1, sender.getCircuitBreaker().getTimesOpened());
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("Test1", handler.getExchanges().get(0).getBody());
+        assertEquals("Test2", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testAsyncEngineCircuitBreakerFailsFast() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, 1, 1, false, null);
+        sender.setCircuitBreakerFailures(2);
+        sender.setCircuitBreakerOpenMs(300);
+        useAsyncEngine();
+        handler.addForceReturnCode(503);
+        handler.addForceReturnCode(503);
+
+        assertFalse(sender.sendAsync("Test1").get(10, TimeUnit.SECONDS).isDelivered());
+        SendResult result = sender.sendAsync("Test2").get(10, TimeUnit.SECONDS);
+        assertFalse(result.isDelivered());
+        assertEquals(0, result.getAttempts());
+
+        Thread.sleep(400);
+        assertTrue(sender.sendAsync("Test3").get(10, TimeUnit.SECONDS).isDelivered());
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreaker().getState());
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("Test3", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFast() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, 1, 1, false, null);
+        sender.close();
+        sender.setCircuitBreakerFailures(1);
+        sender.setCircuitBreakerOpenMs(5000);
+        sender.init();
+        handler.addForceReturnCode(503);
+
+        // The wait for the circuit after the first attempt uses up the only retry
+        SendResult result = sender.sendWithResult("Test1");
+        assertFalse(result.isDelivered());
+        assertEquals(1, result.getAttempts());
+        assertTrue(result.getLatencyMs() < 1000);
+        assertEquals(CircuitBreaker.State.OPEN, sender.getCircuitBreaker().getState());
+
+        result = sender.sendWithResult("Test2");
+        assertFalse(result.isDelivered());
+        assertEquals(0, result.getAttempts());
+        assertTrue(result.getLatencyMs() < 1000);
+        assertEquals(0, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testAsyncEngineCircuitWaitCountsAsRetry() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, 1, 1, false, null);
+        sender.setCircuitBreakerFailures(1);
+        sender.setCircuitBreakerOpenMs(5000);
+        useAsyncEngine();
+        handler.addForceReturnCode(503);
+
+        SendResult result = sender.sendAsync("Test1").get(10, TimeUnit.SECONDS);
+        assertFalse(result.isDelivered());
+        assertEquals(1, result.getAttempts());
+        assertTrue(result.getLatencyMs() < 1000);
+    }
+
+    @Test
+    public void testCircuitOpeningMidFlushKeepsMessages() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, 0, 1, false, null);
+        sender.close();
+        sender.setCircuitBreakerFailures(1);
+        sender.setCircuitBreakerOpenMs(300);
+        sender.init();
+        handler.addForceReturnCode(503);    // Test0 dropped, out of retries
+        for (int i = 0; i < 6; i++) {
+            queue.add("Test" + i + "\n");
+        }
+
+        flusher.start();
+        Thread.sleep(150);
+        // The circuit opened partway through the flush, the rest stay queued
+        assertEquals(CircuitBreaker.State.OPEN, sender.getCircuitBreaker().getState());
+        assertEquals(5, queue.size());
+        assertEquals(0, handler.getExchanges().size());
+
+        Thread.sleep(800);
+        assertEquals(0, queue.size());
+        List<String> received = new ArrayList<String>();
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            received.add(exchange.getBody());
+        }
+        assertEquals(Arrays.asList("Test1\n", "Test2\n", "Test3\n", "Test4\n", "Test5\n"), received);
+    }
+
+    @Test
+    public void testRetryAfterPausesFlushing() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                100, -1, 50, false, null);
+        flusher.setMaxInFlightRequests(2);
+        handler.setRetryAfter("1");
+        handler.addForceReturnCode(429);
+
+        flusher.start();
+        queue.add("Test1\n");
+        Thread.sleep(200);
+        queue.add("Test2\n");
+        Thread.sleep(200);
+        queue.add("Test3\n");
+        Thread.sleep(200);
+        // Nothing is drained while throttled, so the messages add up to a single batch
+        assertTrue(sender.isSendingPaused());
+        assertEquals(2, queue.size());
+        assertEquals(0, handler.getExchanges().size());
+
+        Thread.sleep(800);
+        assertEquals(1, sender.getThrottle().getTimesThrottled());
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("Test1\n", handler.getExchanges().get(0).getBody());
+        assertEquals("Test2\nTest3\n", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testBatchesGrowWhileThrottled() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 50, false, null);
+        flusher.setMaxInFlightRequests(2);
+        handler.setRetryAfter("1");
+        handler.addForceReturnCode(429);
+
+        flusher.start();
+        queue.add("Test1\n");
+        Thread.sleep(200);
+        queue.add("Test2\n");
+        queue.add("Test3\n");
+        queue.add("Test4\n");
+        assertTrue(sender.isThrottled());
+
+        // Requests are still spaced out after the pause, so the rest go out together
+        Thread.sleep(1300);
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("Test1\n", handler.getExchanges().get(0).getBody());
+        assertEquals("Test2\nTest3\nTest4\n", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testAsyncEngineRetryAfter() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        useAsyncEngine();
+        handler.setRetryAfter("1");
+        handler.addForceReturnCode(429);
+
+        SendResult result = sender.sendAsync("Test").get(10, TimeUnit.SECONDS);
+        assertTrue(result.isDelivered());
+        assertEquals(2, result.getAttempts());
+        assertTrue(result.getLatencyMs() >= 1000);
+        assertEquals(1, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testTooLargeBatchIsSplit() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                100, -1, 1, false, null);
+        handler.setMaxBodyBytes(25);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            queue.add("message " + i + "\n");
+            expected.append("message ").append(i).append("\n");
+        }
+        flusher.start();
+        Thread.sleep(1500);
+
+        // 100 bytes rejected, then 50, then 30
+        StringBuilder received = new StringBuilder();
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            assertTrue(exchange.getBody().length() <= 25);
+            received.append(exchange.getBody());
+        }
+        assertEquals(expected.toString(), received.toString());
+        assertEquals(15, sender.getMaxRequestBytes());
+
+        // Later batches are cut below the learnt size up front
+        handler.clearExchanges();
+        queue.add("message a\n");
+        queue.add("message b\n");
+        Thread.sleep(500);
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("message a\n", handler.getExchanges().get(0).getBody());
+        assertEquals("message b\n", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testTooLargeMessageIsSentInPieces() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        handler.setMaxBodyBytes(25);
+        BatchEntity body = new BatchEntity(new ByteChunkPool());
+        body.append("0123456789012345678901234567890123456789\n");
+
+        assertTrue(sender.sendWithResult(body).isDelivered());
+        body.release();
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("01234567890123456789", handler.getExchanges().get(0).getBody());
+        assertEquals("01234567890123456789\n", handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void testAsyncEngineTooLargeBatchIsSplit() throws Exception {
+        setUpSender(ENDPOINT_URL, "testSource", "testHost", "testCategory",
+                1, -1, 1, false, null);
+        useAsyncEngine();
+        handler.setMaxBodyBytes(25);
+        BatchEntity body = new BatchEntity(new ByteChunkPool());
+        body.append("first message\n");
+        body.append("second message\n");
+
+        SendResult result = sender.sendAsync(body).get(10, TimeUnit.SECONDS);
+        body.release();
+        assertTrue(result.isDelivered());
+        assertEquals(3, result.getAttempts());
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("first message\n", handler.getExchanges().get(0).getBody());
+        assertEquals("second message\n", handler.getExchanges().get(1).getBody());
+        assertEquals(14, sender.getMaxRequestBytes());
+    }
 }